@@ -0,0 +1,90 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.sdk.model.registration.Account;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.mparticle.ext.iterable.IterableExtension.*;
+
+/**
+ * An account's settings, validated and parsed once.
+ *
+ * Profiles are cached by the content of the account settings, so every event and invocation for the same
+ * configuration shares one instance, and a changed configuration gets a new one. Per-account tuning belongs here.
+ */
+public final class AccountProfile {
+
+    static final int MAX_CACHED_PROFILES = 1000;
+    private static final ConcurrentHashMap<Map<String, String>, AccountProfile> PROFILES = new ConcurrentHashMap<>();
+
+    public final String apiKey;
+    public final String gcmIntegrationName;
+    public final String apnsIntegrationName;
+    public final String apnsSandboxIntegrationName;
+    public final IterableRegion region;
+    public final NameFilter eventFilter;
+    public final NameFilter attributeFilter;
+    /**
+     * Parsed list ID settings of this account's audiences.
+     */
+    private final ConcurrentHashMap<String, Integer> listIds = new ConcurrentHashMap<>();
+
+    private AccountProfile(Map<String, String> settings) throws IOException {
+        apiKey = settings.get(SETTING_API_KEY);
+        if (apiKey == null || apiKey.isEmpty()) {
+            throw new IOException("Missing required setting: " + SETTING_API_KEY);
+        }
+        gcmIntegrationName = settings.get(SETTING_GCM_NAME_KEY);
+        apnsIntegrationName = settings.get(SETTING_APNS_KEY);
+        apnsSandboxIntegrationName = settings.get(SETTING_APNS_SANDBOX_KEY);
+        try {
+            region = IterableRegion.fromSetting(settings.get(SETTING_DATA_CENTER));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown Iterable data center: " + settings.get(SETTING_DATA_CENTER));
+        }
+        eventFilter = NameFilter.compile(settings.get(SETTING_EVENT_ALLOW_LIST), settings.get(SETTING_EVENT_DENY_LIST));
+        attributeFilter = NameFilter.compile(settings.get(SETTING_ATTRIBUTE_ALLOW_LIST), settings.get(SETTING_ATTRIBUTE_DENY_LIST));
+    }
+
+    public static AccountProfile of(Account account) throws IOException {
+        Map<String, String> settings = account.getAccountSettings();
+        if (settings == null) {
+            settings = new HashMap<>();
+        }
+        AccountProfile profile = PROFILES.get(settings);
+        if (profile == null) {
+            profile = new AccountProfile(settings);
+            if (PROFILES.size() >= MAX_CACHED_PROFILES) {
+                //configurations rarely change, so this only happens with a very large number of accounts
+                PROFILES.clear();
+            }
+            //keyed by a copy, the account's own map could still change
+            PROFILES.putIfAbsent(new HashMap<>(settings), profile);
+        }
+        return profile;
+    }
+
+    /**
+     * The Iterable list an audience with the given subscription settings populates.
+     */
+    public int getListId(Map<String, String> audienceSettings) throws IOException {
+        String setting = audienceSettings == null ? null : audienceSettings.get(SETTING_LIST_ID);
+        if (setting == null) {
+            throw new IOException("Missing required audience setting: " + SETTING_LIST_ID);
+        }
+        Integer listId = listIds.get(setting);
+        if (listId == null) {
+            try {
+                listId = Integer.parseInt(setting.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid " + SETTING_LIST_ID + ": " + setting);
+            }
+            listIds.put(setting, listId);
+        }
+        return listId;
+    }
+}
@@ -0,0 +1,98 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.FlightRecorderEvents;
+import com.mparticle.iterable.IterableMetrics;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the number of items per call to a bulk or list endpoint, per route and API key, using additive increase and
+ * multiplicative decrease (AIMD).
+ *
+ * After every call the size grows by increment while the call's latency is under the target and the recent rate of
+ * overloaded calls (timeouts, 429s and 5xx) is under its target. An overloaded call cuts the size by decreaseFactor.
+ * Other failures, i.e. a 400 for a bad payload, say nothing about the size and leave it alone. The current size of
+ * every route and key is reported as the batchsize.ROUTE.KEY_HASH metric.
+ */
+public class AdaptiveBatchSizer {
+
+    /**
+     * Weight of the latest call in the overload rate.
+     */
+    static final double OVERLOAD_RATE_WEIGHT = 0.1;
+
+    public static class Config {
+        public int minSize = 10;
+        public int maxSize = 1000;
+        public int initialSize = 100;
+        public int increment = 10;
+        public double decreaseFactor = 0.5;
+        public long latencyTargetMillis = 1000;
+        public double overloadRateTarget = 0.05;
+    }
+
+    private final Config config;
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+
+    public AdaptiveBatchSizer() {
+        this(new Config());
+    }
+
+    public AdaptiveBatchSizer(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * The number of items to send in the next call.
+     */
+    public int size(String route, String apiKey) {
+        return state(route, apiKey).size();
+    }
+
+    /**
+     * Record the outcome of a call with an HTTP response.
+     */
+    public void record(String route, String apiKey, long latencyMillis, int code) {
+        state(route, apiKey).record(latencyMillis, code == 429 || code >= 500, code < 200 || code >= 300);
+    }
+
+    /**
+     * Record a call that failed without a response. Timeouts count as overload.
+     */
+    public void recordFailure(String route, String apiKey, long latencyMillis, IOException e) {
+        state(route, apiKey).record(latencyMillis, e instanceof InterruptedIOException, true);
+    }
+
+    private State state(String route, String apiKey) {
+        return states.computeIfAbsent(route + "|" + apiKey,
+                k -> new State("batchsize." + route + "." + FlightRecorderEvents.hash(apiKey == null ? "" : apiKey)));
+    }
+
+    private class State {
+        final String metric;
+        double size = config.initialSize;
+        double overloadRate;
+
+        State(String metric) {
+            this.metric = metric;
+            metrics.set(metric, (long) size);
+        }
+
+        synchronized int size() {
+            return (int) size;
+        }
+
+        synchronized void record(long latencyMillis, boolean overloaded, boolean failed) {
+            overloadRate = overloadRate * (1 - OVERLOAD_RATE_WEIGHT) + (overloaded ? OVERLOAD_RATE_WEIGHT : 0);
+            if (overloaded) {
+                size = Math.max(config.minSize, size * config.decreaseFactor);
+            } else if (!failed && latencyMillis <= config.latencyTargetMillis && overloadRate <= config.overloadRateTarget) {
+                size = Math.min(config.maxSize, size + config.increment);
+            }
+            metrics.set(metric, (long) size);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+import com.mparticle.iterable.UpdateEmailRequest;
+import com.mparticle.sdk.model.eventprocessing.CustomEvent;
+import com.mparticle.sdk.model.eventprocessing.Event;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+
+import java.util.*;
+
+/**
+ * Removes work from a batch that wouldn't change the end state in Iterable.
+ *
+ * A batch only ever describes a single user, so "last writer wins" is per batch.
+ */
+class BatchCompactor {
+
+    /**
+     * The attributes of a subscriptionsUpdated event that end up in its updateSubscriptions payload.
+     */
+    private static final List<String> SUBSCRIPTION_FIELDS = Arrays.asList(
+            IterableExtension.EMAIL_LIST_ID_LIST_KEY,
+            IterableExtension.UNSUBSCRIBE_CHANNEL_ID_LIST_KEY,
+            IterableExtension.UNSUBSCRIBE_MESSAGE_TYPE_ID_LIST_KEY,
+            IterableExtension.CAMPAIGN_ID_KEY,
+            IterableExtension.TEMPLATE_ID_KEY);
+
+    private BatchCompactor() {
+    }
+
+    /**
+     * Drop exact duplicate events from the (sorted) batch, and fold its subscriptionsUpdated events into the last
+     * one, see mergeSubscriptionUpdates().
+     */
+    static void compact(EventProcessingRequest request) {
+        List<Event> events = request.getEvents();
+        if (events == null || events.size() < 2) {
+            return;
+        }
+        int lastSubscriptionUpdate = -1;
+        for (int i = 0; i < events.size(); i++) {
+            if (isSubscriptionUpdate(events.get(i))) {
+                lastSubscriptionUpdate = i;
+            }
+        }
+        if (lastSubscriptionUpdate > 0) {
+            mergeSubscriptionUpdates(events, lastSubscriptionUpdate);
+        }
+        Set<String> seen = new HashSet<>();
+        List<Event> compacted = new ArrayList<>(events.size());
+        int duplicates = 0;
+        int staleSubscriptionUpdates = 0;
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            String key = duplicateKey(event);
+            if (key != null && !seen.add(key)) {
+                duplicates++;
+            } else if (i != lastSubscriptionUpdate && isSubscriptionUpdate(event)) {
+                staleSubscriptionUpdates++;
+            } else {
+                compacted.add(event);
+            }
+        }
+        if (compacted.size() < events.size()) {
+            events.clear();
+            events.addAll(compacted);
+            IterableMetrics metrics = IterableMetrics.getInstance();
+            metrics.add("compaction.duplicates", duplicates);
+            metrics.add("compaction.subscriptionUpdates", staleSubscriptionUpdates);
+        }
+    }
+
+    /**
+     * updateSubscriptions only overwrites the fields present in its payload, so the last subscriptionsUpdated event
+     * takes every field it doesn't set itself from the latest earlier event that does.
+     */
+    private static void mergeSubscriptionUpdates(List<Event> events, int last) {
+        CustomEvent target = (CustomEvent) events.get(last);
+        Map<String, String> merged = target.getAttributes() == null ? new HashMap<>() : new HashMap<>(target.getAttributes());
+        boolean changed = false;
+        for (int i = last - 1; i >= 0; i--) {
+            Map<String, String> attributes = isSubscriptionUpdate(events.get(i)) ? ((CustomEvent) events.get(i)).getAttributes() : null;
+            if (attributes == null) {
+                continue;
+            }
+            for (String field : SUBSCRIPTION_FIELDS) {
+                if (merged.get(field) == null && attributes.get(field) != null) {
+                    merged.put(field, attributes.get(field));
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            target.setAttributes(merged);
+        }
+    }
+
+    /**
+     * Collapse chains of email changes, i.e. a->b followed by b->c, into their net migration a->c. Chains that end
+     * where they started are dropped entirely.
+     *
+     * @param changes in the order they happened
+     * @return the migrations to perform, in order
+     */
+    static List<UpdateEmailRequest> compactEmailChanges(List<UpdateEmailRequest> changes) {
+        List<UpdateEmailRequest> migrations = new ArrayList<>(changes.size());
+        for (UpdateEmailRequest change : changes) {
+            UpdateEmailRequest chain = null;
+            for (UpdateEmailRequest migration : migrations) {
+                if (sameEmail(migration.newEmail, change.currentEmail)) {
+                    chain = migration;
+                    break;
+                }
+            }
+            if (chain == null) {
+                UpdateEmailRequest migration = new UpdateEmailRequest();
+                migration.currentEmail = change.currentEmail;
+                migration.newEmail = change.newEmail;
+                migrations.add(migration);
+            } else {
+                chain.newEmail = change.newEmail;
+            }
+        }
+        migrations.removeIf(migration -> sameEmail(migration.currentEmail, migration.newEmail));
+        int saved = changes.size() - migrations.size();
+        if (saved > 0) {
+            IterableMetrics.getInstance().add("compaction.updateEmail", saved);
+        }
+        return migrations;
+    }
+
+    private static boolean sameEmail(String a, String b) {
+        return a != null && a.equalsIgnoreCase(b);
+    }
+
+    private static boolean isSubscriptionUpdate(Event event) {
+        return event.getType() == Event.Type.CUSTOM_EVENT &&
+                IterableExtension.UPDATE_SUBSCRIPTIONS_CUSTOM_EVENT_NAME.equalsIgnoreCase(((CustomEvent) event).getName());
+    }
+
+    /**
+     * mParticle gives every event an ID, a redelivered event keeps it.
+     */
+    private static String duplicateKey(Event event) {
+        return event.getId() == null ? null : event.getType() + ":" + event.getId();
+    }
+}
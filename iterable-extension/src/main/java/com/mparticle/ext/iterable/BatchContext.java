@@ -0,0 +1,182 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.Deadline;
+import com.mparticle.iterable.IterableApiResponse;
+import com.mparticle.sdk.model.eventprocessing.Event;
+import com.mparticle.sdk.model.eventprocessing.ProductActionEvent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * State that lives for the duration of a single EventProcessingRequest.
+ */
+class BatchContext {
+
+    /**
+     * When the batch has to be done by, null if there's no limit.
+     */
+    final Deadline deadline;
+    /**
+     * How many of the batch's events have been handed to their handler.
+     */
+    int dispatchedEvents;
+    /**
+     * The user's cart with the batch's cart actions applied, sent once the batch has been dispatched. Null until
+     * the first cart action or purchase.
+     */
+    Cart cart;
+    /**
+     * Whether the batch's userUpdate sent the user attributes, so that other payloads don't need to repeat them.
+     */
+    boolean userAttributesSent;
+    /**
+     * The batch's coalesced userUpdate, which only counts as having sent the user attributes once it succeeded.
+     */
+    CompletableFuture<IterableApiResponse> coalescedUserUpdate;
+    /**
+     * The last cart action of the batch, which the cart is sent on behalf of.
+     */
+    ProductActionEvent cartEvent;
+    /**
+     * Cart actions applied to the cart since it was last sent, which only count as delivered once it is.
+     */
+    final List<Event> cartEvents = new ArrayList<>();
+    /**
+     * The event being dispatched, which deferred calls are made on behalf of.
+     */
+    Event currentEvent;
+    /**
+     * Failures that didn't stop the batch, thrown together at its end.
+     */
+    final List<IOException> failures = new ArrayList<>();
+    /**
+     * Events whose calls failed before they were dispatched, which mustn't be checkpointed when they are.
+     */
+    final List<Event> failedEvents = new ArrayList<>();
+    /**
+     * Dispatched events whose deferred calls had no result by the deadline, which have to be spilled or retried like
+     * the events that were never dispatched.
+     */
+    final List<Event> unfinishedEvents = new ArrayList<>();
+    private final List<PendingCall> pendingCalls = new ArrayList<>();
+
+    BatchContext(Deadline deadline) {
+        this.deadline = deadline;
+    }
+
+    void defer(CompletableFuture<IterableApiResponse> future, String errorMessage) {
+        pendingCalls.add(new PendingCall(future, errorMessage, currentEvent));
+    }
+
+    /**
+     * Whether the user attributes already reached Iterable. A coalesced userUpdate that is still in flight or failed
+     * doesn't count, so that payloads sent meanwhile keep embedding them.
+     */
+    boolean isUserAttributesSent() {
+        if (userAttributesSent) {
+            return true;
+        }
+        if (coalescedUserUpdate == null || !coalescedUserUpdate.isDone() || coalescedUserUpdate.isCompletedExceptionally()) {
+            return false;
+        }
+        IterableApiResponse response = coalescedUserUpdate.getNow(null);
+        return response != null && response.isSuccess();
+    }
+
+    /**
+     * Whether the event's calls haven't completed yet: it has deferred calls, or it's a cart action and the cart
+     * wasn't sent.
+     */
+    boolean isPending(Event event) {
+        if (cartEvents.contains(event)) {
+            return true;
+        }
+        for (PendingCall call : pendingCalls) {
+            if (call.event == event) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Wait for every deferred call of this batch, adding the ones that failed to the batch's failures and the events
+     * of the ones still running at the deadline to unfinishedEvents.
+     *
+     * @return the events whose deferred calls all succeeded
+     */
+    List<Event> awaitPending() {
+        List<Event> delivered = new ArrayList<>();
+        List<Event> failed = new ArrayList<>();
+        for (PendingCall call : pendingCalls) {
+            try {
+                await(call.future, call.errorMessage, deadline);
+                if (call.event != null && !delivered.contains(call.event)) {
+                    delivered.add(call.event);
+                }
+            } catch (DeadlineExceededException e) {
+                if (call.event == null) {
+                    failures.add(e);
+                } else if (!unfinishedEvents.contains(call.event)) {
+                    unfinishedEvents.add(call.event);
+                }
+                failed.add(call.event);
+            } catch (IOException e) {
+                failures.add(e);
+                failed.add(call.event);
+            }
+        }
+        pendingCalls.clear();
+        delivered.removeAll(failed);
+        return delivered;
+    }
+
+    /**
+     * Throw the batch's failures, if any: a single one as-is, several as a BatchFailedException.
+     */
+    void throwFailures(int totalEvents) throws IOException {
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        } else if (failures.size() > 1) {
+            throw new BatchFailedException(totalEvents, failures);
+        }
+    }
+
+    static void await(CompletableFuture<IterableApiResponse> future, String errorMessage, Deadline deadline) throws IOException {
+        IterableApiResponse response;
+        try {
+            response = deadline == null ? future.get() : future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new DeadlineExceededException(errorMessage + ": no result before the deadline");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(errorMessage, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(errorMessage, e.getCause());
+        }
+        if (response != null && !response.isSuccess()) {
+            throw new IOException(errorMessage + ": " + response.toString());
+        }
+    }
+
+    private static class PendingCall {
+        final CompletableFuture<IterableApiResponse> future;
+        final String errorMessage;
+        final Event event;
+
+        PendingCall(CompletableFuture<IterableApiResponse> future, String errorMessage, Event event) {
+            this.future = future;
+            this.errorMessage = errorMessage;
+            this.event = event;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.mparticle.ext.iterable;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Thrown once a whole batch was processed and some of its events failed. Each failure is attached as a
+ * suppressed exception.
+ */
+public class BatchFailedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<IOException> failures;
+
+    public BatchFailedException(int totalEvents, List<IOException> failures) {
+        super(failures.size() + " of " + totalEvents + " events failed, first: " + failures.get(0).getMessage(), failures.get(0));
+        this.failures = failures;
+        for (IOException failure : failures.subList(1, failures.size())) {
+            addSuppressed(failure);
+        }
+    }
+
+    public List<IOException> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,80 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.CommerceItem;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A user's cart with a batch's cart actions applied, so that a whole shopping session becomes a single updateCart
+ * call. updateCart replaces the whole cart in Iterable, so the cart starts from the one the user already has.
+ */
+class Cart {
+
+    private final Map<String, CommerceItem> items = new LinkedHashMap<>();
+    private boolean changed;
+
+    /**
+     * @param current the user's cart in Iterable
+     */
+    Cart(List<CommerceItem> current) {
+        for (CommerceItem item : current) {
+            item.quantity = quantity(item);
+            items.put(item.id, item);
+        }
+    }
+
+    void add(CommerceItem item) {
+        CommerceItem existing = items.get(item.id);
+        if (existing == null) {
+            item.quantity = quantity(item);
+            items.put(item.id, item);
+        } else {
+            existing.quantity = existing.quantity + quantity(item);
+        }
+        changed = true;
+    }
+
+    /**
+     * Removing an item that isn't in the cart changes nothing.
+     */
+    void remove(CommerceItem item) {
+        CommerceItem existing = items.get(item.id);
+        if (existing == null) {
+            return;
+        }
+        existing.quantity = existing.quantity - quantity(item);
+        if (existing.quantity <= 0) {
+            items.remove(item.id);
+        }
+        changed = true;
+    }
+
+    /**
+     * Iterable empties the cart itself when a purchase is tracked.
+     */
+    void purchased() {
+        items.clear();
+        changed = false;
+    }
+
+    /**
+     * @return whether the cart needs to be sent to Iterable
+     */
+    boolean isChanged() {
+        return changed;
+    }
+
+    List<CommerceItem> getItems() {
+        return new ArrayList<>(items.values());
+    }
+
+    /**
+     * mParticle products and Iterable cart items may come without a quantity, which means one.
+     */
+    private static int quantity(CommerceItem item) {
+        return item.quantity == null ? 1 : item.quantity;
+    }
+}
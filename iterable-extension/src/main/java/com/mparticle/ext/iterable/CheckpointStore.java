@@ -0,0 +1,19 @@
+package com.mparticle.ext.iterable;
+
+import java.io.IOException;
+
+/**
+ * Tracks which events of a batch were delivered to Iterable, so that when mParticle redelivers a batch that
+ * failed only the events that never succeeded are sent again.
+ */
+public interface CheckpointStore {
+
+    boolean isDelivered(String batchId, String eventId) throws IOException;
+
+    void delivered(String batchId, String eventId) throws IOException;
+
+    /**
+     * Called once every event of the batch was delivered, after which it won't be redelivered.
+     */
+    void completed(String batchId) throws IOException;
+}
@@ -0,0 +1,357 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.*;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Buffers track, userUpdate and updateSubscriptions calls per API key and sends them through Iterable's bulk
+ * endpoints, either once the coalescing window has elapsed or as soon as a buffer reaches the size threshold, which is
+ * either fixed or set by an AdaptiveBatchSizer.
+ *
+ * Every enqueued item gets its own future, completed with an IterableApiResponse for that item alone. The
+ * future only completes exceptionally when the whole bulk call failed (i.e. a network error or a non-2xx).
+ */
+public class CoalescingDispatcher implements Closeable {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+    public static final String ITEM_FAILED_CODE = "BulkItemFailed";
+    /**
+     * How long a bulk call whose items have no deadline may wait for a free slot in its key's bulkhead.
+     */
+    public static final long DEFAULT_MAX_BULKHEAD_WAIT_MILLIS = 5000;
+
+    private final IterableService iterableService;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService executor;
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private final ConcurrentHashMap<String, Buffer<?>> buffers = new ConcurrentHashMap<>();
+    private volatile AdaptiveBatchSizer batchSizer;
+    private volatile TenantBulkheads tenantBulkheads;
+
+    private final Route<TrackRequest> trackRoute;
+    private final Route<UserUpdateRequest> userUpdateRoute;
+    private final Route<UpdateSubscriptionsRequest> subscriptionsRoute;
+
+    public CoalescingDispatcher(IterableService iterableService) {
+        this(iterableService, DEFAULT_WINDOW_MILLIS, DEFAULT_MAX_BATCH_SIZE, 2);
+    }
+
+    public CoalescingDispatcher(IterableService iterableService, long windowMillis, int maxBatchSize, int flushThreads) {
+        this.iterableService = iterableService;
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.executor = Executors.newScheduledThreadPool(flushThreads, r -> {
+            Thread thread = new Thread(r, "iterable-coalescing-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        trackRoute = new Route<>("events/trackBulk",
+                (apiKey, items) -> {
+                    TrackBulkRequest request = new TrackBulkRequest();
+                    request.events = items;
+                    return this.iterableService.trackBulk(apiKey, request);
+                },
+                r -> r.email, r -> r.userId);
+        userUpdateRoute = new Route<>("users/bulkUpdate",
+                (apiKey, items) -> {
+                    BulkUserUpdateRequest request = new BulkUserUpdateRequest();
+                    request.users = items;
+                    return this.iterableService.userBulkUpdate(apiKey, request);
+                },
+                r -> r.email, r -> r.userId);
+        subscriptionsRoute = new Route<>("users/bulkUpdateSubscriptions",
+                (apiKey, items) -> {
+                    BulkUpdateSubscriptionsRequest request = new BulkUpdateSubscriptionsRequest();
+                    request.updateSubscriptionsRequests = items;
+                    return this.iterableService.bulkUpdateSubscriptions(apiKey, request);
+                },
+                r -> r.email, r -> null);
+    }
+
+    public CompletableFuture<IterableApiResponse> track(String apiKey, TrackRequest request) {
+        return enqueue(trackRoute, apiKey, request);
+    }
+
+    public CompletableFuture<IterableApiResponse> userUpdate(String apiKey, UserUpdateRequest request) {
+        return enqueue(userUpdateRoute, apiKey, request);
+    }
+
+    public CompletableFuture<IterableApiResponse> updateSubscriptions(String apiKey, UpdateSubscriptionsRequest request) {
+        return enqueue(subscriptionsRoute, apiKey, request);
+    }
+
+    /**
+     * Size the bulk calls of each route and API key adaptively instead of sending maxBatchSize items per call.
+     */
+    public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
+    /**
+     * Send bulk calls within their API key's bulkhead, like the calls the extension makes itself. A flush never
+     * waits on its flush thread: while the key has no free slot it's tried again every window, until the earliest
+     * deadline of its items (DEFAULT_MAX_BULKHEAD_WAIT_MILLIS when they have none), after which they fail.
+     */
+    public void setTenantBulkheads(TenantBulkheads tenantBulkheads) {
+        this.tenantBulkheads = tenantBulkheads;
+    }
+
+    /**
+     * Send everything that's currently buffered without waiting for the window to elapse.
+     */
+    public void flush() {
+        for (Buffer<?> buffer : buffers.values()) {
+            buffer.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        executor.shutdown();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<IterableApiResponse> enqueue(Route<T> route, String apiKey, T item) {
+        Buffer<T> buffer = (Buffer<T>) buffers.computeIfAbsent(route.name + "|" + apiKey, k -> new Buffer<>(route, apiKey));
+        metrics.increment("bulk." + route.name + ".items");
+        return buffer.add(item);
+    }
+
+    private <T> void send(Route<T> route, String apiKey, List<Pending<T>> batch) {
+        metrics.increment("bulk." + route.name + ".flushes");
+        Deadline deadline = null;
+        for (Pending<T> pending : batch) {
+            if (pending.deadline != null && (deadline == null || pending.deadline.remainingMillis() < deadline.remainingMillis())) {
+                deadline = pending.deadline;
+            }
+        }
+        send(route, apiKey, batch, deadline == null ? Deadline.afterMillis(DEFAULT_MAX_BULKHEAD_WAIT_MILLIS) : deadline);
+    }
+
+    /**
+     * @param deadline when to stop waiting for a free slot in the key's bulkhead
+     */
+    private <T> void send(Route<T> route, String apiKey, List<Pending<T>> batch, Deadline deadline) {
+        List<T> items = new ArrayList<>(batch.size());
+        for (Pending<T> pending : batch) {
+            items.add(pending.item);
+        }
+        TenantBulkheads bulkheads = tenantBulkheads;
+        try {
+            Call<BulkResponse> call = route.bulkCall.apply(apiKey, items);
+            Response<BulkResponse> response;
+            if (bulkheads == null) {
+                response = execute(route, apiKey, batch, call);
+            } else {
+                try {
+                    response = bulkheads.tryExecute(apiKey, () -> execute(route, apiKey, batch, call));
+                } catch (TenantBulkheads.BulkheadFullException e) {
+                    //waiting would hold a flush thread that other keys' calls need, so try again after the window
+                    if (deadline.remainingMillis() > windowMillis) {
+                        metrics.increment("bulk." + route.name + ".deferred");
+                        executor.schedule(() -> send(route, apiKey, batch, deadline), windowMillis, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    throw new DeadlineExceededException("No free slot for bulk " + route.name + " before the deadline");
+                }
+            }
+            if (!response.isSuccessful() || response.body() == null) {
+                throw new IOException("Error sending bulk " + route.name + " to Iterable: HTTP " + response.code());
+            }
+            complete(route, batch, response.body());
+        } catch (Exception e) {
+            metrics.increment("bulk." + route.name + ".errors");
+            for (Pending<T> pending : batch) {
+                pending.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Execute a bulk call within its span, recording its outcome with the batch sizer.
+     */
+    private <T> Response<BulkResponse> execute(Route<T> route, String apiKey, List<Pending<T>> batch, Call<BulkResponse> call) throws IOException {
+        AdaptiveBatchSizer sizer = batchSizer;
+        Span span = startSpan(route, batch);
+        Span previousSpan = Tracing.setCurrent(span);
+        long start = System.nanoTime();
+        Response<BulkResponse> response;
+        try {
+            response = call.execute();
+        } catch (IOException e) {
+            if (sizer != null) {
+                sizer.recordFailure(route.name, apiKey, (System.nanoTime() - start) / 1000000, e);
+            }
+            span.recordError(e);
+            throw e;
+        } catch (RuntimeException e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            Tracing.setCurrent(previousSpan);
+            span.end();
+        }
+        if (sizer != null) {
+            sizer.record(route.name, apiKey, (System.nanoTime() - start) / 1000000, response.code());
+        }
+        return response;
+    }
+
+    /**
+     * Start the span of a bulk call as a child of the span its first item was enqueued in, so that the call is part
+     * of that item's trace. Spans have no links, so the other enqueuing spans are listed in coalesced.links, as
+     * traceId/spanId pairs.
+     */
+    private static <T> Span startSpan(Route<T> route, List<Pending<T>> batch) {
+        Set<Span> enqueuing = new LinkedHashSet<>();
+        for (Pending<T> pending : batch) {
+            if (pending.span != null) {
+                enqueuing.add(pending.span);
+            }
+        }
+        Iterator<Span> spans = enqueuing.iterator();
+        Span previous = Tracing.setCurrent(spans.hasNext() ? spans.next() : null);
+        Span span;
+        try {
+            span = Tracing.startSpan("coalesced " + route.name);
+        } finally {
+            Tracing.setCurrent(previous);
+        }
+        span.setAttribute("coalesced.items", batch.size());
+        StringJoiner links = new StringJoiner(",");
+        while (spans.hasNext()) {
+            Span link = spans.next();
+            links.add(link.getTraceId() + "/" + link.getSpanId());
+        }
+        if (links.length() > 0) {
+            span.setAttribute("coalesced.links", links.toString());
+        }
+        return span;
+    }
+
+    private <T> void complete(Route<T> route, List<Pending<T>> batch, BulkResponse bulkResponse) {
+        Set<String> failedIdentifiers = new HashSet<>();
+        if (bulkResponse.invalidEmails != null) {
+            failedIdentifiers.addAll(bulkResponse.invalidEmails);
+        }
+        if (bulkResponse.invalidUserIds != null) {
+            failedIdentifiers.addAll(bulkResponse.invalidUserIds);
+        }
+        if (bulkResponse.failedUpdates != null) {
+            bulkResponse.failedUpdates.values().stream()
+                    .filter(Objects::nonNull)
+                    .forEach(failedIdentifiers::addAll);
+        }
+        //if Iterable reports failures without telling us which items they were, we can't tell callers apart
+        boolean unattributedFailure = bulkResponse.failCount > 0 && failedIdentifiers.isEmpty();
+        for (Pending<T> pending : batch) {
+            String email = route.email.apply(pending.item);
+            String userId = route.userId.apply(pending.item);
+            boolean failed = unattributedFailure
+                    || (email != null && failedIdentifiers.contains(email))
+                    || (userId != null && failedIdentifiers.contains(userId));
+            IterableApiResponse itemResponse = new IterableApiResponse();
+            if (failed) {
+                itemResponse.code = ITEM_FAILED_CODE;
+                itemResponse.msg = "Iterable rejected item in bulk " + route.name;
+                metrics.increment("bulk." + route.name + ".failedItems");
+            } else {
+                itemResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
+            }
+            pending.future.complete(itemResponse);
+        }
+    }
+
+    private static class Route<T> {
+        final String name;
+        final BiFunction<String, List<T>, Call<BulkResponse>> bulkCall;
+        final Function<T, String> email;
+        final Function<T, String> userId;
+
+        Route(String name, BiFunction<String, List<T>, Call<BulkResponse>> bulkCall, Function<T, String> email, Function<T, String> userId) {
+            this.name = name;
+            this.bulkCall = bulkCall;
+            this.email = email;
+            this.userId = userId;
+        }
+    }
+
+    private static class Pending<T> {
+        final T item;
+        /**
+         * The enqueuing caller's deadline, null if it has none.
+         */
+        final Deadline deadline = Deadline.current();
+        /**
+         * The enqueuing caller's span, null if it has none.
+         */
+        final Span span = Tracing.current();
+        final CompletableFuture<IterableApiResponse> future = new CompletableFuture<>();
+
+        Pending(T item) {
+            this.item = item;
+        }
+    }
+
+    private class Buffer<T> {
+        private final Route<T> route;
+        private final String apiKey;
+        private List<Pending<T>> pending = new ArrayList<>();
+        private ScheduledFuture<?> scheduledFlush;
+
+        Buffer(Route<T> route, String apiKey) {
+            this.route = route;
+            this.apiKey = apiKey;
+        }
+
+        CompletableFuture<IterableApiResponse> add(T item) {
+            Pending<T> entry = new Pending<>(item);
+            List<Pending<T>> full = null;
+            synchronized (this) {
+                pending.add(entry);
+                AdaptiveBatchSizer sizer = batchSizer;
+                if (pending.size() >= (sizer == null ? maxBatchSize : sizer.size(route.name, apiKey))) {
+                    full = take();
+                } else if (scheduledFlush == null) {
+                    scheduledFlush = executor.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full != null) {
+                List<Pending<T>> batch = full;
+                executor.execute(() -> send(route, apiKey, batch));
+            }
+            return entry.future;
+        }
+
+        void flush() {
+            List<Pending<T>> batch;
+            synchronized (this) {
+                batch = take();
+            }
+            if (!batch.isEmpty()) {
+                send(route, apiKey, batch);
+            }
+        }
+
+        private List<Pending<T>> take() {
+            List<Pending<T>> batch = pending;
+            pending = new ArrayList<>();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+            return batch;
+        }
+    }
+}
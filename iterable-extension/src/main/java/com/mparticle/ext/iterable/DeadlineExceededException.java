@@ -0,0 +1,14 @@
+package com.mparticle.ext.iterable;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of starting a call that isn't expected to finish before the deadline of the current batch.
+ */
+public class DeadlineExceededException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,159 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which device tokens were registered recently, since apps re-send the same token on every launch.
+ *
+ * Entries are keyed by a hash of (API key, email, platform, application name, token), so that neither emails nor
+ * tokens end up in memory dumps or the cache file. When a file is given, registrations are appended to it and read
+ * back on startup, so that a recycled container doesn't start cold. Failing to read or write the file only loses
+ * the benefit of the cache.
+ */
+public class DeviceTokenCache {
+
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final Path file;
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private final LinkedHashMap<String, Long> registeredAt;
+    private int fileLines;
+
+    public DeviceTokenCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, null);
+    }
+
+    public DeviceTokenCache(final int maxEntries, long ttlMillis, Path file) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.file = file;
+        this.registeredAt = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (file != null) {
+            load();
+        }
+    }
+
+    static String key(String apiKey, String email, String platform, String applicationName, String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((apiKey + "|" + email + "|" + platform + "|" + applicationName + "|" + token)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return whether the token was registered within the TTL
+     */
+    public synchronized boolean isRegistered(String key) {
+        Long at = registeredAt.get(key);
+        if (at != null && System.currentTimeMillis() - at < ttlMillis) {
+            metrics.increment("deviceToken.cache.hits");
+            return true;
+        }
+        metrics.increment("deviceToken.cache.misses");
+        return false;
+    }
+
+    public synchronized void registered(String key) {
+        long now = System.currentTimeMillis();
+        registeredAt.put(key, now);
+        if (file != null) {
+            persist(key, now);
+        }
+    }
+
+    public synchronized int size() {
+        return registeredAt.size();
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                int separator = line.indexOf(' ');
+                if (separator < 0) {
+                    continue;
+                }
+                try {
+                    long at = Long.parseLong(line.substring(0, separator));
+                    if (now - at < ttlMillis) {
+                        registeredAt.put(line.substring(separator + 1), at);
+                    }
+                } catch (NumberFormatException ignored) {
+                    //a line cut short by a crash
+                }
+            }
+            fileLines = lines.size();
+        } catch (IOException e) {
+            metrics.increment("deviceToken.cache.fileErrors");
+        }
+    }
+
+    /**
+     * Append the registration, rewriting the file from memory once it holds mostly stale lines.
+     */
+    private void persist(String key, long at) {
+        try {
+            if (fileLines >= 2 * maxEntries) {
+                rewrite();
+            } else {
+                Files.write(file, (at + " " + key + "\n").getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                fileLines++;
+            }
+        } catch (IOException e) {
+            metrics.increment("deviceToken.cache.fileErrors");
+        }
+    }
+
+    private void rewrite() throws IOException {
+        long now = System.currentTimeMillis();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int lines = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            Iterator<Map.Entry<String, Long>> entries = registeredAt.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, Long> entry = entries.next();
+                if (now - entry.getValue() >= ttlMillis) {
+                    entries.remove();
+                    continue;
+                }
+                writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+                lines++;
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        fileLines = lines;
+    }
+}
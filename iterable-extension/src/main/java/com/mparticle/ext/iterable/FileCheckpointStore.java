@@ -0,0 +1,74 @@
+package com.mparticle.ext.iterable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps one file per batch in a directory, listing the IDs of its delivered events one per line. The file is
+ * deleted once the batch completes.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+
+    private final Path directory;
+    private static final int MAX_LOADED_BATCHES = 1000;
+
+    /**
+     * Files read recently, so that a batch's file is only read once while it's being processed.
+     */
+    private final Map<String, Set<String>> loaded = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+            return size() > MAX_LOADED_BATCHES;
+        }
+    };
+
+    public FileCheckpointStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    @Override
+    public synchronized boolean isDelivered(String batchId, String eventId) throws IOException {
+        return load(batchId).contains(eventId);
+    }
+
+    @Override
+    public synchronized void delivered(String batchId, String eventId) throws IOException {
+        if (load(batchId).add(eventId)) {
+            Files.write(file(batchId), (eventId + "\n").getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    @Override
+    public synchronized void completed(String batchId) throws IOException {
+        loaded.remove(batchId);
+        Files.deleteIfExists(file(batchId));
+    }
+
+    private Set<String> load(String batchId) throws IOException {
+        Set<String> events = loaded.get(batchId);
+        if (events == null) {
+            events = new HashSet<>();
+            Path file = file(batchId);
+            if (Files.exists(file)) {
+                events.addAll(Files.readAllLines(file, StandardCharsets.UTF_8));
+            }
+            loaded.put(batchId, events);
+        }
+        return events;
+    }
+
+    /**
+     * Batch IDs are UUIDs, anything else is reduced to characters that are safe in a file name.
+     */
+    private Path file(String batchId) {
+        return directory.resolve(batchId.replaceAll("[^A-Za-z0-9-]", "_") + ".checkpoint");
+    }
+}
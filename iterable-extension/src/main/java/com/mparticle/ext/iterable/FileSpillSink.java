@@ -0,0 +1,45 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.Event;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends spilled batches to a newline-delimited JSON file, one EventProcessingRequest per line, holding only
+ * the events that weren't sent.
+ */
+public class FileSpillSink implements SpillSink {
+
+    private final Path file;
+    private final MessageSerializer serializer = new MessageSerializer();
+
+    public FileSpillSink(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public synchronized void spill(EventProcessingRequest request, List<Event> unsentEvents) throws IOException {
+        List<Event> events = request.getEvents();
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        request.setEvents(unsentEvents);
+        try {
+            serializer.serialize(json, request);
+        } finally {
+            request.setEvents(events);
+        }
+        //whitespace between JSON tokens is insignificant, and raw line breaks can't appear inside strings
+        String line = new String(json.toByteArray(), StandardCharsets.UTF_8).replace('\n', ' ').replace('\r', ' ') + "\n";
+        try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
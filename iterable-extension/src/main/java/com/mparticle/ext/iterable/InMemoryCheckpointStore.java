@@ -0,0 +1,40 @@
+package com.mparticle.ext.iterable;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the checkpoints of the most recent batches in memory, which covers redeliveries that reach the same
+ * (warm) process.
+ */
+public class InMemoryCheckpointStore implements CheckpointStore {
+
+    private final LinkedHashMap<String, Set<String>> deliveredEvents;
+
+    public InMemoryCheckpointStore(final int maxBatches) {
+        this.deliveredEvents = new LinkedHashMap<String, Set<String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<String>> eldest) {
+                return size() > maxBatches;
+            }
+        };
+    }
+
+    @Override
+    public synchronized boolean isDelivered(String batchId, String eventId) {
+        Set<String> events = deliveredEvents.get(batchId);
+        return events != null && events.contains(eventId);
+    }
+
+    @Override
+    public synchronized void delivered(String batchId, String eventId) {
+        deliveredEvents.computeIfAbsent(batchId, k -> new HashSet<>()).add(eventId);
+    }
+
+    @Override
+    public synchronized void completed(String batchId) {
+        deliveredEvents.remove(batchId);
+    }
+}
@@ -0,0 +1,284 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.RegionalIterableServices;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import okhttp3.HttpUrl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line tool that replays an archive of EventProcessingRequests, one per line, into Iterable, i.e. to
+ * backfill a new Iterable project.
+ *
+ * Records are read incrementally (see NdjsonReader) and processed with bounded concurrency and an optional rate
+ * limit, batches for the same user in order. The offset up to which every record has finished is checkpointed
+ * periodically and on shutdown, and a rerun with the same checkpoint directory resumes from there. Events that
+ * were delivered past that offset are remembered by a FileCheckpointStore, so resuming doesn't resend them.
+ * Records that can't be parsed or fail are appended to failed.ndjson in the checkpoint directory.
+ *
+ * Usage: IterableBackfill --input FILE[.gz] --checkpoint-dir DIR [--base-url URL] [--concurrency N]
+ * [--rate RECORDS_PER_SECOND] [--interval-seconds N]
+ */
+public class IterableBackfill {
+
+    static final String CHECKPOINT_FILE = "backfill.checkpoint";
+    static final String FAILED_FILE = "failed.ndjson";
+
+    private final IterableExtension processor;
+    private final MessageSerializer serializer;
+    private final Path input;
+    private final Path checkpointDir;
+    private final int concurrency;
+    private final RateLimiter rateLimiter;
+    private final long intervalMillis;
+    private final PrintStream progress;
+
+    /**
+     * Records that finished ahead of the first unfinished one, by sequence number, with their end offset.
+     */
+    private final TreeMap<Long, Long> finishedAhead = new TreeMap<>();
+    private long nextToFinish;
+    private long checkpointOffset;
+    private long checkpointRecords;
+    /**
+     * Whether the checkpoint was read, before that there's nothing to write.
+     */
+    private boolean resumed;
+
+    private final AtomicLong records = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public static class Summary {
+        public final long records;
+        public final long events;
+        public final long failed;
+        public final long offset;
+
+        Summary(long records, long events, long failed, long offset) {
+            this.records = records;
+            this.events = events;
+            this.failed = failed;
+            this.offset = offset;
+        }
+    }
+
+    public IterableBackfill(IterableExtension processor, MessageSerializer serializer, Path input, Path checkpointDir,
+                            int concurrency, double recordsPerSecond, long intervalMillis, PrintStream progress) {
+        this.processor = processor;
+        this.serializer = serializer;
+        this.input = input;
+        this.checkpointDir = checkpointDir;
+        this.concurrency = concurrency;
+        this.rateLimiter = new RateLimiter(recordsPerSecond);
+        this.intervalMillis = intervalMillis;
+        this.progress = progress;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (args.length % 2 != 0 || !options.containsKey("--input") || !options.containsKey("--checkpoint-dir")) {
+            System.err.println("Usage: IterableBackfill --input FILE[.gz] --checkpoint-dir DIR [--base-url URL] " +
+                    "[--concurrency N] [--rate RECORDS_PER_SECOND] [--interval-seconds N]");
+            System.exit(2);
+        }
+        Path checkpointDir = Paths.get(options.get("--checkpoint-dir"));
+        Files.createDirectories(checkpointDir);
+
+        IterableExtension processor = new IterableExtension();
+        String baseUrl = options.get("--base-url");
+        if (baseUrl != null) {
+            HttpUrl url = HttpUrl.parse(baseUrl);
+            if (url == null) {
+                throw new IllegalArgumentException("Invalid base URL: " + baseUrl);
+            }
+            processor.setIterableService(IterableService.newInstance(IterableService.newClientBuilder().build(), url));
+            Map<IterableRegion, HttpUrl> baseUrls = new EnumMap<>(IterableRegion.class);
+            for (IterableRegion region : IterableRegion.values()) {
+                baseUrls.put(region, url);
+            }
+            processor.setRegionalServices(new RegionalIterableServices(baseUrls));
+        }
+        processor.setCheckpointStore(new FileCheckpointStore(checkpointDir.resolve("events")));
+
+        IterableBackfill backfill = new IterableBackfill(processor, new MessageSerializer(),
+                Paths.get(options.get("--input")), checkpointDir,
+                Integer.parseInt(options.getOrDefault("--concurrency", "8")),
+                Double.parseDouble(options.getOrDefault("--rate", "0")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(options.getOrDefault("--interval-seconds", "5"))),
+                System.err);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                backfill.writeCheckpoint();
+            } catch (IOException e) {
+                System.err.println("Failed to write checkpoint: " + e.getMessage());
+            }
+        }));
+        Summary summary = backfill.run();
+        System.err.println("Done: " + summary.records + " records, " + summary.events + " events, " +
+                summary.failed + " failed");
+    }
+
+    public Summary run() throws IOException, InterruptedException {
+        readCheckpoint();
+        int maxAhead = concurrency * 64;
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor(concurrency, concurrency * 16);
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "iterable-backfill-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.currentTimeMillis();
+        reporter.scheduleAtFixedRate(() -> report(start), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        long sequence = 0;
+        try (NdjsonReader reader = new NdjsonReader(input, checkpointOffset)) {
+            NdjsonReader.Record record;
+            while ((record = reader.next()) != null) {
+                awaitFinished(sequence - maxAhead + 1);
+                rateLimiter.acquire();
+                final long recordSequence = sequence++;
+                final NdjsonReader.Record current = record;
+                EventProcessingRequest request;
+                try {
+                    request = serializer.deserialize(current.json, EventProcessingRequest.class);
+                } catch (IOException | RuntimeException e) {
+                    fail(current);
+                    finished(recordSequence, current.endOffset);
+                    continue;
+                }
+                executor.submit(IterableExtension.getUserKey(request), () -> processor.processMessage(request))
+                        .whenComplete((response, error) -> {
+                            if (error == null) {
+                                records.incrementAndGet();
+                                List<?> requestEvents = request.getEvents();
+                                events.addAndGet(requestEvents == null ? 0 : requestEvents.size());
+                            } else {
+                                fail(current);
+                            }
+                            finished(recordSequence, current.endOffset);
+                        });
+            }
+            awaitFinished(sequence);
+        } finally {
+            reporter.shutdownNow();
+            executor.close();
+        }
+        writeCheckpoint();
+        report(start);
+        return new Summary(records.get(), events.get(), failed.get(), checkpointOffset);
+    }
+
+    private synchronized void finished(long sequence, long endOffset) {
+        finishedAhead.put(sequence, endOffset);
+        Long offset;
+        while ((offset = finishedAhead.remove(nextToFinish)) != null) {
+            checkpointOffset = offset;
+            checkpointRecords++;
+            nextToFinish++;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait until every record before the given sequence number has finished.
+     */
+    private synchronized void awaitFinished(long sequence) throws InterruptedException {
+        while (nextToFinish < sequence) {
+            wait();
+        }
+    }
+
+    private void fail(NdjsonReader.Record record) {
+        failed.incrementAndGet();
+        try {
+            synchronized (this) {
+                try (OutputStream out = Files.newOutputStream(checkpointDir.resolve(FAILED_FILE),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    out.write((record.json + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        } catch (IOException e) {
+            progress.println("Failed to record failed record: " + e.getMessage());
+        }
+    }
+
+    private void report(long start) {
+        long elapsedMillis = Math.max(1, System.currentTimeMillis() - start);
+        long done = records.get();
+        progress.printf("records=%d events=%d failed=%d rate=%.1f records/s %.1f events/s offset=%d%n",
+                done, events.get(), failed.get(), done * 1000.0 / elapsedMillis, events.get() * 1000.0 / elapsedMillis,
+                getCheckpointOffset());
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            progress.println("Failed to write checkpoint: " + e.getMessage());
+        }
+    }
+
+    private synchronized long getCheckpointOffset() {
+        return checkpointOffset;
+    }
+
+    private void readCheckpoint() throws IOException {
+        Path file = checkpointDir.resolve(CHECKPOINT_FILE);
+        if (!Files.exists(file)) {
+            synchronized (this) {
+                resumed = true;
+            }
+            return;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        if (lines.size() < 3) {
+            throw new IOException("Invalid checkpoint: " + file);
+        }
+        if (!lines.get(0).equals(input.toAbsolutePath().toString())) {
+            throw new IOException("Checkpoint " + file + " is for a different input: " + lines.get(0));
+        }
+        try {
+            synchronized (this) {
+                checkpointOffset = Long.parseLong(lines.get(1));
+                checkpointRecords = Long.parseLong(lines.get(2));
+                resumed = true;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid checkpoint: " + file);
+        }
+    }
+
+    /**
+     * Atomically replace the checkpoint: the input, the offset every record before has finished at, and the
+     * number of those records.
+     */
+    synchronized void writeCheckpoint() throws IOException {
+        if (!resumed) {
+            return;
+        }
+        Path file = checkpointDir.resolve(CHECKPOINT_FILE);
+        Path temp = file.resolveSibling(CHECKPOINT_FILE + ".tmp");
+        Files.write(temp, (input.toAbsolutePath() + "\n" + checkpointOffset + "\n" + checkpointRecords + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,188 @@
+package com.mparticle.ext.iterable;
+
+import com.amazonaws.services.lambda.runtime.Context;
+import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mparticle.iterable.Deadline;
+import com.mparticle.iterable.IterableMetrics;
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Handles many serialized Messages per invocation, i.e. when replaying mParticle data from a queue.
+ *
+ * The input is either a JSON array of Messages, an SQS or Kinesis style {"Records": [...]} batch, or Messages
+ * separated by whitespace (i.e. one per line). Messages run through the same IterableExtension as
+ * IterableLambdaEndpoint with bounded parallelism, batches for the same user in order. The output is a JSON array
+ * with one result per input record, in input order: {"index": 0, "response": {...}} or {"index": 0, "error": "..."}.
+ */
+public class IterableBatchLambdaEndpoint implements RequestStreamHandler {
+
+    /**
+     * Number of messages processed at the same time, 8 when unset.
+     */
+    static final String PARALLELISM_ENV = "ITERABLE_BATCH_PARALLELISM";
+    static final int DEFAULT_PARALLELISM = 8;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final IterableExtension processor;
+    private final MessageSerializer serializer;
+    private final KeyedOrderedExecutor executor;
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+
+    public IterableBatchLambdaEndpoint() {
+        this(IterableLambdaEndpoint.processor, IterableLambdaEndpoint.serializer, getParallelism());
+    }
+
+    IterableBatchLambdaEndpoint(IterableExtension processor, MessageSerializer serializer, int parallelism) {
+        this.processor = processor;
+        this.serializer = serializer;
+        this.executor = new KeyedOrderedExecutor(parallelism, parallelism * 4);
+    }
+
+    private static int getParallelism() {
+        String parallelism = System.getenv(PARALLELISM_ENV);
+        return parallelism == null || parallelism.isEmpty() ? DEFAULT_PARALLELISM : Integer.parseInt(parallelism);
+    }
+
+    public static class Result {
+        public final int index;
+        public final Message response;
+        public final String error;
+
+        Result(int index, Message response, String error) {
+            this.index = index;
+            this.response = response;
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    @Override
+    public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        IterableLambdaEndpoint.onInvocation();
+        Deadline deadline = context == null ? null :
+                Deadline.afterMillis(context.getRemainingTimeInMillis() - IterableLambdaEndpoint.RESPONSE_RESERVE_MILLIS);
+        List<Result> results = process(readRecords(input), deadline);
+        ArrayNode json = mapper.createArrayNode();
+        for (Result result : results) {
+            ObjectNode node = json.addObject();
+            node.put("index", result.index);
+            if (result.isSuccess()) {
+                node.set("response", mapper.readTree(serializer.serialize(result.response)));
+            } else {
+                node.put("error", result.error);
+            }
+        }
+        mapper.writeValue(output, json);
+    }
+
+    /**
+     * Split the input into the JSON text of each serialized Message.
+     */
+    static List<String> readRecords(InputStream input) throws IOException {
+        List<String> records = new ArrayList<>();
+        try (MappingIterator<JsonNode> values = mapper.readerFor(JsonNode.class).readValues(input)) {
+            while (values.hasNextValue()) {
+                JsonNode value = values.nextValue();
+                if (value.isArray()) {
+                    for (JsonNode message : value) {
+                        records.add(message.toString());
+                    }
+                } else if (value.has("Records")) {
+                    for (JsonNode record : value.get("Records")) {
+                        records.add(getRecordBody(record));
+                    }
+                } else {
+                    records.add(value.toString());
+                }
+            }
+        }
+        return records;
+    }
+
+    private static String getRecordBody(JsonNode record) {
+        if (record.has("body")) {
+            return record.get("body").asText();
+        }
+        JsonNode kinesis = record.get("kinesis");
+        if (kinesis != null && kinesis.has("data")) {
+            return new String(Base64.getDecoder().decode(kinesis.get("data").asText()), StandardCharsets.UTF_8);
+        }
+        return record.toString();
+    }
+
+    /**
+     * Deserialize and process each record, a record that can't be deserialized only fails its own result.
+     */
+    public List<Result> process(List<String> records, Deadline deadline) {
+        List<Message> messages = new ArrayList<>(records.size());
+        List<String> errors = new ArrayList<>(records.size());
+        for (String record : records) {
+            try {
+                messages.add(serializer.deserialize(record, Message.class));
+                errors.add(null);
+            } catch (IOException | RuntimeException e) {
+                metrics.increment("batchEndpoint.invalidRecords");
+                messages.add(null);
+                errors.add("Invalid message: " + e.getMessage());
+            }
+        }
+        List<Result> results = processMessages(messages, deadline);
+        for (int i = 0; i < results.size(); i++) {
+            if (errors.get(i) != null) {
+                results.set(i, new Result(i, null, errors.get(i)));
+            }
+        }
+        return results;
+    }
+
+    public List<Result> processMessages(List<Message> messages, Deadline deadline) {
+        List<CompletableFuture<Message>> futures = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            if (message == null) {
+                futures.add(null);
+                continue;
+            }
+            String key = message instanceof EventProcessingRequest ?
+                    IterableExtension.getUserKey((EventProcessingRequest) message) : String.valueOf(message.getId());
+            futures.add(executor.submit(key, () -> processor.processMessage(message, deadline)));
+        }
+        List<Result> results = new ArrayList<>(messages.size());
+        for (int i = 0; i < futures.size(); i++) {
+            CompletableFuture<Message> future = futures.get(i);
+            if (future == null) {
+                results.add(new Result(i, null, "Missing message"));
+                continue;
+            }
+            try {
+                results.add(new Result(i, future.join(), null));
+                metrics.increment("batchEndpoint.messages.processed");
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() == null ? e : e.getCause();
+                results.add(new Result(i, null, cause.getClass().getSimpleName() + ": " + cause.getMessage()));
+                metrics.increment("batchEndpoint.messages.failed");
+            }
+        }
+        return results;
+    }
+}
@@ -4,16 +4,20 @@ package com.mparticle.ext.iterable;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.mparticle.iterable.*;
 import com.mparticle.sdk.MessageProcessor;
+import com.mparticle.sdk.model.Message;
 import com.mparticle.sdk.model.audienceprocessing.Audience;
 import com.mparticle.sdk.model.audienceprocessing.AudienceMembershipChangeRequest;
 import com.mparticle.sdk.model.audienceprocessing.AudienceMembershipChangeResponse;
 import com.mparticle.sdk.model.audienceprocessing.UserProfile;
 import com.mparticle.sdk.model.eventprocessing.*;
 import com.mparticle.sdk.model.registration.*;
+import retrofit2.Call;
 import retrofit2.Response;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 public class IterableExtension extends MessageProcessor {
@@ -24,23 +28,521 @@ public class IterableExtension extends MessageProcessor {
     public static final String SETTING_APNS_KEY = "apnsProdIntegrationName";
     public static final String SETTING_APNS_SANDBOX_KEY = "apnsSandboxIntegrationName";
     public static final String SETTING_LIST_ID = "listId";
-    IterableService iterableService;
+    public static final String SETTING_DATA_CENTER = "dataCenter";
+    public static final String SETTING_EVENT_ALLOW_LIST = "eventNameAllowList";
+    public static final String SETTING_EVENT_DENY_LIST = "eventNameDenyList";
+    public static final String SETTING_ATTRIBUTE_ALLOW_LIST = "attributeAllowList";
+    public static final String SETTING_ATTRIBUTE_DENY_LIST = "attributeDenyList";
+    static final String ROUTE_LIST_SUBSCRIBE = "lists/subscribe";
+    static final String ROUTE_LIST_UNSUBSCRIBE = "lists/unsubscribe";
+    /**
+     * How many times a list chunk rejected for overload is sent, each time at the batch sizer's reduced size.
+     */
+    static final int MAX_LIST_CHUNK_ATTEMPTS = 3;
+    /**
+     * Checkpoint of the batch's userUpdate, which isn't made for any one event.
+     */
+    static final String USER_UPDATE_CHECKPOINT = "userUpdate";
+    public static final long DEFAULT_DEADLINE_SAFETY_MILLIS = 100;
+    /**
+     * Projected cost of a call to a route we have no latency samples for yet.
+     */
+    public static final long DEFAULT_PROJECTED_CALL_MILLIS = 150;
+    /**
+     * Phases of processEventProcessingRequest() in flight recordings: sort, placeholder, updateUser, pushOpens
+     * and dispatch.
+     */
+    static final FlightRecorderEvents.Type BATCH_PHASE = FlightRecorderEvents.define("com.mparticle.ext.iterable.BatchPhase",
+            "Batch Phase", "phase", String.class, "eventCount", int.class, "apiKeyHash", String.class);
+    /**
+     * Created on first use unless set, see getUsService().
+     */
+    volatile IterableService iterableService;
+    CoalescingDispatcher coalescingDispatcher;
+    KeyedOrderedExecutor orderedExecutor;
+    PriorityScheduler priorityScheduler;
+    TenantBulkheads tenantBulkheads;
+    AdaptiveBatchSizer batchSizer;
+    SpillSink spillSink;
+    Set<String> embeddedUserAttributes;
+    PushOpenDeduper pushOpenDeduper;
+    DeviceTokenCache deviceTokenCache;
+    volatile RegionalIterableServices regionalServices;
+    CheckpointStore checkpointStore;
+    /**
+     * Headroom kept on top of a call's projected latency before starting it against a deadline.
+     */
+    long deadlineSafetyMillis = DEFAULT_DEADLINE_SAFETY_MILLIS;
+    private final ThreadLocal<BatchContext> currentBatch = new ThreadLocal<>();
+
+    /**
+     * Use a client built by the host, i.e. one with a HedgingInterceptor, instead of IterableService.newInstance().
+     */
+    public void setIterableService(IterableService iterableService) {
+        this.iterableService = iterableService;
+    }
+
+    /**
+     * Only embed the given user attributes in purchase and cart payloads, relying on the batch's userUpdate for the
+     * rest. An empty set references the user by email/userId only. Null, the default, embeds every attribute.
+     */
+    public void setEmbeddedUserAttributes(Set<String> embeddedUserAttributes) {
+        this.embeddedUserAttributes = embeddedUserAttributes;
+    }
+
+    /**
+     * Suppress push opens and receipts that were already sent for the same user and message.
+     */
+    public void setPushOpenDeduper(PushOpenDeduper pushOpenDeduper) {
+        this.pushOpenDeduper = pushOpenDeduper;
+    }
+
+    /**
+     * Skip registerDeviceToken for tokens that were registered recently.
+     */
+    public void setDeviceTokenCache(DeviceTokenCache deviceTokenCache) {
+        this.deviceTokenCache = deviceTokenCache;
+    }
+
+    /**
+     * Record which events of a batch were delivered, so that a redelivered batch only resends the events that
+     * failed. With a checkpoint store, a failing event no longer stops the rest of the batch: failures are thrown
+     * together once every event was processed.
+     */
+    public void setCheckpointStore(CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Services for accounts outside the US data center, created with the default client when not set.
+     */
+    public void setRegionalServices(RegionalIterableServices regionalServices) {
+        this.regionalServices = regionalServices;
+    }
+
+    /**
+     * Route track, userUpdate and updateSubscriptions calls through Iterable's bulk endpoints. Calls made while
+     * processing an EventProcessingRequest are awaited once the whole batch has been dispatched.
+     */
+    public void setCoalescingDispatcher(CoalescingDispatcher coalescingDispatcher) {
+        this.coalescingDispatcher = coalescingDispatcher;
+    }
+
+    /**
+     * Where to put the unsent events of a batch that ran out of time. Without one, running out of time fails the
+     * batch so that mParticle retries it.
+     */
+    public void setSpillSink(SpillSink spillSink) {
+        this.spillSink = spillSink;
+    }
+
+    /**
+     * Open a connection to the US data center ahead of the first call, i.e. while a message is being decoded after
+     * a freeze (see FreezeDetector). Failures are ignored, the first call will just open its own connection.
+     */
+    public void warmUp() {
+        try {
+            getUsService().warmUp().execute();
+            IterableMetrics.getInstance().increment("freeze.warmUps");
+        } catch (IOException | RuntimeException e) {
+            IterableMetrics.getInstance().increment("freeze.warmUpErrors");
+        }
+    }
+
+    /**
+     * Process a message that has to be done by the given deadline, i.e. the end of the Lambda invocation.
+     * Calls that aren't projected to finish in time are not started.
+     */
+    public Message processMessage(Message message, Deadline deadline) throws IOException {
+        Deadline previous = Deadline.setCurrent(deadline);
+        try {
+            return processMessage(message);
+        } finally {
+            Deadline.setCurrent(previous);
+        }
+    }
+
+    /**
+     * Traces the processing of every message as the root span of its calls, see Tracing.
+     */
+    @Override
+    public Message processMessage(Message message) throws IOException {
+        Span span = Tracing.startSpan("mparticle " + message.getType());
+        if (span == Span.NOOP) {
+            return super.processMessage(message);
+        }
+        span.setAttribute("message.type", String.valueOf(message.getType()));
+        span.setAttribute("message.id", String.valueOf(message.getId()));
+        if (message instanceof EventProcessingRequest && ((EventProcessingRequest) message).getEvents() != null) {
+            span.setAttribute("message.events", ((EventProcessingRequest) message).getEvents().size());
+        }
+        Span previous = Tracing.setCurrent(span);
+        try {
+            return super.processMessage(message);
+        } catch (IOException | RuntimeException e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            Tracing.setCurrent(previous);
+            span.end();
+        }
+    }
+
+    /**
+     * Process messages concurrently via submitMessage(), keeping batches for the same user in submission order.
+     */
+    public void setOrderedExecutor(KeyedOrderedExecutor orderedExecutor) {
+        this.orderedExecutor = orderedExecutor;
+    }
+
+    /**
+     * Queue a message for processing on the ordered executor. Event batches are keyed by user (see getUserKey()) so
+     * that an updateEmail can't race a track sent for the new email, other messages have no ordering constraint.
+     */
+    public CompletableFuture<Message> submitMessage(Message message) {
+        if (orderedExecutor == null) {
+            throw new IllegalStateException("submitMessage() requires an ordered executor.");
+        }
+        String key = message instanceof EventProcessingRequest ?
+                getUserKey((EventProcessingRequest) message) : String.valueOf(message.getId());
+        return orderedExecutor.submit(key, () -> processMessage(message));
+    }
+
+    /**
+     * The identity used to order batches for the same user: customer ID when present, since it survives email
+     * changes, then email, then the same fallback used for placeholder emails.
+     */
+    static String getUserKey(EventProcessingRequest request) {
+        String email = null;
+        if (request.getUserIdentities() != null) {
+            for (UserIdentity identity : request.getUserIdentities()) {
+                if (identity.getType().equals(UserIdentity.Type.CUSTOMER) && !isEmpty(identity.getValue())) {
+                    return identity.getValue();
+                } else if (identity.getType().equals(UserIdentity.Type.EMAIL) && !isEmpty(identity.getValue())) {
+                    email = identity.getValue();
+                }
+            }
+        }
+        if (email != null) {
+            return email;
+        }
+        try {
+            return getPlaceholderEmail(request);
+        } catch (IOException e) {
+            return String.valueOf(request.getId());
+        }
+    }
 
     @Override
     public EventProcessingResponse processEventProcessingRequest(EventProcessingRequest request) throws IOException {
-        if (iterableService == null) {
-            iterableService = IterableService.newInstance();
+        getUsService();
+        BatchContext batch = new BatchContext(Deadline.current());
+        currentBatch.set(batch);
+        try {
+            recordPhase("sort", request, () -> {
+                Collections.sort(
+                        request.getEvents(),
+                        (a, b) -> a.getTimestamp() > b.getTimestamp() ? 1 : a.getTimestamp() == b.getTimestamp() ? 0 : -1
+                );
+                BatchCompactor.compact(request);
+            });
+            recordPhase("placeholder", request, () -> insertPlaceholderEmail(request));
+            try {
+                recordPhase("updateUser", request, () -> updateUser(request));
+                recordPhase("pushOpens", request, () -> processPushOpens(request));
+                recordPhase("dispatch", request, () -> {
+                    dispatchEvents(request, batch);
+                    dispatchCart(request, batch);
+                    awaitPending(request, batch);
+                });
+                batch.throwFailures(request.getEvents().size());
+            } catch (DeadlineExceededException e) {
+                //calls made for the events dispatched so far may still be running
+                checkpointPending(request, batch);
+                int total = request.getEvents().size();
+                List<Event> unsent = new ArrayList<>();
+                for (int i = 0; i < total; i++) {
+                    Event event = request.getEvents().get(i);
+                    if (i >= batch.dispatchedEvents || batch.unfinishedEvents.contains(event) || batch.cartEvents.contains(event)) {
+                        unsent.add(event);
+                    }
+                }
+                if (unsent.isEmpty()) {
+                    batch.throwFailures(total);
+                    throw e;
+                }
+                if (spillSink == null) {
+                    throw new IOException(unsent.size() == total - batch.dispatchedEvents ?
+                            "Deadline reached with " + unsent.size() + " of " + total + " events left to dispatch" :
+                            "Deadline reached while waiting on pending calls, with " + unsent.size() + " of " + total + " events unsent", e);
+                }
+                spillSink.spill(request, unsent);
+                //the spill sink is responsible for them now, a redelivery only needs to resend the failures
+                for (Event event : unsent) {
+                    checkpoint(request, event);
+                }
+                batch.throwFailures(total);
+            }
+            if (checkpointStore != null && request.getId() != null) {
+                checkpointStore.completed(request.getId().toString());
+            }
+            return new EventProcessingResponse();
+        } finally {
+            currentBatch.remove();
+        }
+    }
+
+    private interface Phase {
+        void run() throws IOException;
+    }
+
+    /**
+     * Run a phase of processEventProcessingRequest() in a span of its own, recording a BATCH_PHASE event while a
+     * flight recording runs.
+     */
+    private static void recordPhase(String name, EventProcessingRequest request, Phase phase) throws IOException {
+        FlightRecorderEvents.Span span = BATCH_PHASE.begin();
+        Span traceSpan = Tracing.startSpan(name);
+        Span previous = Tracing.setCurrent(traceSpan);
+        try {
+            phase.run();
+        } catch (IOException | RuntimeException e) {
+            traceSpan.recordError(e);
+            throw e;
+        } finally {
+            Tracing.setCurrent(previous);
+            traceSpan.setAttribute("message.events", request.getEvents() == null ? 0 : request.getEvents().size());
+            traceSpan.end();
+            if (span.isRecording()) {
+                Map<String, String> settings = request.getAccount() == null ? null : request.getAccount().getAccountSettings();
+                span.commit(name, request.getEvents() == null ? 0 : request.getEvents().size(),
+                        FlightRecorderEvents.hash(settings == null ? null : settings.get(SETTING_API_KEY)));
+            }
         }
-        Collections.sort(
-                request.getEvents(),
-                (a, b) -> a.getTimestamp() > b.getTimestamp() ? 1 : a.getTimestamp() == b.getTimestamp() ? 0 : -1
-        );
-        insertPlaceholderEmail(request);
-        updateUser(request);
-        processPushOpens(request);
-        return super.processEventProcessingRequest(request);
     }
 
+    private void dispatchEvents(EventProcessingRequest request, BatchContext batch) throws IOException {
+        Event.Context context = new Event.Context(request);
+        for (Event event : request.getEvents()) {
+            event.setContext(context);
+            if (isDelivered(request, event)) {
+                IterableMetrics.getInstance().increment("checkpoint.skipped");
+                batch.dispatchedEvents++;
+                continue;
+            }
+            batch.currentEvent = event;
+            try {
+                dispatchEvent(event);
+                if (!batch.isPending(event) && !batch.failedEvents.contains(event)) {
+                    checkpoint(request, event);
+                }
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (IOException e) {
+                fail(batch, e);
+            } finally {
+                batch.currentEvent = null;
+            }
+            batch.dispatchedEvents++;
+        }
+    }
+
+    /**
+     * Add a failure to the batch's failures so that the batch goes on with its other events, failing the given
+     * events so that they aren't checkpointed. Without checkpoints, or outside of a batch, the failure is thrown
+     * right away: a redelivery resends everything anyway, so there's no point in going on.
+     */
+    private void fail(BatchContext batch, IOException e, Event... events) throws IOException {
+        if (e instanceof DeadlineExceededException || checkpointStore == null || batch == null) {
+            throw e;
+        }
+        batch.failures.add(e);
+        batch.failedEvents.addAll(Arrays.asList(events));
+    }
+
+    /**
+     * Send the batch's cart, checkpointing its cart actions once it reached Iterable.
+     */
+    private void dispatchCart(EventProcessingRequest request, BatchContext batch) throws IOException {
+        try {
+            sendCart(batch);
+        } catch (IOException e) {
+            fail(batch, e);
+            return;
+        }
+        for (Event event : batch.cartEvents) {
+            checkpoint(request, event);
+        }
+        batch.cartEvents.clear();
+    }
+
+    /**
+     * Wait for the batch's deferred calls and checkpoint the events they were made for.
+     *
+     * @throws DeadlineExceededException if some of them had no result by the deadline
+     */
+    private void awaitPending(EventProcessingRequest request, BatchContext batch) throws IOException {
+        checkpointPending(request, batch);
+        if (!batch.unfinishedEvents.isEmpty()) {
+            throw new DeadlineExceededException("Deadline reached while waiting on pending calls of " + batch.unfinishedEvents.size() + " events");
+        }
+    }
+
+    private void checkpointPending(EventProcessingRequest request, BatchContext batch) throws IOException {
+        for (Event event : batch.awaitPending()) {
+            checkpoint(request, event);
+        }
+        if (batch.coalescedUserUpdate != null && batch.isUserAttributesSent()) {
+            checkpoint(request, USER_UPDATE_CHECKPOINT);
+        }
+    }
+
+    private boolean isDelivered(EventProcessingRequest request, Event event) throws IOException {
+        return event.getId() != null && isDelivered(request, event.getId().toString());
+    }
+
+    /**
+     * @param checkpointId an event ID, or the name of a call that was made for the whole batch
+     */
+    private boolean isDelivered(EventProcessingRequest request, String checkpointId) throws IOException {
+        return checkpointStore != null && request.getId() != null
+                && checkpointStore.isDelivered(request.getId().toString(), checkpointId);
+    }
+
+    private void checkpoint(EventProcessingRequest request, Event event) throws IOException {
+        if (event.getId() != null) {
+            checkpoint(request, event.getId().toString());
+        }
+    }
+
+    private void checkpoint(EventProcessingRequest request, String checkpointId) throws IOException {
+        if (checkpointStore != null && request.getId() != null) {
+            checkpointStore.delivered(request.getId().toString(), checkpointId);
+        }
+    }
+
+    void dispatchEvent(Event event) throws IOException {
+        switch (event.getType()) {
+            case CUSTOM_EVENT:
+                processCustomEvent((CustomEvent) event);
+                break;
+            case PUSH_SUBSCRIPTION:
+                processPushSubscriptionEvent((PushSubscriptionEvent) event);
+                break;
+            case PUSH_MESSAGE_RECEIPT:
+                processPushMessageReceiptEvent((PushMessageReceiptEvent) event);
+                break;
+            case PRODUCT_ACTION:
+                processProductActionEvent((ProductActionEvent) event);
+                break;
+            case USER_ATTRIBUTE_CHANGE:
+                processUserAttributeChangeEvent((UserAttributeChangeEvent) event);
+                break;
+            default:
+                //push opens and identity changes are handled up-front for the whole batch
+        }
+    }
+
+    /**
+     * Run event calls on per-priority lanes, shedding low priority work under pressure. A shed call fails its event
+     * like any other failed call, so it's resent when mParticle redelivers the batch.
+     */
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+        this.priorityScheduler = priorityScheduler;
+    }
+
+    /**
+     * Split list subscribe and unsubscribe calls into chunks sized by the batch sizer, instead of sending all the
+     * members of a list in one call. Pass the same sizer to the CoalescingDispatcher to size its bulk calls.
+     */
+    public void setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+    }
+
+    /**
+     * Limit the calls in flight per API key, see TenantBulkheads. Pass the same bulkheads to the
+     * CoalescingDispatcher to limit its bulk calls too.
+     */
+    public void setTenantBulkheads(TenantBulkheads tenantBulkheads) {
+        this.tenantBulkheads = tenantBulkheads;
+    }
+
+    /**
+     * Execute a call made on behalf of an event of the given type. A call shed by the priority scheduler fails with
+     * a LoadShedException, so that its event isn't taken as delivered and mParticle's redelivery resends it.
+     */
+    private <T> Response<T> execute(Event.Type type, Call<T> call) throws IOException {
+        return execute(type, call, Call::execute);
+    }
+
+    private interface Send<T> {
+        Response<T> send(Call<T> call) throws IOException;
+    }
+
+    /**
+     * @param send executes the call itself, once it's through the deadline check, the bulkhead and the scheduler
+     */
+    private <T> Response<T> execute(Event.Type type, Call<T> call, Send<T> send) throws IOException {
+        BatchContext batch = currentBatch.get();
+        Deadline deadline = batch == null ? null : batch.deadline;
+        String route = getRoute(call);
+        if (deadline != null) {
+            long projected = route == null ? -1 : IterableMetrics.getInstance().latencyPercentile(route, 0.9);
+            if (projected < 0) {
+                projected = DEFAULT_PROJECTED_CALL_MILLIS;
+            }
+            if (deadline.remainingMillis() < projected + deadlineSafetyMillis) {
+                throw new DeadlineExceededException("Not calling " + route + ": " + deadline.remainingMillis() + "ms left, projected " + projected + "ms");
+            }
+        }
+        if (tenantBulkheads != null) {
+            okhttp3.Request request = call.request();
+            String apiKey = request == null ? null : request.url().queryParameter(IterableService.PARAM_API_KEY);
+            return tenantBulkheads.execute(apiKey, () -> schedule(type, call, deadline, route, send));
+        }
+        return schedule(type, call, deadline, route, send);
+    }
+
+    private <T> Response<T> schedule(Event.Type type, Call<T> call, Deadline deadline, String route, Send<T> send) throws IOException {
+        if (priorityScheduler == null) {
+            return send.send(call);
+        }
+        PriorityScheduler.Priority priority = priorityScheduler.priorityOf(type, route);
+        Span span = Tracing.current();
+        return priorityScheduler.execute(priority, () -> {
+            //the call runs on one of the scheduler's workers, which needs to know the deadline and span too
+            Deadline previous = Deadline.setCurrent(deadline);
+            Span previousSpan = Tracing.setCurrent(span);
+            try {
+                return send.send(call);
+            } finally {
+                Deadline.setCurrent(previous);
+                Tracing.setCurrent(previousSpan);
+            }
+        });
+    }
+
+    private static String getRoute(Call<?> call) {
+        okhttp3.Request request = call.request();
+        return request == null ? null : IterableService.route(request);
+    }
+
+    /**
+     * Wait for a coalesced call at the end of the current batch, or right away when called outside of one.
+     */
+    private void awaitCoalesced(CompletableFuture<IterableApiResponse> future, String errorMessage) throws IOException {
+        BatchContext batch = currentBatch.get();
+        if (batch != null) {
+            batch.defer(future, errorMessage);
+        } else {
+            BatchContext.await(future, errorMessage, null);
+        }
+    }
+
+    /**
+     * Track the batch's push opens. Like in dispatchEvents(), push opens delivered before are skipped and a failed
+     * one doesn't stop the others.
+     */
     private void processPushOpens(EventProcessingRequest processingRequest) throws IOException {
         if (processingRequest.getEvents() != null) {
             Event.Context context = new Event.Context(processingRequest);
@@ -50,59 +552,129 @@ public class IterableExtension extends MessageProcessor {
                     .collect(Collectors.toList());
 
             for (PushMessageOpenEvent event : pushOpenEvents) {
-                TrackPushOpenRequest request = new TrackPushOpenRequest();
-                List<UserIdentity> identities = context.getUserIdentities();
-                if (event.getPayload() != null && context.getUserIdentities() != null) {
-                    for (UserIdentity identity : identities) {
-                        if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
-                            request.email = identity.getValue();
-                        } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
-                            request.userId = identity.getValue();
-                        }
-                    }
-                    if (request.email == null && request.userId == null) {
-                        throw new IOException("Unable to process PushMessageOpenEvent - user has no email or customer id.");
-                    }
-                    ObjectMapper mapper = new ObjectMapper();
-                    Map<String, Object> payload = mapper.readValue(event.getPayload(), Map.class);
-                    if (payload.containsKey("itbl")) {
-                        //Android and iOS have differently encoded payload formats. See the tests for examples.
-                        if (context.getRuntimeEnvironment() instanceof AndroidRuntimeEnvironment) {
-                            Map<String, Object> iterableMap = mapper.readValue((String) payload.get("itbl"), Map.class);
-                            request.campaignId = Integer.parseInt(mapper.writeValueAsString(iterableMap.get("campaignId")));
-                            request.templateId = Integer.parseInt(mapper.writeValueAsString(iterableMap.get("templateId")));
-                            request.messageId = mapper.writeValueAsString(iterableMap.get("messageId"));
-                        } else {
-                            request.campaignId = Integer.parseInt(mapper.writeValueAsString(((Map) payload.get("itbl")).get("campaignId")));
-                            request.templateId = Integer.parseInt(mapper.writeValueAsString(((Map) payload.get("itbl")).get("templateId")));
-                            request.messageId = mapper.writeValueAsString(((Map) payload.get("itbl")).get("messageId"));
-                        }
-                        request.createdAt = (int) (event.getTimestamp() / 1000.0);
-                        Response<IterableApiResponse> response = iterableService.trackPushOpen(getApiKey(processingRequest), request).execute();
-                        if (response.isSuccessful() && !response.body().isSuccess()) {
-                            throw new IOException(response.body().toString());
-                        } else if (!response.isSuccessful()) {
-                            throw new IOException("Error sending push-open to Iterable: HTTP " + response.code());
-                        }
-                    }
+                if (isDelivered(processingRequest, event)) {
+                    IterableMetrics.getInstance().increment("checkpoint.skipped");
+                    continue;
+                }
+                try {
+                    processPushOpen(processingRequest, context, event);
+                } catch (IOException e) {
+                    fail(currentBatch.get(), e, event);
                 }
             }
         }
     }
 
-    private static String getApiKey(Event event) {
-        Account account = event.getContext().getAccount();
-        return account.getStringSetting(SETTING_API_KEY, true, null);
+    private void processPushOpen(EventProcessingRequest processingRequest, Event.Context context, PushMessageOpenEvent event) throws IOException {
+        TrackPushOpenRequest request = new TrackPushOpenRequest();
+        List<UserIdentity> identities = context.getUserIdentities();
+        if (event.getPayload() != null && context.getUserIdentities() != null) {
+            for (UserIdentity identity : identities) {
+                if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
+                    request.email = identity.getValue();
+                } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
+                    request.userId = identity.getValue();
+                }
+            }
+            if (request.email == null && request.userId == null) {
+                throw new IOException("Unable to process PushMessageOpenEvent - user has no email or customer id.");
+            }
+            ObjectMapper mapper = new ObjectMapper();
+            Map<String, Object> payload = mapper.readValue(event.getPayload(), Map.class);
+            if (payload.containsKey("itbl")) {
+                //Android and iOS have differently encoded payload formats. See the tests for examples.
+                if (context.getRuntimeEnvironment() instanceof AndroidRuntimeEnvironment) {
+                    Map<String, Object> iterableMap = mapper.readValue((String) payload.get("itbl"), Map.class);
+                    request.campaignId = Integer.parseInt(mapper.writeValueAsString(iterableMap.get("campaignId")));
+                    request.templateId = Integer.parseInt(mapper.writeValueAsString(iterableMap.get("templateId")));
+                    request.messageId = mapper.writeValueAsString(iterableMap.get("messageId"));
+                } else {
+                    request.campaignId = Integer.parseInt(mapper.writeValueAsString(((Map) payload.get("itbl")).get("campaignId")));
+                    request.templateId = Integer.parseInt(mapper.writeValueAsString(((Map) payload.get("itbl")).get("templateId")));
+                    request.messageId = mapper.writeValueAsString(((Map) payload.get("itbl")).get("messageId"));
+                }
+                request.createdAt = (int) (event.getTimestamp() / 1000.0);
+                trackPushOpen(Event.Type.PUSH_MESSAGE_OPEN, getService(processingRequest), getApiKey(processingRequest), request);
+            }
+        }
+    }
+
+    /**
+     * The service for the account's data center. US accounts use iterableService, unless the tenant bulkheads
+     * give each API key its own connections.
+     */
+    private IterableService getService(Account account) throws IOException {
+        IterableRegion region = getRegion(account);
+        if (tenantBulkheads != null && tenantBulkheads.isolatesConnections()) {
+            return tenantBulkheads.service(AccountProfile.of(account).apiKey, region);
+        }
+        if (region == IterableRegion.US) {
+            return getUsService();
+        }
+        RegionalIterableServices services = regionalServices;
+        if (services == null) {
+            synchronized (this) {
+                services = regionalServices;
+                if (services == null) {
+                    services = new RegionalIterableServices();
+                    regionalServices = services;
+                }
+            }
+        }
+        return services.get(region);
+    }
+
+    /**
+     * iterableService, created with the default client the first time it's needed. Creation is locked so that
+     * concurrent first calls share one client and connection pool.
+     */
+    private IterableService getUsService() {
+        IterableService service = iterableService;
+        if (service == null) {
+            synchronized (this) {
+                service = iterableService;
+                if (service == null) {
+                    service = IterableService.newInstance();
+                    iterableService = service;
+                }
+            }
+        }
+        return service;
+    }
+
+    private IterableService getService(Event event) throws IOException {
+        return getService(event.getContext().getAccount());
+    }
+
+    private IterableService getService(EventProcessingRequest event) throws IOException {
+        return getService(event.getAccount());
     }
 
-    private static String getApiKey(EventProcessingRequest event) {
-        Account account = event.getAccount();
-        return account.getStringSetting(SETTING_API_KEY, true, null);
+    private IterableService getService(AudienceMembershipChangeRequest event) throws IOException {
+        return getService(event.getAccount());
     }
 
-    private static String getApiKey(AudienceMembershipChangeRequest event) {
-        Account account = event.getAccount();
-        return account.getStringSetting(SETTING_API_KEY, true, null);
+    private static IterableRegion getRegion(Account account) throws IOException {
+        return AccountProfile.of(account).region;
+    }
+
+    /**
+     * The coalescing dispatcher sends through the US service, other data centers are called directly.
+     */
+    private boolean isCoalesced(Account account) throws IOException {
+        return coalescingDispatcher != null && getRegion(account) == IterableRegion.US;
+    }
+
+    private static String getApiKey(Event event) throws IOException {
+        return AccountProfile.of(event.getContext().getAccount()).apiKey;
+    }
+
+    private static String getApiKey(EventProcessingRequest event) throws IOException {
+        return AccountProfile.of(event.getAccount()).apiKey;
+    }
+
+    private static String getApiKey(AudienceMembershipChangeRequest event) throws IOException {
+        return AccountProfile.of(event.getAccount()).apiKey;
     }
 
     /**
@@ -136,14 +708,14 @@ public class IterableExtension extends MessageProcessor {
             Boolean sandboxed = ((IosRuntimeEnvironment) event.getContext().getRuntimeEnvironment()).getIsSandboxed();
             if (sandboxed != null && sandboxed) {
                 request.device.platform = Device.PLATFORM_APNS_SANDBOX;
-                request.device.applicationName = event.getContext().getAccount().getAccountSettings().get(SETTING_APNS_SANDBOX_KEY);
+                request.device.applicationName = AccountProfile.of(event.getContext().getAccount()).apnsSandboxIntegrationName;
             } else {
                 request.device.platform = Device.PLATFORM_APNS;
-                request.device.applicationName = event.getContext().getAccount().getAccountSettings().get(SETTING_APNS_KEY);
+                request.device.applicationName = AccountProfile.of(event.getContext().getAccount()).apnsIntegrationName;
             }
         } else if (event.getContext().getRuntimeEnvironment().getType().equals(RuntimeEnvironment.Type.ANDROID)) {
             request.device.platform = Device.PLATFORM_GCM;
-            request.device.applicationName = event.getContext().getAccount().getAccountSettings().get(SETTING_GCM_NAME_KEY);
+            request.device.applicationName = AccountProfile.of(event.getContext().getAccount()).gcmIntegrationName;
         } else {
             throw new IOException("Cannot process push subscription event for unknown RuntimeEnvironment type.");
         }
@@ -160,12 +732,23 @@ public class IterableExtension extends MessageProcessor {
             throw new IOException("Unable to construct Iterable RegisterDeviceTokenRequest - no user email.");
         }
 
-        Response<IterableApiResponse> response = iterableService.registerToken(getApiKey(event), request).execute();
+        String cacheKey = null;
+        if (deviceTokenCache != null) {
+            cacheKey = DeviceTokenCache.key(getApiKey(event), request.email, request.device.platform, request.device.applicationName, request.device.token);
+            if (deviceTokenCache.isRegistered(cacheKey)) {
+                return;
+            }
+        }
+
+        Response<IterableApiResponse> response = execute(Event.Type.PUSH_SUBSCRIPTION, getService(event).registerToken(getApiKey(event), request));
         if (response.isSuccessful() && !response.body().isSuccess()) {
             throw new IOException(response.body().toString());
         } else if (!response.isSuccessful()) {
             throw new IOException("Error sending push subscription to Iterable: " + response.body().toString());
         }
+        if (cacheKey != null) {
+            deviceTokenCache.registered(cacheKey);
+        }
     }
 
     void updateUser(EventProcessingRequest request) throws IOException {
@@ -173,53 +756,53 @@ public class IterableExtension extends MessageProcessor {
 
         if (request.getEvents() != null) {
 
-            List<UserIdentityChangeEvent> emailChangeEvents = request.getEvents().stream()
-                    .filter(e -> e.getType() == Event.Type.USER_IDENTITY_CHANGE)
-                    .map(e -> (UserIdentityChangeEvent) e)
-                    .filter(e -> e.getAdded() != null && e.getRemoved() != null)
-                    .filter(e -> e.getAdded().size() > 0 && e.getRemoved().size() > 0)
-                    .filter(e -> e.getAdded().get(0).getType().equals(UserIdentity.Type.EMAIL))
-                    .filter(e -> !isEmpty(e.getAdded().get(0).getValue()) && !isEmpty(e.getRemoved().get(0).getValue()))
-                    .collect(Collectors.toList());
-
-            List<UserIdentityChangeEvent> emailAddedEvents = request.getEvents().stream()
+            List<UserIdentityChangeEvent> emailEvents = request.getEvents().stream()
                     .filter(e -> e.getType() == Event.Type.USER_IDENTITY_CHANGE)
                     .map(e -> (UserIdentityChangeEvent) e)
                     .filter(e -> e.getAdded() != null && e.getAdded().size() > 0)
-                    .filter(e -> e.getRemoved() == null || e.getRemoved().size() == 0)
                     .filter(e -> e.getAdded().get(0).getType().equals(UserIdentity.Type.EMAIL))
                     .filter(e -> !isEmpty(e.getAdded().get(0).getValue()))
+                    //chains of changes can only be collapsed in the order they happened
+                    .sorted(Comparator.comparingLong(Event::getTimestamp))
                     .collect(Collectors.toList());
 
+            List<UpdateEmailRequest> emailChanges = new ArrayList<>();
+            List<Event> changeEvents = new ArrayList<>();
             String placeholderEmail = getPlaceholderEmail(request);
-            //convert from placeholder to email now that we have one
-            for (UserIdentityChangeEvent changeEvent : emailAddedEvents) {
-
+            for (UserIdentityChangeEvent changeEvent : emailEvents) {
+                if (isDelivered(request, changeEvent)) {
+                    IterableMetrics.getInstance().increment("checkpoint.skipped");
+                    continue;
+                }
                 UpdateEmailRequest updateEmailRequest = new UpdateEmailRequest();
-                updateEmailRequest.currentEmail = placeholderEmail;
                 //this is safe due to the filters above
                 updateEmailRequest.newEmail = changeEvent.getAdded().get(0).getValue();
-                Response<IterableApiResponse> response = iterableService.updateEmail(getApiKey(request), updateEmailRequest).execute();
-                if (response.isSuccessful()) {
-                    IterableApiResponse apiResponse = response.body();
-                    if (apiResponse != null && !apiResponse.isSuccess()) {
-                        throw new IOException("Error while calling updateEmail() on iterable: HTTP " + apiResponse.code);
-                    }
+                if (changeEvent.getRemoved() == null || changeEvent.getRemoved().size() == 0) {
+                    //convert from placeholder to email now that we have one
+                    updateEmailRequest.currentEmail = placeholderEmail;
+                } else if (!isEmpty(changeEvent.getRemoved().get(0).getValue())) {
+                    //convert from old to new email
+                    updateEmailRequest.currentEmail = changeEvent.getRemoved().get(0).getValue();
+                } else {
+                    continue;
                 }
+                emailChanges.add(updateEmailRequest);
+                changeEvents.add(changeEvent);
             }
 
-            //convert from old to new email
-            for (UserIdentityChangeEvent changeEvent : emailChangeEvents) {
-                UpdateEmailRequest updateEmailRequest = new UpdateEmailRequest();
-                //these are safe due to the filters above
-                updateEmailRequest.currentEmail = changeEvent.getRemoved().get(0).getValue();
-                updateEmailRequest.newEmail = changeEvent.getAdded().get(0).getValue();
-                Response<IterableApiResponse> response = iterableService.updateEmail(getApiKey(request), updateEmailRequest).execute();
-                if (response.isSuccessful()) {
-                    IterableApiResponse apiResponse = response.body();
-                    if (apiResponse != null && !apiResponse.isSuccess()) {
-                        throw new IOException("Error while calling updateEmail() on iterable: HTTP " + apiResponse.code);
+            //only the net result of a chain of changes, i.e. a->b->c, needs to reach Iterable
+            for (UpdateEmailRequest updateEmailRequest : BatchCompactor.compactEmailChanges(emailChanges)) {
+                try {
+                    Response<IterableApiResponse> response = execute(Event.Type.USER_IDENTITY_CHANGE, getService(request).updateEmail(getApiKey(request), updateEmailRequest));
+                    if (response.isSuccessful()) {
+                        IterableApiResponse apiResponse = response.body();
+                        if (apiResponse != null && !apiResponse.isSuccess()) {
+                            throw new IOException("Error while calling updateEmail() on iterable: HTTP " + apiResponse.code);
+                        }
                     }
+                } catch (IOException e) {
+                    //none of the chain's changes reached Iterable, so all of them have to be redelivered
+                    fail(currentBatch.get(), e, chainOf(updateEmailRequest, emailChanges, changeEvents).toArray(new Event[0]));
                 }
             }
         }
@@ -234,41 +817,78 @@ public class IterableExtension extends MessageProcessor {
                     userUpdateRequest.userId = identity.getValue();
                 }
             }
-            if (!isEmpty(userUpdateRequest.email) || !isEmpty(userUpdateRequest.userId)) {
+            if ((!isEmpty(userUpdateRequest.email) || !isEmpty(userUpdateRequest.userId)) && !isDelivered(request, USER_UPDATE_CHECKPOINT)) {
                 userUpdateRequest.dataFields = context.getUserAttributes();
-                Response<IterableApiResponse> response = iterableService.userUpdate(getApiKey(request), userUpdateRequest).execute();
-                if (response.isSuccessful()) {
-                    IterableApiResponse apiResponse = response.body();
-                    if (apiResponse != null && !apiResponse.isSuccess()) {
-                        throw new IOException("Error while calling updateUser() on iterable: HTTP " + apiResponse.code);
+                BatchContext batch = currentBatch.get();
+                if (isCoalesced(request.getAccount())) {
+                    CompletableFuture<IterableApiResponse> future = coalescingDispatcher.userUpdate(getApiKey(request), userUpdateRequest);
+                    awaitCoalesced(future, "Error while calling updateUser() on iterable");
+                    if (batch != null) {
+                        //checkpointed along with the batch's pending calls, once it succeeded
+                        batch.coalescedUserUpdate = future;
+                    } else {
+                        checkpoint(request, USER_UPDATE_CHECKPOINT);
+                    }
+                    return;
+                }
+                try {
+                    Response<IterableApiResponse> response = execute(Event.Type.USER_ATTRIBUTE_CHANGE, getService(request).userUpdate(getApiKey(request), userUpdateRequest));
+                    if (response.isSuccessful()) {
+                        IterableApiResponse apiResponse = response.body();
+                        if (apiResponse != null && !apiResponse.isSuccess()) {
+                            throw new IOException("Error while calling updateUser() on iterable: HTTP " + apiResponse.code);
+                        }
+                        if (batch != null) {
+                            batch.userAttributesSent = true;
+                        }
+                        checkpoint(request, USER_UPDATE_CHECKPOINT);
                     }
+                } catch (IOException e) {
+                    //the batch won't be completed, so a redelivery sends the userUpdate again
+                    fail(batch, e);
                 }
             }
         }
     }
 
+    /**
+     * The events of the chain of email changes that compactEmailChanges() collapsed into the given one.
+     */
+    private static List<Event> chainOf(UpdateEmailRequest migration, List<UpdateEmailRequest> changes, List<Event> changeEvents) {
+        List<Event> chain = new ArrayList<>();
+        String email = migration.currentEmail;
+        for (int i = 0; i < changes.size(); i++) {
+            if (email != null && email.equalsIgnoreCase(changes.get(i).currentEmail)) {
+                chain.add(changeEvents.get(i));
+                email = changes.get(i).newEmail;
+            }
+        }
+        return chain;
+    }
+
     private static boolean isEmpty(CharSequence chars) {
         return chars == null || "".equals(chars);
     }
 
     @Override
     public void processProductActionEvent(ProductActionEvent event) throws IOException {
+        if (event.getAction().equals(ProductActionEvent.Action.ADD_TO_CART) || event.getAction().equals(ProductActionEvent.Action.REMOVE_FROM_CART)) {
+            BatchContext batch = currentBatch.get();
+            if (batch == null) {
+                //not part of a batch, send this action on its own
+                batch = new BatchContext(null);
+                updateCart(batch, event);
+                sendCart(batch);
+            } else {
+                updateCart(batch, event);
+                batch.cartEvents.add(event);
+            }
+            return;
+        }
         if (event.getAction().equals(ProductActionEvent.Action.PURCHASE)) {
             TrackPurchaseRequest purchaseRequest = new TrackPurchaseRequest();
             purchaseRequest.createdAt = (int) (event.getTimestamp() / 1000.0);
-            List<UserIdentity> identities = event.getContext().getUserIdentities();
-            ApiUser apiUser = new ApiUser();
-            if (identities != null) {
-                for (UserIdentity identity : identities) {
-                    if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
-                        apiUser.email = identity.getValue();
-                    } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
-                        apiUser.userId = identity.getValue();
-                    }
-                }
-            }
-            apiUser.dataFields = event.getContext().getUserAttributes();
-            purchaseRequest.user = apiUser;
+            purchaseRequest.user = getApiUser(event.getContext());
             purchaseRequest.total = event.getTotalAmount();
             if (event.getProducts() != null) {
                 purchaseRequest.items = event.getProducts().stream()
@@ -276,13 +896,130 @@ public class IterableExtension extends MessageProcessor {
                         .collect(Collectors.toList());
             }
 
-            Response<IterableApiResponse> response = iterableService.trackPurchase(getApiKey(event), purchaseRequest).execute();
+            Response<IterableApiResponse> response = execute(Event.Type.PRODUCT_ACTION, getService(event).trackPurchase(getApiKey(event), purchaseRequest));
             if (response.isSuccessful() && !response.body().isSuccess()) {
                 throw new IOException(response.body().toString());
             } else if (!response.isSuccessful()) {
                 throw new IOException("Error sending custom event to Iterable: HTTP " + response.code());
             }
+            BatchContext batch = currentBatch.get();
+            if (batch != null) {
+                if (batch.cart == null) {
+                    batch.cart = new Cart(Collections.emptyList());
+                }
+                batch.cart.purchased();
+            }
+        }
+    }
+
+    /**
+     * Apply a cart action to the batch's cart, starting from the user's cart in Iterable.
+     */
+    private void updateCart(BatchContext batch, ProductActionEvent event) throws IOException {
+        if (batch.cart == null) {
+            batch.cart = new Cart(getCurrentCart(event));
+        }
+        Cart cart = batch.cart;
+        if (event.getProducts() != null) {
+            for (Product product : event.getProducts()) {
+                if (event.getAction().equals(ProductActionEvent.Action.ADD_TO_CART)) {
+                    cart.add(convertToCommerceItem(product));
+                } else {
+                    cart.remove(convertToCommerceItem(product));
+                }
+            }
+        }
+        batch.cartEvent = event;
+    }
+
+    /**
+     * The cart the user has in Iterable, which updateCart would replace.
+     */
+    private List<CommerceItem> getCurrentCart(ProductActionEvent event) throws IOException {
+        String email = null, userId = null;
+        List<UserIdentity> identities = event.getContext().getUserIdentities();
+        if (identities != null) {
+            for (UserIdentity identity : identities) {
+                if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
+                    email = identity.getValue();
+                } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
+                    userId = identity.getValue();
+                }
+            }
+        }
+        Call<GetUserResponse> call;
+        if (!isEmpty(email)) {
+            call = getService(event).getUserByEmail(getApiKey(event), email);
+        } else if (!isEmpty(userId)) {
+            call = getService(event).getUserByUserId(getApiKey(event), userId);
+        } else {
+            throw new IOException("Unable to update the cart - user has no email or customer id.");
+        }
+        Response<GetUserResponse> response = execute(Event.Type.PRODUCT_ACTION, call);
+        if (response.code() == 404) {
+            return Collections.emptyList();
+        } else if (!response.isSuccessful()) {
+            throw new IOException("Error fetching the cart from Iterable: HTTP " + response.code());
+        }
+        GetUserResponse body = response.body();
+        if (body == null || body.user == null || body.user.dataFields == null || body.user.dataFields.shoppingCartItems == null) {
+            return Collections.emptyList();
+        }
+        return body.user.dataFields.shoppingCartItems;
+    }
+
+    /**
+     * Send the batch's cart, if its cart actions changed it.
+     */
+    private void sendCart(BatchContext batch) throws IOException {
+        if (batch.cart == null || !batch.cart.isChanged()) {
+            return;
+        }
+        ProductActionEvent event = batch.cartEvent;
+        UpdateCartRequest updateCartRequest = new UpdateCartRequest();
+        updateCartRequest.user = getApiUser(event.getContext());
+        updateCartRequest.items = batch.cart.getItems();
+        Response<IterableApiResponse> response = execute(Event.Type.PRODUCT_ACTION, getService(event).updateCart(getApiKey(event), updateCartRequest));
+        if (response.isSuccessful() && !response.body().isSuccess()) {
+            throw new IOException(response.body().toString());
+        } else if (!response.isSuccessful()) {
+            throw new IOException("Error sending cart update to Iterable: HTTP " + response.code());
+        }
+    }
+
+    /**
+     * The user of a purchase or cart payload. Once the batch's userUpdate has sent the user attributes, only the
+     * embedded ones (all of them by default) are repeated.
+     */
+    private ApiUser getApiUser(Event.Context context) {
+        List<UserIdentity> identities = context.getUserIdentities();
+        ApiUser apiUser = new ApiUser();
+        if (identities != null) {
+            for (UserIdentity identity : identities) {
+                if (identity.getType().equals(UserIdentity.Type.EMAIL)) {
+                    apiUser.email = identity.getValue();
+                } else if (identity.getType().equals(UserIdentity.Type.CUSTOMER)) {
+                    apiUser.userId = identity.getValue();
+                }
+            }
         }
+        apiUser.dataFields = context.getUserAttributes();
+        BatchContext batch = currentBatch.get();
+        if (embeddedUserAttributes != null && apiUser.dataFields != null && batch != null && batch.isUserAttributesSent()) {
+            Map<String, String> embedded = new HashMap<>();
+            long bytesSaved = 0;
+            for (Map.Entry<String, String> attribute : apiUser.dataFields.entrySet()) {
+                if (embeddedUserAttributes.contains(attribute.getKey())) {
+                    embedded.put(attribute.getKey(), attribute.getValue());
+                } else {
+                    //roughly "key":"value",
+                    bytesSaved += attribute.getKey().length() + String.valueOf(attribute.getValue()).length() + 6;
+                }
+            }
+            apiUser.dataFields = embedded.isEmpty() ? null : embedded;
+            IterableMetrics.getInstance().add("payload.userAttributes.bytesSaved", bytesSaved);
+        }
+        return apiUser;
     }
 
     CommerceItem convertToCommerceItem(Product product) {
@@ -430,6 +1167,12 @@ public class IterableExtension extends MessageProcessor {
         eventSettings.add(apiKey);
         audienceSettings.add(apiKey);
 
+        Setting dataCenter = new TextSetting(SETTING_DATA_CENTER, "Data Center")
+                .setIsRequired(false)
+                .setDescription("Iterable data center your project is hosted in: US (default) or EU.");
+        eventSettings.add(dataCenter);
+        audienceSettings.add(dataCenter);
+
         eventSettings.add(
                 new TextSetting(SETTING_GCM_NAME_KEY, "GCM Push Integration Name")
                         .setIsRequired(false)
@@ -446,6 +1189,26 @@ public class IterableExtension extends MessageProcessor {
                         .setIsRequired(false)
                         .setDescription("APNS Production integration name set up in the Mobile Push section of your Iterable account.")
         );
+        eventSettings.add(
+                new TextSetting(SETTING_EVENT_ALLOW_LIST, "Event Name Allow List")
+                        .setIsRequired(false)
+                        .setDescription("Comma separated event names, globs (i.e. checkout_*) or regexes between slashes. When set, only matching custom events are forwarded.")
+        );
+        eventSettings.add(
+                new TextSetting(SETTING_EVENT_DENY_LIST, "Event Name Deny List")
+                        .setIsRequired(false)
+                        .setDescription("Comma separated event names, globs or regexes between slashes of custom events that are never forwarded.")
+        );
+        eventSettings.add(
+                new TextSetting(SETTING_ATTRIBUTE_ALLOW_LIST, "Attribute Allow List")
+                        .setIsRequired(false)
+                        .setDescription("Comma separated attribute keys, globs or regexes between slashes. When set, only matching custom event attributes are forwarded.")
+        );
+        eventSettings.add(
+                new TextSetting(SETTING_ATTRIBUTE_DENY_LIST, "Attribute Deny List")
+                        .setIsRequired(false)
+                        .setDescription("Comma separated attribute keys, globs or regexes between slashes of custom event attributes that are never forwarded.")
+        );
         eventProcessingRegistration.setAccountSettings(eventSettings);
 
         // Specify supported event types
@@ -513,7 +1276,11 @@ public class IterableExtension extends MessageProcessor {
         if (updateRequest == null) {
             return false;
         }
-        Response<IterableApiResponse> response = iterableService.updateSubscriptions(getApiKey(event), updateRequest).execute();
+        if (isCoalesced(event.getContext().getAccount())) {
+            awaitCoalesced(coalescingDispatcher.updateSubscriptions(getApiKey(event), updateRequest), "Error sending update subscriptions event to Iterable");
+            return true;
+        }
+        Response<IterableApiResponse> response = execute(Event.Type.CUSTOM_EVENT, getService(event).updateSubscriptions(getApiKey(event), updateRequest));
         if (response.isSuccessful() && !response.body().isSuccess()) {
             throw new IOException(response.body().toString());
         } else if (!response.isSuccessful()) {
@@ -565,13 +1332,20 @@ public class IterableExtension extends MessageProcessor {
 
     @Override
     public void processCustomEvent(CustomEvent event) throws IOException {
+        AccountProfile profile = AccountProfile.of(event.getContext().getAccount());
+        if (!profile.eventFilter.allows(event.getName())) {
+            IterableMetrics metrics = IterableMetrics.getInstance();
+            metrics.increment("filter.events.dropped");
+            metrics.add("filter.events.bytes", approximateSize(event));
+            return;
+        }
         if (processSubscribeEvent(event)) {
             return;
         }
 
         TrackRequest request = new TrackRequest(event.getName());
         request.createdAt = (int) (event.getTimestamp() / 1000.0);
-        request.dataFields = attemptTypeConversion(event.getAttributes());
+        request.dataFields = attemptTypeConversion(profile.attributeFilter.project(event.getAttributes()));
         List<UserIdentity> identities = event.getContext().getUserIdentities();
         if (identities != null) {
             for (UserIdentity identity : identities) {
@@ -583,7 +1357,11 @@ public class IterableExtension extends MessageProcessor {
             }
         }
 
-        Response<IterableApiResponse> response = iterableService.track(getApiKey(event), request).execute();
+        if (isCoalesced(event.getContext().getAccount())) {
+            awaitCoalesced(coalescingDispatcher.track(getApiKey(event), request), "Error sending custom event to Iterable");
+            return;
+        }
+        Response<IterableApiResponse> response = execute(Event.Type.CUSTOM_EVENT, getService(event).track(getApiKey(event), request));
         if (response.isSuccessful() && !response.body().isSuccess()) {
             throw new IOException(response.body().toString());
         } else if (!response.isSuccessful()) {
@@ -591,6 +1369,16 @@ public class IterableExtension extends MessageProcessor {
         }
     }
 
+    private static long approximateSize(CustomEvent event) {
+        long size = String.valueOf(event.getName()).length();
+        if (event.getAttributes() != null) {
+            for (Map.Entry<String, String> attribute : event.getAttributes().entrySet()) {
+                size += NameFilter.approximateSize(attribute.getKey(), attribute.getValue());
+            }
+        }
+        return size;
+    }
+
     /**
      * Make a best-effort attempt to coerce the values of each map item to bool, double, int, and string types
      *
@@ -659,17 +1447,35 @@ public class IterableExtension extends MessageProcessor {
                     request.messageId = mapper.writeValueAsString(((Map) payload.get("itbl")).get("messageId"));
                 }
                 request.createdAt = (int) (event.getTimestamp() / 1000.0);
-                Response<IterableApiResponse> response = iterableService.trackPushOpen(getApiKey(event), request).execute();
-                if (response.isSuccessful() && !response.body().isSuccess()) {
-                    throw new IOException(response.body().toString());
-                } else if (!response.isSuccessful()) {
-                    throw new IOException("Error sending push-open to Iterable: HTTP " + response.code());
-                }
+                trackPushOpen(Event.Type.PUSH_MESSAGE_RECEIPT, getService(event), getApiKey(event), request);
+            }
+        }
+    }
+
+    /**
+     * Send a push open, unless the same one was sent recently.
+     */
+    private void trackPushOpen(Event.Type type, IterableService service, String apiKey, TrackPushOpenRequest request) throws IOException {
+        String key = null;
+        if (pushOpenDeduper != null && request.messageId != null) {
+            key = PushOpenDeduper.key(apiKey, request.email != null ? request.email : request.userId, request.messageId);
+            if (pushOpenDeduper.isDuplicate(key)) {
+                return;
             }
         }
+        Response<IterableApiResponse> response = execute(type, service.trackPushOpen(apiKey, request));
+        if (response.isSuccessful() && !response.body().isSuccess()) {
+            throw new IOException(response.body().toString());
+        } else if (!response.isSuccessful()) {
+            throw new IOException("Error sending push-open to Iterable: HTTP " + response.code());
+        }
+        if (key != null) {
+            pushOpenDeduper.record(key);
+        }
     }
 
     public AudienceMembershipChangeResponse processAudienceMembershipChangeRequest(AudienceMembershipChangeRequest request) throws IOException {
+        AccountProfile accountProfile = AccountProfile.of(request.getAccount());
         HashMap<Integer, List<ApiUser>> additions = new HashMap<>();
         HashMap<Integer, List<Unsubscriber>> removals = new HashMap<>();
         for (UserProfile profile : request.getUserProfiles()) {
@@ -685,8 +1491,7 @@ public class IterableExtension extends MessageProcessor {
             if (email != null) {
                 if (profile.getAddedAudiences() != null) {
                     for (Audience audience : profile.getAddedAudiences()) {
-                        Map<String, String> audienceSettings = audience.getAudienceSubscriptionSettings();
-                        int listId = Integer.parseInt(audienceSettings.get(SETTING_LIST_ID));
+                        int listId = accountProfile.getListId(audience.getAudienceSubscriptionSettings());
                         ApiUser user = new ApiUser();
                         user.email = email;
                         user.userId = userId;
@@ -698,8 +1503,7 @@ public class IterableExtension extends MessageProcessor {
                 }
                 if (profile.getRemovedAudiences() != null) {
                     for (Audience audience : profile.getRemovedAudiences()) {
-                        Map<String, String> audienceSettings = audience.getAudienceSubscriptionSettings();
-                        int listId = Integer.parseInt(audienceSettings.get(SETTING_LIST_ID));
+                        int listId = accountProfile.getListId(audience.getAudienceSubscriptionSettings());
                         Unsubscriber unsubscriber = new Unsubscriber();
                         unsubscriber.email = email;
                         if (!removals.containsKey(listId)) {
@@ -711,44 +1515,109 @@ public class IterableExtension extends MessageProcessor {
             }
         }
 
+        String apiKey = getApiKey(request);
+        IterableService service = getService(request);
+        List<IOException> failures = new ArrayList<>();
         for (Map.Entry<Integer, List<ApiUser>> entry : additions.entrySet()) {
-            SubscribeRequest subscribeRequest = new SubscribeRequest();
-            subscribeRequest.listId = entry.getKey();
-            subscribeRequest.subscribers = entry.getValue();
-            try {
-                Response<ListResponse> response = iterableService.listSubscribe(getApiKey(request), subscribeRequest).execute();
-                if (response.isSuccessful()) {
-                    ListResponse listResponse = response.body();
-                    if (listResponse.failCount > 0) {
-                        throw new IOException("Iterable list subscribe had positive fail count: " + listResponse.failCount);
-                    }
-                } else if (!response.isSuccessful()) {
-                    throw new IOException("Error sending list subscribe to Iterable: HTTP " + response.code());
-                }
-            } catch (Exception e) {
+            sendList(ROUTE_LIST_SUBSCRIBE, "list subscribe", apiKey, entry.getValue(), chunk -> {
+                SubscribeRequest subscribeRequest = new SubscribeRequest();
+                subscribeRequest.listId = entry.getKey();
+                subscribeRequest.subscribers = chunk;
+                return service.listSubscribe(apiKey, subscribeRequest);
+            }, failures);
+        }
 
+        for (Map.Entry<Integer, List<Unsubscriber>> entry : removals.entrySet()) {
+            sendList(ROUTE_LIST_UNSUBSCRIBE, "list unsubscribe", apiKey, entry.getValue(), chunk -> {
+                UnsubscribeRequest unsubscribeRequest = new UnsubscribeRequest();
+                unsubscribeRequest.listId = entry.getKey();
+                unsubscribeRequest.subscribers = chunk;
+                return service.listUnsubscribe(apiKey, unsubscribeRequest);
+            }, failures);
+        }
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        } else if (failures.size() > 1) {
+            IOException e = new IOException(failures.size() + " list calls failed, first: " + failures.get(0).getMessage(), failures.get(0));
+            for (IOException failure : failures.subList(1, failures.size())) {
+                e.addSuppressed(failure);
             }
+            throw e;
         }
+        return new AudienceMembershipChangeResponse();
+    }
 
-        for (Map.Entry<Integer, List<Unsubscriber>> entry : removals.entrySet()) {
-            UnsubscribeRequest unsubscribeRequest = new UnsubscribeRequest();
-            unsubscribeRequest.listId = entry.getKey();
-            unsubscribeRequest.subscribers = entry.getValue();
+    private interface ListCall<M> {
+        Call<ListResponse> create(List<M> chunk) throws IOException;
+    }
+
+    /**
+     * Send a list's members in chunks, adding the chunks that failed to failures so that the other chunks still go
+     * out. A chunk rejected for overload is sent again at the size the batch sizer cut it to, up to
+     * MAX_LIST_CHUNK_ATTEMPTS times.
+     */
+    private <M> void sendList(String route, String name, String apiKey, List<M> members, ListCall<M> listCall, List<IOException> failures) {
+        int attempts = 0;
+        for (int from = 0; from < members.size(); ) {
+            int to = Math.min(members.size(), from + listChunkSize(route, apiKey, members.size()));
+            attempts++;
             try {
-                Response<ListResponse> response = iterableService.listUnsubscribe(getApiKey(request), unsubscribeRequest).execute();
+                Response<ListResponse> response = executeSized(route, apiKey, listCall.create(new ArrayList<>(members.subList(from, to))));
                 if (response.isSuccessful()) {
                     ListResponse listResponse = response.body();
-                    if (listResponse.failCount > 0) {
-                        throw new IOException("Iterable list unsubscribe had positive fail count: " + listResponse.failCount);
+                    if (listResponse != null && listResponse.failCount > 0) {
+                        throw new IOException("Iterable " + name + " had positive fail count: " + listResponse.failCount);
                     }
-                } else if (!response.isSuccessful()) {
-                    throw new IOException("Error sending list unsubscribe to Iterable: HTTP " + response.code());
+                } else if (isOverloaded(response.code()) && batchSizer != null && attempts < MAX_LIST_CHUNK_ATTEMPTS) {
+                    continue;
+                } else {
+                    throw new IOException("Error sending " + name + " to Iterable: HTTP " + response.code());
                 }
-            } catch (Exception e) {
-
+            } catch (InterruptedIOException e) {
+                if (batchSizer != null && attempts < MAX_LIST_CHUNK_ATTEMPTS) {
+                    continue;
+                }
+                failures.add(e);
+            } catch (IOException e) {
+                failures.add(e);
             }
+            from = to;
+            attempts = 0;
         }
-        return new AudienceMembershipChangeResponse();
+    }
+
+    private static boolean isOverloaded(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    /**
+     * The number of list members per call, all of them unless there's a batch sizer.
+     */
+    private int listChunkSize(String route, String apiKey, int members) {
+        return batchSizer == null ? members : Math.max(1, batchSizer.size(route, apiKey));
+    }
+
+    /**
+     * Execute a call whose size is picked by the batch sizer, recording its outcome. Like event calls, it goes
+     * through the tenant bulkheads and the priority scheduler, but only the call itself is timed and recorded: a
+     * call that waited for a slot, or never went out at all, says nothing about how Iterable copes with its size.
+     */
+    private <T> Response<T> executeSized(String route, String apiKey, Call<T> call) throws IOException {
+        AdaptiveBatchSizer sizer = batchSizer;
+        if (sizer == null) {
+            return execute(null, call);
+        }
+        return execute(null, call, sized -> {
+            long start = System.nanoTime();
+            try {
+                Response<T> response = sized.execute();
+                sizer.record(route, apiKey, (System.nanoTime() - start) / 1000000, response.code());
+                return response;
+            } catch (IOException e) {
+                sizer.recordFailure(route, apiKey, (System.nanoTime() - start) / 1000000, e);
+                throw e;
+            }
+        });
     }
 
 }
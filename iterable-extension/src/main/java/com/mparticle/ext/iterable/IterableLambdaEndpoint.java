@@ -3,23 +3,146 @@ package com.mparticle.ext.iterable;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.RequestStreamHandler;
+import com.mparticle.iterable.CaptureInterceptor;
+import com.mparticle.iterable.Deadline;
+import com.mparticle.iterable.FreezeDetector;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.LoggingTracer;
+import com.mparticle.iterable.Tracing;
 import com.mparticle.sdk.model.Message;
 import com.mparticle.sdk.model.MessageSerializer;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
 
 
 public class IterableLambdaEndpoint implements RequestStreamHandler {
 
+    /**
+     * Time kept back from the invocation's remaining time to serialize the response.
+     */
+    static final long RESPONSE_RESERVE_MILLIS = 200;
+    /**
+     * When set, batches that run out of time are appended to this file instead of failing.
+     */
+    static final String SPILL_FILE_ENV = "ITERABLE_SPILL_FILE";
+    /**
+     * "bloom" or "lru" to suppress duplicate push opens for as long as the container stays warm.
+     */
+    static final String PUSH_DEDUPE_ENV = "ITERABLE_PUSH_DEDUPE";
+    static final long PUSH_DEDUPE_WINDOW_MILLIS = 24 * 60 * 60 * 1000L;
+    /**
+     * How long a registered device token is trusted before it's registered again, unset to always register.
+     */
+    static final String TOKEN_CACHE_HOURS_ENV = "ITERABLE_TOKEN_CACHE_HOURS";
+    /**
+     * Where to keep registered device tokens across container restarts, unset to only keep them in memory.
+     */
+    static final String TOKEN_CACHE_FILE_ENV = "ITERABLE_TOKEN_CACHE_FILE";
+    /**
+     * Directory to checkpoint delivered events in, so that redelivered batches only resend what failed.
+     */
+    static final String CHECKPOINT_DIR_ENV = "ITERABLE_CHECKPOINT_DIR";
+    /**
+     * When set, exchanges with the US data center are recorded to this file (see CaptureInterceptor).
+     */
+    static final String CAPTURE_FILE_ENV = "ITERABLE_CAPTURE_FILE";
+    /**
+     * When set, spans are written to this file, or to standard error (and so the function's log) for "stderr".
+     * See LoggingTracer.
+     */
+    static final String TRACE_FILE_ENV = "ITERABLE_TRACE_FILE";
+    /**
+     * When set, each API key may have at most this many calls in flight (see TenantBulkheads), which matters when
+     * IterableBatchLambdaEndpoint processes messages for many accounts at once.
+     */
+    static final String TENANT_CONCURRENCY_ENV = "ITERABLE_TENANT_CONCURRENCY";
+    /**
+     * When "true" along with ITERABLE_TENANT_CONCURRENCY, each API key also gets its own connection pool.
+     */
+    static final String TENANT_ISOLATE_CONNECTIONS_ENV = "ITERABLE_TENANT_ISOLATE_CONNECTIONS";
+    /**
+     * When "true", list subscribe and unsubscribe calls are split into chunks sized by an AdaptiveBatchSizer.
+     */
+    static final String ADAPTIVE_BATCHING_ENV = "ITERABLE_ADAPTIVE_BATCHING";
+    /**
+     * When "true", the first invocation after a freeze opens a connection to Iterable while its input is decoded.
+     */
+    static final String THAW_WARM_UP_ENV = "ITERABLE_THAW_WARM_UP";
+
     static MessageSerializer serializer = new MessageSerializer();
     static IterableExtension processor = new IterableExtension();
+    static boolean warmUpAfterThaw = "true".equalsIgnoreCase(System.getenv(THAW_WARM_UP_ENV));
+
+    static {
+        String spillFile = System.getenv(SPILL_FILE_ENV);
+        if (spillFile != null && !spillFile.isEmpty()) {
+            processor.setSpillSink(new FileSpillSink(Paths.get(spillFile)));
+        }
+        String pushDedupe = System.getenv(PUSH_DEDUPE_ENV);
+        if ("bloom".equalsIgnoreCase(pushDedupe)) {
+            processor.setPushOpenDeduper(new PushOpenDeduper.Bloom(100000, 0.001, PUSH_DEDUPE_WINDOW_MILLIS));
+        } else if ("lru".equalsIgnoreCase(pushDedupe)) {
+            processor.setPushOpenDeduper(new PushOpenDeduper.Lru(100000, PUSH_DEDUPE_WINDOW_MILLIS));
+        }
+        String tokenCacheHours = System.getenv(TOKEN_CACHE_HOURS_ENV);
+        if (tokenCacheHours != null && !tokenCacheHours.isEmpty()) {
+            String tokenCacheFile = System.getenv(TOKEN_CACHE_FILE_ENV);
+            processor.setDeviceTokenCache(new DeviceTokenCache(100000, Long.parseLong(tokenCacheHours) * 60 * 60 * 1000,
+                    tokenCacheFile == null || tokenCacheFile.isEmpty() ? null : Paths.get(tokenCacheFile)));
+        }
+        String checkpointDir = System.getenv(CHECKPOINT_DIR_ENV);
+        if (checkpointDir != null && !checkpointDir.isEmpty()) {
+            try {
+                processor.setCheckpointStore(new FileCheckpointStore(Paths.get(checkpointDir)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        String captureFile = System.getenv(CAPTURE_FILE_ENV);
+        if (captureFile != null && !captureFile.isEmpty()) {
+            processor.setIterableService(IterableService.newInstance(IterableService.newClientBuilder()
+                    .addInterceptor(new CaptureInterceptor(Paths.get(captureFile)))
+                    .build()));
+        }
+        String traceFile = System.getenv(TRACE_FILE_ENV);
+        if (traceFile != null && !traceFile.isEmpty()) {
+            Tracing.setTracer(new LoggingTracer("stderr".equalsIgnoreCase(traceFile) ? null : Paths.get(traceFile)));
+        }
+        String tenantConcurrency = System.getenv(TENANT_CONCURRENCY_ENV);
+        if (tenantConcurrency != null && !tenantConcurrency.isEmpty()) {
+            TenantBulkheads bulkheads = new TenantBulkheads(Integer.parseInt(tenantConcurrency),
+                    TenantBulkheads.DEFAULT_MAX_QUEUED_PER_KEY, TenantBulkheads.DEFAULT_MAX_CONCURRENT);
+            if ("true".equalsIgnoreCase(System.getenv(TENANT_ISOLATE_CONNECTIONS_ENV))) {
+                bulkheads.isolateConnections(IterableService.newClientBuilder().build(), null);
+            }
+            processor.setTenantBulkheads(bulkheads);
+        }
+        if ("true".equalsIgnoreCase(System.getenv(ADAPTIVE_BATCHING_ENV))) {
+            processor.setBatchSizer(new AdaptiveBatchSizer());
+        }
+    }
 
     @Override
     public void handleRequest(InputStream input, OutputStream output, Context context) throws IOException {
+        onInvocation();
         Message request = serializer.deserialize(input, Message.class);
-        Message response = processor.processMessage(request);
+        Deadline deadline = context == null ? null : Deadline.afterMillis(context.getRemainingTimeInMillis() - RESPONSE_RESERVE_MILLIS);
+        Message response = processor.processMessage(request, deadline);
         serializer.serialize(output, response);
     }
-}
\ No newline at end of file
+
+    /**
+     * Drop connections that went stale while the container was frozen, and optionally open a new one in the
+     * background so that it's ready by the time the input is decoded.
+     */
+    static void onInvocation() {
+        if (FreezeDetector.getInstance().checkThaw() && warmUpAfterThaw) {
+            CompletableFuture.runAsync(processor::warmUp);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+
+import java.io.Closeable;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks that share a key one after the other, in submission order, while tasks for different keys run in
+ * parallel.
+ *
+ * Keys are hashed onto a fixed number of stripes, each backed by a lock-free queue that is drained by at most one
+ * worker at a time. Once the number of queued tasks reaches maxQueueDepth, submit() blocks the caller until
+ * there's room again.
+ */
+public class KeyedOrderedExecutor implements Closeable {
+
+    private static final int MAX_TASKS_PER_DRAIN = 64;
+
+    private final Stripe[] stripes;
+    private final ExecutorService workers;
+    private final Semaphore capacity;
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+
+    public KeyedOrderedExecutor(int parallelism, int maxQueueDepth) {
+        this(parallelism, parallelism * 4, maxQueueDepth);
+    }
+
+    public KeyedOrderedExecutor(int parallelism, int stripeCount, int maxQueueDepth) {
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.capacity = new Semaphore(maxQueueDepth);
+        this.workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread thread = new Thread(r, "iterable-keyed-executor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!capacity.tryAcquire()) {
+            metrics.increment("ordered.backpressure");
+            try {
+                capacity.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+        Stripe stripe = stripes[(key == null ? 0 : key.hashCode() & Integer.MAX_VALUE) % stripes.length];
+        stripe.queue.offer(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                capacity.release();
+            }
+        });
+        stripe.schedule();
+        return future;
+    }
+
+    /**
+     * Number of tasks that have been submitted but haven't finished yet.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Stripe stripe : stripes) {
+            depth += stripe.queue.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+
+    private class Stripe {
+        final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+
+        void schedule() {
+            if (draining.compareAndSet(false, true)) {
+                workers.execute(this::drain);
+            }
+        }
+
+        void drain() {
+            for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+                Runnable task = queue.poll();
+                if (task == null) {
+                    draining.set(false);
+                    //a task may have been offered between the poll above and releasing the stripe
+                    if (!queue.isEmpty()) {
+                        schedule();
+                    }
+                    return;
+                }
+                task.run();
+            }
+            //give other stripes a turn on this worker before continuing
+            workers.execute(this::drain);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Allow and deny rules for event names or attribute keys, compiled once per account.
+ *
+ * Rules are comma separated, each one either an exact name, a glob using * and ?, or a regex between slashes
+ * (i.e. /^debug_.*$/, which may contain commas itself). Exact names are looked up in a set, all other rules are
+ * combined into a single pattern. A name passes when there are no allow rules or it matches one, and it matches no
+ * deny rule.
+ */
+public final class NameFilter {
+
+    public static final NameFilter ALLOW_ALL = new NameFilter(new Rules(), new Rules());
+
+    private final Rules allow;
+    private final Rules deny;
+
+    private NameFilter(Rules allow, Rules deny) {
+        this.allow = allow;
+        this.deny = deny;
+    }
+
+    /**
+     * @throws IOException for an invalid regex
+     */
+    public static NameFilter compile(String allowRules, String denyRules) throws IOException {
+        Rules allow = Rules.compile(allowRules);
+        Rules deny = Rules.compile(denyRules);
+        return allow.isEmpty() && deny.isEmpty() ? ALLOW_ALL : new NameFilter(allow, deny);
+    }
+
+    public boolean allows(String name) {
+        if (name == null) {
+            return allow.isEmpty();
+        }
+        return (allow.isEmpty() || allow.matches(name)) && !deny.matches(name);
+    }
+
+    /**
+     * @return the attributes with an allowed key, the same map when every key is allowed
+     */
+    public Map<String, String> project(Map<String, String> attributes) {
+        if (this == ALLOW_ALL || attributes == null || attributes.isEmpty()) {
+            return attributes;
+        }
+        boolean dropsAny = false;
+        for (String key : attributes.keySet()) {
+            if (!allows(key)) {
+                dropsAny = true;
+                break;
+            }
+        }
+        if (!dropsAny) {
+            return attributes;
+        }
+        Map<String, String> projected = new HashMap<>();
+        long droppedBytes = 0;
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            if (allows(attribute.getKey())) {
+                projected.put(attribute.getKey(), attribute.getValue());
+            } else {
+                droppedBytes += approximateSize(attribute.getKey(), attribute.getValue());
+            }
+        }
+        IterableMetrics metrics = IterableMetrics.getInstance();
+        metrics.add("filter.attributes.dropped", attributes.size() - projected.size());
+        metrics.add("filter.attributes.bytes", droppedBytes);
+        return projected;
+    }
+
+    /**
+     * Roughly what an attribute adds to a JSON payload: "key":"value",
+     */
+    static long approximateSize(String key, String value) {
+        return String.valueOf(key).length() + String.valueOf(value).length() + 6;
+    }
+
+    private static class Rules {
+        final Set<String> names = new HashSet<>();
+        Pattern pattern;
+
+        static Rules compile(String rules) throws IOException {
+            Rules compiled = new Rules();
+            if (rules == null || rules.trim().isEmpty()) {
+                return compiled;
+            }
+            StringBuilder regex = new StringBuilder();
+            for (String rule : split(rules)) {
+                if (rule.isEmpty()) {
+                    continue;
+                }
+                String ruleRegex;
+                if (rule.length() > 1 && rule.startsWith("/") && rule.endsWith("/")) {
+                    ruleRegex = rule.substring(1, rule.length() - 1);
+                } else if (rule.indexOf('*') >= 0 || rule.indexOf('?') >= 0) {
+                    ruleRegex = globToRegex(rule);
+                } else {
+                    compiled.names.add(rule);
+                    continue;
+                }
+                if (regex.length() > 0) {
+                    regex.append('|');
+                }
+                regex.append("(?:").append(ruleRegex).append(')');
+            }
+            if (regex.length() > 0) {
+                try {
+                    compiled.pattern = Pattern.compile(regex.toString());
+                } catch (PatternSyntaxException e) {
+                    throw new IOException("Invalid filter rule in: " + rules, e);
+                }
+            }
+            return compiled;
+        }
+
+        /**
+         * Split the rules on commas, except the commas of a regex rule, which runs from its opening slash to the
+         * first slash followed by nothing but whitespace up to the next comma.
+         */
+        private static List<String> split(String rules) {
+            List<String> split = new ArrayList<>();
+            int start = 0;
+            while (start <= rules.length()) {
+                int end = rules.indexOf(',', start);
+                String rule = rules.substring(start, end < 0 ? rules.length() : end).trim();
+                if (rule.startsWith("/")) {
+                    int close = regexEnd(rules, rules.indexOf('/', start));
+                    if (close > 0) {
+                        end = rules.indexOf(',', close);
+                        rule = rules.substring(start, end < 0 ? rules.length() : end).trim();
+                    }
+                }
+                split.add(rule);
+                if (end < 0) {
+                    break;
+                }
+                start = end + 1;
+            }
+            return split;
+        }
+
+        /**
+         * @return the index of the slash closing the regex opened at the given index, -1 if it isn't closed
+         */
+        private static int regexEnd(String rules, int open) {
+            for (int i = rules.indexOf('/', open + 1); i > 0; i = rules.indexOf('/', i + 1)) {
+                int comma = rules.indexOf(',', i);
+                if (rules.substring(i + 1, comma < 0 ? rules.length() : comma).trim().isEmpty()) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (char c : glob.toCharArray()) {
+                if (c == '*' || c == '?') {
+                    if (literal.length() > 0) {
+                        regex.append(Pattern.quote(literal.toString()));
+                        literal.setLength(0);
+                    }
+                    regex.append(c == '*' ? ".*" : ".");
+                } else {
+                    literal.append(c);
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return regex.toString();
+        }
+
+        boolean isEmpty() {
+            return names.isEmpty() && pattern == null;
+        }
+
+        boolean matches(String name) {
+            return names.contains(name) || (pattern != null && pattern.matcher(name).matches());
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.mparticle.ext.iterable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a newline-delimited JSON file one record at a time, without ever holding more than one record in memory.
+ *
+ * The file is memory-mapped a window at a time, and read through a GZIPInputStream when its name ends in .gz.
+ * Offsets count uncompressed bytes, so the offset after a record is a position to resume reading from either way:
+ * plain files are mapped from there, compressed files are decompressed and skipped up to there.
+ */
+class NdjsonReader implements Closeable {
+
+    static final long DEFAULT_WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private final InputStream input;
+    private final byte[] buffer = new byte[64 * 1024];
+    private int position;
+    private int limit;
+    private byte[] line = new byte[4 * 1024];
+    private long offset;
+
+    static class Record {
+        final String json;
+        /**
+         * Offset of the first byte after this record.
+         */
+        final long endOffset;
+
+        Record(String json, long endOffset) {
+            this.json = json;
+            this.endOffset = endOffset;
+        }
+    }
+
+    NdjsonReader(Path file, long startOffset) throws IOException {
+        this(file, startOffset, DEFAULT_WINDOW_BYTES);
+    }
+
+    NdjsonReader(Path file, long startOffset, long windowBytes) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            input = new GZIPInputStream(new MappedInputStream(channel, 0, windowBytes), buffer.length);
+            skip(startOffset);
+        } else {
+            input = new MappedInputStream(channel, Math.min(startOffset, channel.size()), windowBytes);
+        }
+        offset = startOffset;
+    }
+
+    private void skip(long bytes) throws IOException {
+        long remaining = bytes;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                break;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    /**
+     * @return the next non-blank record, or null at the end of the file
+     */
+    Record next() throws IOException {
+        while (true) {
+            int length = 0;
+            boolean ended = false;
+            while (!ended) {
+                if (position == limit) {
+                    limit = input.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        if (length == 0) {
+                            return null;
+                        }
+                        //last record without a trailing newline
+                        break;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') {
+                    position++;
+                }
+                int chunk = position - start;
+                if (position < limit) {
+                    position++;
+                    ended = true;
+                }
+                offset += position - start;
+                if (length + chunk > line.length) {
+                    line = Arrays.copyOf(line, Math.max(line.length * 2, length + chunk));
+                }
+                System.arraycopy(buffer, start, line, length, chunk);
+                length += chunk;
+            }
+            String json = new String(line, 0, length, StandardCharsets.UTF_8).trim();
+            if (!json.isEmpty()) {
+                return new Record(json, offset);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Reads a file through a sliding memory-mapped window.
+     */
+    private static class MappedInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long windowBytes;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer window;
+
+        MappedInputStream(FileChannel channel, long startOffset, long windowBytes) throws IOException {
+            this.channel = channel;
+            this.windowBytes = windowBytes;
+            this.size = channel.size();
+            this.windowStart = startOffset;
+            map();
+        }
+
+        private void map() throws IOException {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowBytes, size - windowStart));
+        }
+
+        private boolean ensureRemaining() throws IOException {
+            if (window.hasRemaining()) {
+                return true;
+            }
+            windowStart += window.capacity();
+            if (windowStart >= size) {
+                return false;
+            }
+            map();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureRemaining() ? window.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!ensureRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, window.remaining());
+            window.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
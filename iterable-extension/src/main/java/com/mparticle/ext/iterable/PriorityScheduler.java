@@ -0,0 +1,265 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+import com.mparticle.sdk.model.eventprocessing.Event;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs Iterable calls on a shared worker pool, with a separate bounded queue per priority class.
+ *
+ * Workers pick the next lane using smooth weighted round-robin, so higher priorities get a larger share of the
+ * pool without starving the others. Sheddable lanes drop work that can't be queued or that waited longer than the
+ * lane's latency budget, other lanes are deferred: callers block until their lane has room again.
+ */
+public class PriorityScheduler implements Closeable {
+
+    public enum Priority {
+        HIGH, NORMAL, LOW
+    }
+
+    public static class Lane {
+        public int weight;
+        public int maxQueueDepth;
+        /**
+         * How long a task may wait in the queue before it's considered late, 0 for no limit.
+         */
+        public long latencyBudgetMillis;
+        public boolean sheddable;
+
+        public Lane(int weight, int maxQueueDepth, long latencyBudgetMillis, boolean sheddable) {
+            this.weight = weight;
+            this.maxQueueDepth = maxQueueDepth;
+            this.latencyBudgetMillis = latencyBudgetMillis;
+            this.sheddable = sheddable;
+        }
+    }
+
+    /**
+     * Thrown to the caller of a task that was shed instead of executed.
+     */
+    public static class LoadShedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public LoadShedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<Event.Type, Priority> eventPriorities = new EnumMap<>(Event.Type.class);
+    private final Map<String, Priority> routePriorities = new HashMap<>();
+    private final EnumMap<Priority, LaneState> lanes = new EnumMap<>(Priority.class);
+    private final Semaphore queued = new Semaphore(0);
+    private final ExecutorService workers;
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private volatile boolean closed;
+
+    public PriorityScheduler(int workerCount) {
+        this(workerCount, defaultLanes());
+    }
+
+    public PriorityScheduler(int workerCount, Map<Priority, Lane> laneConfig) {
+        for (Priority priority : Priority.values()) {
+            lanes.put(priority, new LaneState(priority, laneConfig.get(priority)));
+        }
+        eventPriorities.put(Event.Type.USER_IDENTITY_CHANGE, Priority.HIGH);
+        eventPriorities.put(Event.Type.PRODUCT_ACTION, Priority.HIGH);
+        eventPriorities.put(Event.Type.PUSH_MESSAGE_RECEIPT, Priority.LOW);
+        workers = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "iterable-priority-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < workerCount; i++) {
+            workers.execute(this::work);
+        }
+    }
+
+    public static Map<Priority, Lane> defaultLanes() {
+        Map<Priority, Lane> lanes = new EnumMap<>(Priority.class);
+        lanes.put(Priority.HIGH, new Lane(6, 1000, 0, false));
+        lanes.put(Priority.NORMAL, new Lane(3, 1000, 0, false));
+        lanes.put(Priority.LOW, new Lane(1, 200, 1000, true));
+        return lanes;
+    }
+
+    public PriorityScheduler setPriority(Event.Type type, Priority priority) {
+        eventPriorities.put(type, priority);
+        return this;
+    }
+
+    /**
+     * Route priorities, i.e. "users/updateEmail", take precedence over the priority of the event type.
+     */
+    public PriorityScheduler setPriority(String route, Priority priority) {
+        routePriorities.put(route, priority);
+        return this;
+    }
+
+    public Priority priorityOf(Event.Type type, String route) {
+        Priority priority = route == null ? null : routePriorities.get(route);
+        if (priority == null) {
+            priority = eventPriorities.get(type);
+        }
+        return priority == null ? Priority.NORMAL : priority;
+    }
+
+    public long getShedCount(Priority priority) {
+        return lanes.get(priority).shed.get();
+    }
+
+    public int getQueueDepth(Priority priority) {
+        return lanes.get(priority).queue.size();
+    }
+
+    /**
+     * Run the task on the lane for the given priority and wait for its result.
+     *
+     * @throws LoadShedException if the task was shed, or the scheduler was closed before it ran
+     */
+    public <T> T execute(Priority priority, Callable<T> task) throws IOException {
+        if (closed) {
+            throw new LoadShedException("Scheduler closed, not running " + priority + " priority call");
+        }
+        LaneState lane = lanes.get(priority);
+        Task<T> queuedTask = new Task<>(task);
+        try {
+            if (lane.config.sheddable) {
+                if (!lane.queue.offer(queuedTask)) {
+                    lane.shed("queue full");
+                }
+            } else {
+                lane.queue.put(queuedTask);
+            }
+            queued.release();
+            if (closed) {
+                //closed while the task was being queued, after close() drained the lanes
+                drain();
+            }
+            return queuedTask.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + priority + " priority call", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stop the workers. Queued tasks fail with a LoadShedException rather than leaving their callers waiting.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        workers.shutdownNow();
+        drain();
+    }
+
+    private void drain() {
+        for (LaneState lane : lanes.values()) {
+            Task<?> task;
+            while ((task = lane.queue.poll()) != null) {
+                task.future.completeExceptionally(new LoadShedException("Scheduler closed before running " + lane.priority + " priority call"));
+            }
+        }
+    }
+
+    private void work() {
+        while (!closed) {
+            try {
+                queued.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Task<?> task = null;
+            LaneState lane = null;
+            while (task == null) {
+                if (closed) {
+                    //close() drained the task this permit was for
+                    return;
+                }
+                lane = nextLane();
+                task = lane == null ? null : lane.queue.poll();
+            }
+            long waited = System.currentTimeMillis() - task.enqueuedAt;
+            if (lane.config.sheddable && lane.config.latencyBudgetMillis > 0 && waited > lane.config.latencyBudgetMillis) {
+                try {
+                    lane.shed("waited " + waited + "ms");
+                } catch (LoadShedException e) {
+                    task.future.completeExceptionally(e);
+                }
+                continue;
+            }
+            task.run();
+        }
+    }
+
+    /**
+     * Smooth weighted round-robin across non-empty lanes.
+     */
+    private synchronized LaneState nextLane() {
+        LaneState best = null;
+        int totalWeight = 0;
+        for (LaneState lane : lanes.values()) {
+            if (lane.queue.isEmpty()) {
+                continue;
+            }
+            lane.currentWeight += lane.config.weight;
+            totalWeight += lane.config.weight;
+            if (best == null || lane.currentWeight > best.currentWeight) {
+                best = lane;
+            }
+        }
+        if (best != null) {
+            best.currentWeight -= totalWeight;
+        }
+        return best;
+    }
+
+    private class LaneState {
+        final Priority priority;
+        final Lane config;
+        final BlockingQueue<Task<?>> queue;
+        final AtomicLong shed = new AtomicLong();
+        int currentWeight;
+
+        LaneState(Priority priority, Lane config) {
+            this.priority = priority;
+            this.config = config;
+            this.queue = new ArrayBlockingQueue<>(config.maxQueueDepth);
+        }
+
+        void shed(String reason) throws LoadShedException {
+            shed.incrementAndGet();
+            metrics.increment("priority." + priority + ".shed");
+            throw new LoadShedException("Shed " + priority + " priority call: " + reason);
+        }
+    }
+
+    private static class Task<T> {
+        final Callable<T> callable;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final long enqueuedAt = System.currentTimeMillis();
+
+        Task(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        void run() {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+}
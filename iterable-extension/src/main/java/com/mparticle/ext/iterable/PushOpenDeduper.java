@@ -0,0 +1,216 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which push opens were sent to Iterable recently, so that the same open reported twice (i.e. a receipt
+ * followed by an open, or a redelivered batch) doesn't cause a second trackPushOpen.
+ *
+ * Keys are only recorded once their call succeeded, so a batch that's retried after a failure isn't suppressed.
+ */
+public abstract class PushOpenDeduper {
+
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+
+    static String key(String apiKey, String user, String messageId) {
+        return apiKey + "|" + user + "|" + messageId;
+    }
+
+    /**
+     * @return whether a push open with this key was recorded within the window
+     */
+    public boolean isDuplicate(String key) {
+        checked.incrementAndGet();
+        metrics.increment("pushOpen.dedupe.checked");
+        if (contains(key, System.currentTimeMillis())) {
+            suppressed.incrementAndGet();
+            metrics.increment("pushOpen.dedupe.suppressed");
+            return true;
+        }
+        return false;
+    }
+
+    public void record(String key) {
+        add(key, System.currentTimeMillis());
+    }
+
+    /**
+     * Share of checked push opens that were suppressed as duplicates.
+     */
+    public double getSuppressionRate() {
+        long total = checked.get();
+        return total == 0 ? 0 : (double) suppressed.get() / total;
+    }
+
+    protected abstract boolean contains(String key, long now);
+
+    protected abstract void add(String key, long now);
+
+    /**
+     * Approximate dedupe in fixed memory, for long-lived (warm) processes.
+     *
+     * Two generations of Bloom filter are kept, each covering one window: keys are added to the current generation
+     * and looked up in both, and the older one is dropped when the window ends or the current one is full. A key
+     * is therefore remembered for at least one window. Each generation is sized for the given false positive rate
+     * at capacity, and since a lookup checks two of them the rate of wrongly suppressed opens stays under twice that.
+     */
+    public static class Bloom extends PushOpenDeduper {
+
+        private final int capacity;
+        private final int bits;
+        private final int hashes;
+        private final long windowMillis;
+        private BitSet current;
+        private BitSet previous;
+        private int currentCount;
+        private long generationStart;
+
+        public Bloom(int capacity, double falsePositiveRate, long windowMillis) {
+            if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+                throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+            }
+            this.capacity = capacity;
+            this.bits = (int) Math.ceil(-capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.hashes = Math.max(1, (int) Math.round((double) bits / capacity * Math.log(2)));
+            this.windowMillis = windowMillis;
+            this.current = new BitSet(bits);
+            this.previous = new BitSet(bits);
+            this.generationStart = System.currentTimeMillis();
+        }
+
+        /**
+         * The false positive rate of a lookup given how full the filters are right now.
+         */
+        public synchronized double getExpectedFalsePositiveRate() {
+            return 1 - (1 - fillRate(current)) * (1 - fillRate(previous));
+        }
+
+        private double fillRate(BitSet filter) {
+            return Math.pow((double) filter.cardinality() / bits, hashes);
+        }
+
+        @Override
+        protected synchronized boolean contains(String key, long now) {
+            rotate(now);
+            long[] hash = hash(key);
+            return contains(current, hash) || contains(previous, hash);
+        }
+
+        @Override
+        protected synchronized void add(String key, long now) {
+            rotate(now);
+            if (currentCount >= capacity) {
+                newGeneration(now);
+            }
+            long[] hash = hash(key);
+            for (int i = 0; i < hashes; i++) {
+                current.set(index(hash, i));
+            }
+            currentCount++;
+        }
+
+        private boolean contains(BitSet filter, long[] hash) {
+            for (int i = 0; i < hashes; i++) {
+                if (!filter.get(index(hash, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rotate(long now) {
+            if (now - generationStart >= 2 * windowMillis) {
+                //both generations are out of the window
+                current.clear();
+                previous.clear();
+                currentCount = 0;
+                generationStart = now;
+            } else if (now - generationStart >= windowMillis) {
+                newGeneration(now);
+            }
+        }
+
+        private void newGeneration(long now) {
+            BitSet recycled = previous;
+            recycled.clear();
+            previous = current;
+            current = recycled;
+            currentCount = 0;
+            generationStart = now;
+        }
+
+        /**
+         * Double hashing: the i-th index is h1 + i * h2.
+         */
+        private int index(long[] hash, int i) {
+            return (int) Math.floorMod(hash[0] + i * hash[1], (long) bits);
+        }
+
+        private static long[] hash(String key) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            //FNV-1a, then a finalizer for the second hash
+            long h1 = 0xcbf29ce484222325L;
+            for (byte b : bytes) {
+                h1 ^= b;
+                h1 *= 0x100000001b3L;
+            }
+            long h2 = h1;
+            h2 ^= h2 >>> 33;
+            h2 *= 0xff51afd7ed558ccdL;
+            h2 ^= h2 >>> 33;
+            h2 *= 0xc4ceb9fe1a85ec53L;
+            h2 ^= h2 >>> 33;
+            return new long[]{h1, h2 | 1};
+        }
+    }
+
+    /**
+     * Exact dedupe of the most recently sent push opens, for when memory allows keeping every key of the window.
+     */
+    public static class Lru extends PushOpenDeduper {
+
+        private final long windowMillis;
+        private final LinkedHashMap<String, Long> sentAt;
+
+        public Lru(final int maxEntries, long windowMillis) {
+            this.windowMillis = windowMillis;
+            this.sentAt = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        @Override
+        protected synchronized boolean contains(String key, long now) {
+            expire(now);
+            return sentAt.containsKey(key);
+        }
+
+        @Override
+        protected synchronized void add(String key, long now) {
+            expire(now);
+            sentAt.put(key, now);
+        }
+
+        /**
+         * Entries are in access order, which for keys that are only added once is also the order they were sent in.
+         */
+        private void expire(long now) {
+            Iterator<Long> iterator = sentAt.values().iterator();
+            while (iterator.hasNext() && now - iterator.next() >= windowMillis) {
+                iterator.remove();
+            }
+        }
+    }
+}
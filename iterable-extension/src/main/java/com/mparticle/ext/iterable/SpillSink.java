@@ -0,0 +1,15 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.eventprocessing.Event;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the events of a batch that couldn't be sent before its deadline, so they can be delivered later
+ * instead of having mParticle retry the whole batch.
+ */
+public interface SpillSink {
+    void spill(EventProcessingRequest request, List<Event> unsentEvents) throws IOException;
+}
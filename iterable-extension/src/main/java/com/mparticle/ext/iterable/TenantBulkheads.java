@@ -0,0 +1,278 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.Deadline;
+import com.mparticle.iterable.FlightRecorderEvents;
+import com.mparticle.iterable.FreezeDetector;
+import com.mparticle.iterable.IterableMetrics;
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.iterable.IterableService;
+import okhttp3.ConnectionPool;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Isolates Iterable projects, identified by API key, from each other when one deployment serves many of them.
+ *
+ * Each API key may have at most maxConcurrentPerKey calls in flight and maxQueuedPerKey callers waiting, on top
+ * of a limit on the calls in flight across all keys. When calls are waiting, freed slots are handed out round-robin
+ * across keys, so a key with a huge batch gets the same share as one with a single event. Callers over their key's
+ * queue limit are rejected right away, callers that can't start before their deadline fail with a
+ * DeadlineExceededException. Optionally each key also gets its own connection pool.
+ *
+ * Saturation is reported per key as bulkhead.KEY_HASH.{active,queued,saturated,rejected} metrics, where KEY_HASH is
+ * FlightRecorderEvents.hash() of the API key.
+ */
+public class TenantBulkheads {
+
+    public static final int DEFAULT_MAX_CONCURRENT_PER_KEY = 8;
+    public static final int DEFAULT_MAX_QUEUED_PER_KEY = 200;
+    public static final int DEFAULT_MAX_CONCURRENT = 64;
+
+    /**
+     * Thrown to callers over their key's queue limit, and by tryExecute() when the key has no free slot.
+     */
+    public static class BulkheadFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BulkheadFullException(String message) {
+            super(message);
+        }
+    }
+
+    private final int maxConcurrentPerKey;
+    private final int maxQueuedPerKey;
+    private final int maxConcurrent;
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    /**
+     * Keys with waiting callers that are below their own limit, in the order they get the next free slot.
+     */
+    private final ArrayDeque<Tenant> ready = new ArrayDeque<>();
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private int active;
+    private OkHttpClient isolatedClient;
+    private Map<IterableRegion, HttpUrl> baseUrls;
+
+    public TenantBulkheads() {
+        this(DEFAULT_MAX_CONCURRENT_PER_KEY, DEFAULT_MAX_QUEUED_PER_KEY, DEFAULT_MAX_CONCURRENT);
+    }
+
+    public TenantBulkheads(int maxConcurrentPerKey, int maxQueuedPerKey, int maxConcurrent) {
+        this.maxConcurrentPerKey = maxConcurrentPerKey;
+        this.maxQueuedPerKey = maxQueuedPerKey;
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * Give every API key its own connection pool, sized to its concurrency limit, on top of the given client.
+     *
+     * @param baseUrls overrides of the regions' base URLs, i.e. for stub servers
+     */
+    public synchronized TenantBulkheads isolateConnections(OkHttpClient client, Map<IterableRegion, HttpUrl> baseUrls) {
+        this.isolatedClient = client;
+        this.baseUrls = baseUrls == null ? new EnumMap<>(IterableRegion.class) : baseUrls;
+        return this;
+    }
+
+    public synchronized boolean isolatesConnections() {
+        return isolatedClient != null;
+    }
+
+    /**
+     * The service with the key's own connection pool, see isolateConnections().
+     */
+    public synchronized IterableService service(String apiKey, IterableRegion region) {
+        if (isolatedClient == null) {
+            throw new IllegalStateException("Connections are not isolated.");
+        }
+        Tenant tenant = tenant(apiKey);
+        IterableService service = tenant.services.get(region);
+        if (service == null) {
+            if (tenant.client == null) {
+                ConnectionPool connectionPool = new ConnectionPool(maxConcurrentPerKey, 5, TimeUnit.MINUTES);
+                FreezeDetector.getInstance().register(connectionPool);
+                tenant.client = isolatedClient.newBuilder().connectionPool(connectionPool).build();
+            }
+            HttpUrl baseUrl = baseUrls.get(region);
+            service = IterableService.newInstance(tenant.client, baseUrl == null ? IterableService.baseUrl(region) : baseUrl);
+            tenant.services.put(region, service);
+        }
+        return service;
+    }
+
+    /**
+     * Run the call on the calling thread once the key has a free slot, waiting no longer than the current deadline.
+     */
+    public <T> T execute(String apiKey, Callable<T> call) throws IOException {
+        Tenant tenant = acquire(apiKey);
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            release(tenant);
+        }
+    }
+
+    /**
+     * Run the call on the calling thread if the key has a free slot right away, for callers that must not block.
+     *
+     * @throws BulkheadFullException without running the call when the key has no free slot
+     */
+    public <T> T tryExecute(String apiKey, Callable<T> call) throws IOException {
+        Tenant tenant = tryAcquire(apiKey);
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            release(tenant);
+        }
+    }
+
+    public synchronized int getActive(String apiKey) {
+        return tenant(apiKey).active;
+    }
+
+    public synchronized int getQueued(String apiKey) {
+        return tenant(apiKey).waiters.size();
+    }
+
+    public synchronized long getRejected(String apiKey) {
+        return tenant(apiKey).rejected;
+    }
+
+    private synchronized Tenant tryAcquire(String apiKey) throws BulkheadFullException {
+        Tenant tenant = tenant(apiKey);
+        if (!hasFreeSlot(tenant)) {
+            metrics.increment(tenant.metricPrefix + "saturated");
+            throw new BulkheadFullException("No free slot for API key " + tenant.hash);
+        }
+        admit(tenant);
+        return tenant;
+    }
+
+    private synchronized Tenant acquire(String apiKey) throws IOException {
+        Tenant tenant = tenant(apiKey);
+        if (hasFreeSlot(tenant)) {
+            admit(tenant);
+            return tenant;
+        }
+        if (tenant.waiters.size() >= maxQueuedPerKey) {
+            tenant.rejected++;
+            metrics.increment(tenant.metricPrefix + "rejected");
+            throw new BulkheadFullException("Too many calls queued for API key " + tenant.hash);
+        }
+        Waiter waiter = new Waiter();
+        tenant.waiters.add(waiter);
+        if (tenant.active < maxConcurrentPerKey && !ready.contains(tenant)) {
+            ready.add(tenant);
+        }
+        metrics.increment(tenant.metricPrefix + "saturated");
+        updateMetrics(tenant);
+        Deadline deadline = Deadline.current();
+        try {
+            while (!waiter.admitted) {
+                if (deadline == null) {
+                    wait();
+                } else if (deadline.remainingMillis() > 0) {
+                    wait(deadline.remainingMillis());
+                } else {
+                    tenant.waiters.remove(waiter);
+                    updateMetrics(tenant);
+                    throw new DeadlineExceededException("No free slot for API key " + tenant.hash + " before the deadline");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (waiter.admitted) {
+                release(tenant);
+            } else {
+                tenant.waiters.remove(waiter);
+                updateMetrics(tenant);
+            }
+            throw new IOException("Interrupted while waiting for a free slot for API key " + tenant.hash, e);
+        }
+        return tenant;
+    }
+
+    private synchronized void release(Tenant tenant) {
+        tenant.active--;
+        active--;
+        if (!tenant.waiters.isEmpty() && !ready.contains(tenant)) {
+            ready.add(tenant);
+        }
+        while (active < maxConcurrent && !ready.isEmpty()) {
+            Tenant next = ready.poll();
+            Waiter waiter = next.waiters.poll();
+            if (waiter == null) {
+                continue;
+            }
+            waiter.admitted = true;
+            admit(next);
+            if (!next.waiters.isEmpty() && next.active < maxConcurrentPerKey) {
+                ready.add(next);
+            }
+        }
+        updateMetrics(tenant);
+        notifyAll();
+    }
+
+    /**
+     * Whether the key can start a call without overtaking anyone waiting.
+     */
+    private boolean hasFreeSlot(Tenant tenant) {
+        return tenant.waiters.isEmpty() && ready.isEmpty() && tenant.active < maxConcurrentPerKey && active < maxConcurrent;
+    }
+
+    private void admit(Tenant tenant) {
+        tenant.active++;
+        active++;
+        updateMetrics(tenant);
+    }
+
+    private void updateMetrics(Tenant tenant) {
+        metrics.set(tenant.metricPrefix + "active", tenant.active);
+        metrics.set(tenant.metricPrefix + "queued", tenant.waiters.size());
+    }
+
+    private Tenant tenant(String apiKey) {
+        String key = apiKey == null ? "" : apiKey;
+        Tenant tenant = tenants.get(key);
+        if (tenant == null) {
+            tenant = new Tenant(FlightRecorderEvents.hash(key));
+            tenants.put(key, tenant);
+        }
+        return tenant;
+    }
+
+    private static class Tenant {
+        final String hash;
+        final String metricPrefix;
+        final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        final Map<IterableRegion, IterableService> services = new EnumMap<>(IterableRegion.class);
+        OkHttpClient client;
+        int active;
+        long rejected;
+
+        Tenant(String hash) {
+            this.hash = hash;
+            this.metricPrefix = "bulkhead." + hash + ".";
+        }
+    }
+
+    private static class Waiter {
+        boolean admitted;
+    }
+}
@@ -0,0 +1,64 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.sdk.model.registration.Account;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.mparticle.ext.iterable.IterableExtension.*;
+import static org.junit.Assert.*;
+
+public class AccountProfileTest {
+
+    @Test
+    public void testCachedBySettings() throws Exception {
+        AccountProfile profile = AccountProfile.of(account("profile key", "EU"));
+        assertEquals("profile key", profile.apiKey);
+        assertEquals("gcm", profile.gcmIntegrationName);
+        assertEquals(IterableRegion.EU, profile.region);
+
+        assertSame("Accounts with the same settings should share a profile", profile, AccountProfile.of(account("profile key", "EU")));
+        assertNotSame(profile, AccountProfile.of(account("profile key", "US")));
+    }
+
+    @Test
+    public void testValidation() throws Exception {
+        IOException exception = null;
+        try {
+            AccountProfile.of(account(null, null));
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull("The API key is required", exception);
+
+        AccountProfile profile = AccountProfile.of(account("profile key", null));
+        Map<String, String> audienceSettings = new HashMap<>();
+        audienceSettings.put(SETTING_LIST_ID, " 1234 ");
+        assertEquals(1234, profile.getListId(audienceSettings));
+        audienceSettings.put(SETTING_LIST_ID, "not a number");
+        exception = null;
+        try {
+            profile.getListId(audienceSettings);
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull(exception);
+    }
+
+    private static Account account(String apiKey, String dataCenter) {
+        Account account = new Account();
+        Map<String, String> settings = new HashMap<>();
+        if (apiKey != null) {
+            settings.put(SETTING_API_KEY, apiKey);
+        }
+        if (dataCenter != null) {
+            settings.put(SETTING_DATA_CENTER, dataCenter);
+        }
+        settings.put(SETTING_GCM_NAME_KEY, "gcm");
+        account.setAccountSettings(settings);
+        return account;
+    }
+}
@@ -0,0 +1,158 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableService;
+import com.mparticle.sdk.model.audienceprocessing.Audience;
+import com.mparticle.sdk.model.audienceprocessing.AudienceMembershipChangeRequest;
+import com.mparticle.sdk.model.audienceprocessing.UserProfile;
+import com.mparticle.sdk.model.eventprocessing.Identity;
+import com.mparticle.sdk.model.eventprocessing.UserIdentity;
+import com.mparticle.sdk.model.registration.Account;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_API_KEY;
+import static org.junit.Assert.*;
+
+public class AdaptiveBatchSizerTest {
+
+    @Test
+    public void testAdditiveIncreaseMultiplicativeDecrease() {
+        AdaptiveBatchSizer.Config config = new AdaptiveBatchSizer.Config();
+        config.minSize = 10;
+        config.maxSize = 130;
+        config.initialSize = 100;
+        config.increment = 10;
+        config.latencyTargetMillis = 500;
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(config);
+        String route = "lists/subscribe";
+
+        sizer.record(route, "key", 100, 200);
+        assertEquals(110, sizer.size(route, "key"));
+        assertEquals("Sizes are kept per API key", 100, sizer.size(route, "other key"));
+        sizer.record(route, "key", 600, 200);
+        assertEquals("Slow calls don't grow the size", 110, sizer.size(route, "key"));
+        sizer.record(route, "key", 100, 400);
+        assertEquals("Bad requests say nothing about the size", 110, sizer.size(route, "key"));
+        sizer.record(route, "key", 100, 429);
+        assertEquals(55, sizer.size(route, "key"));
+        sizer.record(route, "key", 100, 200);
+        assertEquals("No growth right after overload", 55, sizer.size(route, "key"));
+        sizer.recordFailure(route, "key", 500, new SocketTimeoutException());
+        sizer.record(route, "key", 100, 503);
+        sizer.record(route, "key", 100, 502);
+        assertEquals(10, sizer.size(route, "key"));
+        for (int i = 0; i < 100; i++) {
+            sizer.record(route, "key", 100, 200);
+        }
+        assertEquals(130, sizer.size(route, "key"));
+    }
+
+    /**
+     * Audience updates with thousands of members against a stub that answers 429 above a capacity it doesn't
+     * advertise: the chunk size should climb to it, then keep within a factor of two below it.
+     */
+    @Test
+    public void testConvergesAgainstStub() throws Exception {
+        int capacity = 250;
+        int membersPerRequest = 2000;
+        AtomicInteger sent = new AtomicInteger();
+        Pattern email = Pattern.compile("\"email\"");
+        List<Integer> sizes = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> codes = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/lists/subscribe", exchange -> {
+            String body;
+            try (InputStream in = exchange.getRequestBody(); Scanner scanner = new Scanner(in, "UTF-8")) {
+                body = scanner.useDelimiter("\\A").hasNext() ? scanner.next() : "";
+            }
+            int members = 0;
+            for (Matcher matcher = email.matcher(body); matcher.find(); ) {
+                members++;
+            }
+            int code = members > capacity ? 429 : 200;
+            //the last chunk of each request only holds what's left, rejected chunks are sent again
+            if (code != 200 || sent.addAndGet(members) % membersPerRequest != 0) {
+                sizes.add(members);
+                codes.add(code);
+            }
+            try {
+                Thread.sleep(members / 50);
+            } catch (InterruptedException ignored) {
+            }
+            byte[] response = ("{\"successCount\":" + (code == 200 ? members : 0) + ",\"failCount\":0}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(code, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        });
+        server.start();
+        AdaptiveBatchSizer.Config config = new AdaptiveBatchSizer.Config();
+        config.initialSize = 20;
+        config.increment = 20;
+        try {
+            IterableExtension extension = new IterableExtension();
+            extension.setIterableService(IterableService.newInstance(IterableService.newClientBuilder().build(),
+                    HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/")));
+            extension.setBatchSizer(new AdaptiveBatchSizer(config));
+            for (int round = 0; round < 10; round++) {
+                extension.processAudienceMembershipChangeRequest(audienceRequest(membersPerRequest));
+            }
+        } finally {
+            server.stop(0);
+        }
+
+        assertEquals(20, (int) sizes.get(0));
+        int warmUp = 30;
+        assertTrue("Expected enough calls to converge, got " + sizes.size(), sizes.size() > warmUp * 2);
+        int overloaded = 0;
+        for (int i = warmUp; i < sizes.size(); i++) {
+            int size = sizes.get(i);
+            //a short last chunk can get through while the size is above capacity, growing it one more step
+            assertTrue("Chunk of " + size + " after converging", size > capacity / 2 - config.increment && size <= capacity + 2 * config.increment);
+            if (codes.get(i) == 429) {
+                overloaded++;
+            }
+        }
+        assertTrue("Too many overloaded calls: " + overloaded, overloaded < (sizes.size() - warmUp) / 5);
+    }
+
+    private static AudienceMembershipChangeRequest audienceRequest(int members) {
+        Audience audience = new Audience();
+        Map<String, String> audienceSettings = new HashMap<>();
+        audienceSettings.put(IterableExtension.SETTING_LIST_ID, "1");
+        audience.setAudienceSubscriptionSettings(audienceSettings);
+        List<UserProfile> profiles = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            UserProfile profile = new UserProfile();
+            profile.setAddedAudiences(Collections.singletonList(audience));
+            List<UserIdentity> identities = new ArrayList<>();
+            identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user" + i + "@mparticle.com"));
+            profile.setUserIdentities(identities);
+            profiles.add(profile);
+        }
+        AudienceMembershipChangeRequest request = new AudienceMembershipChangeRequest();
+        Account account = new Account();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(SETTING_API_KEY, "some api key");
+        account.setAccountSettings(settings);
+        request.setAccount(account);
+        request.setUserProfiles(profiles);
+        return request;
+    }
+}
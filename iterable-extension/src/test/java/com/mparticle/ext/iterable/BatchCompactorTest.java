@@ -0,0 +1,98 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.UpdateEmailRequest;
+import com.mparticle.sdk.model.eventprocessing.CustomEvent;
+import com.mparticle.sdk.model.eventprocessing.Event;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class BatchCompactorTest {
+
+    @Test
+    public void testCompactEmailChanges() throws Exception {
+        List<UpdateEmailRequest> changes = Arrays.asList(
+                emailChange("placeholder@placeholder.email", "a@mparticle.com"),
+                emailChange("a@mparticle.com", "b@mparticle.com"),
+                emailChange("B@mparticle.com", "c@mparticle.com"),
+                emailChange("x@mparticle.com", "y@mparticle.com"),
+                emailChange("y@mparticle.com", "x@mparticle.com")
+        );
+
+        List<UpdateEmailRequest> migrations = BatchCompactor.compactEmailChanges(changes);
+
+        assertEquals(1, migrations.size());
+        assertEquals("placeholder@placeholder.email", migrations.get(0).currentEmail);
+        assertEquals("c@mparticle.com", migrations.get(0).newEmail);
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        CustomEvent first = subscriptionEvent(1);
+        CustomEvent track = new CustomEvent();
+        track.setId(UUID.randomUUID());
+        track.setName("some event");
+        track.setTimestamp(2);
+        CustomEvent redelivered = new CustomEvent();
+        redelivered.setId(track.getId());
+        redelivered.setName("some event");
+        redelivered.setTimestamp(2);
+        CustomEvent last = subscriptionEvent(3);
+
+        EventProcessingRequest request = new EventProcessingRequest();
+        request.setEvents(new ArrayList<>(Arrays.<Event>asList(first, track, redelivered, last)));
+
+        BatchCompactor.compact(request);
+
+        assertEquals(2, request.getEvents().size());
+        assertSame(track, request.getEvents().get(0));
+        assertSame(last, request.getEvents().get(1));
+    }
+
+    @Test
+    public void testSubscriptionUpdatesMergedPerField() throws Exception {
+        CustomEvent lists = subscriptionEvent(1);
+        lists.setAttributes(new HashMap<>());
+        lists.getAttributes().put(IterableExtension.EMAIL_LIST_ID_LIST_KEY, "1,2");
+        lists.getAttributes().put(IterableExtension.UNSUBSCRIBE_CHANNEL_ID_LIST_KEY, "5");
+        CustomEvent channels = subscriptionEvent(2);
+        channels.setAttributes(new HashMap<>());
+        channels.getAttributes().put(IterableExtension.UNSUBSCRIBE_CHANNEL_ID_LIST_KEY, "7");
+        channels.getAttributes().put(IterableExtension.CAMPAIGN_ID_KEY, "42");
+        CustomEvent unrelated = new CustomEvent();
+        unrelated.setName("some event");
+        unrelated.setTimestamp(3);
+        unrelated.setAttributes(Collections.singletonMap(IterableExtension.UNSUBSCRIBE_MESSAGE_TYPE_ID_LIST_KEY, "9"));
+
+        EventProcessingRequest request = new EventProcessingRequest();
+        request.setEvents(new ArrayList<>(Arrays.<Event>asList(lists, channels, unrelated)));
+
+        BatchCompactor.compact(request);
+
+        assertEquals(Arrays.<Event>asList(channels, unrelated), request.getEvents());
+        Map<String, String> expected = new HashMap<>();
+        expected.put(IterableExtension.EMAIL_LIST_ID_LIST_KEY, "1,2");
+        expected.put(IterableExtension.UNSUBSCRIBE_CHANNEL_ID_LIST_KEY, "7");
+        expected.put(IterableExtension.CAMPAIGN_ID_KEY, "42");
+        assertEquals("Each field should keep the value of the last event that set it", expected, channels.getAttributes());
+    }
+
+    private static UpdateEmailRequest emailChange(String currentEmail, String newEmail) {
+        UpdateEmailRequest request = new UpdateEmailRequest();
+        request.currentEmail = currentEmail;
+        request.newEmail = newEmail;
+        return request;
+    }
+
+    private static CustomEvent subscriptionEvent(long timestamp) {
+        CustomEvent event = new CustomEvent();
+        event.setId(UUID.randomUUID());
+        event.setName(IterableExtension.UPDATE_SUBSCRIPTIONS_CUSTOM_EVENT_NAME);
+        event.setTimestamp(timestamp);
+        return event;
+    }
+}
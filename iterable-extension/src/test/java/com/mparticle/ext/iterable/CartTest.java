@@ -0,0 +1,44 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.CommerceItem;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CartTest {
+
+    @Test
+    public void testItemsWithoutQuantityCountAsOne() {
+        Cart cart = new Cart(Collections.singletonList(item("a", null)));
+        cart.add(item("a", null));
+        cart.add(item("b", null));
+        cart.remove(item("b", null));
+        cart.add(item("c", null));
+
+        List<CommerceItem> items = cart.getItems();
+        assertEquals(2, items.size());
+        assertEquals("a", items.get(0).id);
+        assertEquals(2, (int) items.get(0).quantity);
+        assertEquals("c", items.get(1).id);
+        assertEquals(1, (int) items.get(1).quantity);
+        assertTrue(cart.isChanged());
+    }
+
+    @Test
+    public void testRemovingUnknownItemChangesNothing() {
+        Cart cart = new Cart(Collections.singletonList(item("a", 1)));
+        cart.remove(item("b", 1));
+        assertFalse(cart.isChanged());
+        assertEquals(1, cart.getItems().size());
+    }
+
+    private static CommerceItem item(String id, Integer quantity) {
+        CommerceItem item = new CommerceItem();
+        item.id = item.sku = id;
+        item.quantity = quantity;
+        return item;
+    }
+}
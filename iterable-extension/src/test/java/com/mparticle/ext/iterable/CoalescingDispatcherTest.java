@@ -0,0 +1,181 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.*;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CoalescingDispatcherTest {
+
+    @Test
+    public void testTrackFlushedOnSizeThreshold() throws Exception {
+        IterableService service = Mockito.mock(IterableService.class);
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(service.trackBulk(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        BulkResponse bulkResponse = new BulkResponse();
+        bulkResponse.successCount = 2;
+        bulkResponse.failCount = 1;
+        bulkResponse.invalidEmails = Arrays.asList("bad@mparticle.com");
+        Mockito.when(callMock.execute()).thenReturn(Response.success(bulkResponse));
+
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 60000, 3, 1);
+        CompletableFuture<IterableApiResponse> first = dispatcher.track("some api key", trackRequest("first@mparticle.com"));
+        CompletableFuture<IterableApiResponse> second = dispatcher.track("some api key", trackRequest("bad@mparticle.com"));
+        CompletableFuture<IterableApiResponse> third = dispatcher.track("some api key", trackRequest("third@mparticle.com"));
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+        assertFalse(second.get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(third.get(5, TimeUnit.SECONDS).isSuccess());
+
+        ArgumentCaptor<TrackBulkRequest> argument = ArgumentCaptor.forClass(TrackBulkRequest.class);
+        ArgumentCaptor<String> apiArg = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(service, Mockito.times(1)).trackBulk(apiArg.capture(), argument.capture());
+        assertEquals("some api key", apiArg.getValue());
+        assertEquals(3, argument.getValue().events.size());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testFlushedPerApiKeyOnWindow() throws Exception {
+        IterableService service = Mockito.mock(IterableService.class);
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(service.userBulkUpdate(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        BulkResponse bulkResponse = new BulkResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Mockito.when(callMock.execute()).thenReturn(Response.success(bulkResponse));
+
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 10, 100, 1);
+        UserUpdateRequest request1 = new UserUpdateRequest();
+        request1.email = "mptest@mparticle.com";
+        UserUpdateRequest request2 = new UserUpdateRequest();
+        request2.email = "mptest-2@mparticle.com";
+        CompletableFuture<IterableApiResponse> first = dispatcher.userUpdate("key 1", request1);
+        CompletableFuture<IterableApiResponse> second = dispatcher.userUpdate("key 2", request2);
+
+        assertTrue(first.get(5, TimeUnit.SECONDS).isSuccess());
+        assertTrue(second.get(5, TimeUnit.SECONDS).isSuccess());
+        Mockito.verify(service, Mockito.times(1)).userBulkUpdate(Mockito.eq("key 1"), Mockito.any());
+        Mockito.verify(service, Mockito.times(1)).userBulkUpdate(Mockito.eq("key 2"), Mockito.any());
+        dispatcher.close();
+    }
+
+    @Test
+    public void testHttpErrorFailsEveryItem() throws Exception {
+        IterableService service = Mockito.mock(IterableService.class);
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(service.bulkUpdateSubscriptions(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        Mockito.when(callMock.execute()).thenReturn(Response.error(500, okhttp3.ResponseBody.create(null, "")));
+
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 60000, 100, 1);
+        UpdateSubscriptionsRequest request = new UpdateSubscriptionsRequest();
+        request.email = "mptest@mparticle.com";
+        CompletableFuture<IterableApiResponse> future = dispatcher.updateSubscriptions("some api key", request);
+        dispatcher.flush();
+
+        ExecutionException exception = null;
+        try {
+            future.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            exception = e;
+        }
+        assertNotNull("A failed bulk call should fail every caller", exception);
+        dispatcher.close();
+    }
+
+    @Test
+    public void testBulkCallPartOfEnqueuingTraces() throws Exception {
+        IterableService service = Mockito.mock(IterableService.class);
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(service.trackBulk(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        List<Span> callSpans = Collections.synchronizedList(new ArrayList<>());
+        Mockito.when(callMock.execute()).thenAnswer(invocation -> {
+            //where TracingInterceptor would start the span of the call
+            callSpans.add(Tracing.current());
+            return Response.success(new BulkResponse());
+        });
+        Tracing.setTracer(TestSpan::new);
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 60000, 100, 1);
+        try {
+            Span first = Tracing.startSpan("first");
+            Span second = Tracing.startSpan("second");
+            List<CompletableFuture<IterableApiResponse>> futures = new ArrayList<>();
+            for (Span span : Arrays.asList(first, first, second)) {
+                Span previous = Tracing.setCurrent(span);
+                try {
+                    futures.add(dispatcher.track("some api key", trackRequest("mptest@mparticle.com")));
+                } finally {
+                    Tracing.setCurrent(previous);
+                }
+            }
+            dispatcher.flush();
+            for (CompletableFuture<IterableApiResponse> future : futures) {
+                assertTrue(future.get(5, TimeUnit.SECONDS).isSuccess());
+            }
+
+            assertEquals(1, callSpans.size());
+            TestSpan bulk = (TestSpan) callSpans.get(0);
+            assertEquals("coalesced events/trackBulk", bulk.name);
+            assertSame("The bulk call should be part of its first item's trace", first, bulk.parent);
+            assertEquals(3, bulk.attributes.get("coalesced.items"));
+            assertEquals("second/second", bulk.attributes.get("coalesced.links"));
+            assertTrue(bulk.ended);
+        } finally {
+            Tracing.setTracer(null);
+            dispatcher.close();
+        }
+    }
+
+    private static TrackRequest trackRequest(String email) {
+        TrackRequest request = new TrackRequest("Test Event");
+        request.email = email;
+        return request;
+    }
+
+    private static class TestSpan implements Span {
+        final String name;
+        final Span parent;
+        final Map<String, Object> attributes = new HashMap<>();
+        volatile boolean ended;
+
+        TestSpan(String name, Span parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        @Override
+        public Span setAttribute(String key, Object value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+            attributes.put("error", error);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+
+        @Override
+        public String getTraceId() {
+            return parent == null ? name : parent.getTraceId();
+        }
+
+        @Override
+        public String getSpanId() {
+            return name;
+        }
+    }
+}
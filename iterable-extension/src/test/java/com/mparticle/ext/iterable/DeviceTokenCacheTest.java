@@ -0,0 +1,54 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class DeviceTokenCacheTest {
+
+    @Test
+    public void testTtlAndBound() throws Exception {
+        DeviceTokenCache cache = new DeviceTokenCache(2, 50);
+        String a = DeviceTokenCache.key("api key", "mptest@mparticle.com", "GCM", "app", "token a");
+        String b = DeviceTokenCache.key("api key", "mptest@mparticle.com", "GCM", "app", "token b");
+        String c = DeviceTokenCache.key("api key", "mptest@mparticle.com", "GCM", "app", "token c");
+        assertFalse(cache.isRegistered(a));
+        cache.registered(a);
+        assertTrue(cache.isRegistered(a));
+        assertFalse(cache.isRegistered(DeviceTokenCache.key("api key", "mptest@mparticle.com", "APNS", "app", "token a")));
+
+        cache.registered(b);
+        cache.registered(c);
+        assertEquals(2, cache.size());
+
+        Thread.sleep(60);
+        assertFalse("Registrations should expire after the TTL", cache.isRegistered(c));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        Path file = Files.createTempFile("device-tokens", ".txt");
+        try {
+            String key = DeviceTokenCache.key("api key", "mptest@mparticle.com", "GCM", "app", "token");
+            DeviceTokenCache cache = new DeviceTokenCache(1, 60000, file);
+            cache.registered(key);
+            assertFalse("Emails shouldn't be written to disk", new String(Files.readAllBytes(file), "UTF-8").contains("mptest"));
+
+            assertTrue(new DeviceTokenCache(1, 60000, file).isRegistered(key));
+
+            //enough registrations to rewrite the file, which then only holds the latest
+            String other = DeviceTokenCache.key("api key", "other@mparticle.com", "GCM", "app", "token");
+            cache.registered(other);
+            cache.registered(other);
+            assertEquals(1, Files.readAllLines(file).size());
+            DeviceTokenCache reloaded = new DeviceTokenCache(1, 60000, file);
+            assertTrue(reloaded.isRegistered(other));
+            assertFalse(reloaded.isRegistered(key));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
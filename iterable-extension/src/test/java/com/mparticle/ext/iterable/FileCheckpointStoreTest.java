@@ -0,0 +1,32 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class FileCheckpointStoreTest {
+
+    @Test
+    public void testCheckpoints() throws Exception {
+        Path directory = Files.createTempDirectory("checkpoints");
+        try {
+            FileCheckpointStore store = new FileCheckpointStore(directory);
+            store.delivered("batch", "event 1");
+            assertTrue(store.isDelivered("batch", "event 1"));
+            assertFalse(store.isDelivered("batch", "event 2"));
+            assertFalse(store.isDelivered("other batch", "event 1"));
+
+            //as seen by a new container
+            FileCheckpointStore restarted = new FileCheckpointStore(directory);
+            assertTrue(restarted.isDelivered("batch", "event 1"));
+
+            restarted.completed("batch");
+            assertFalse(new FileCheckpointStore(directory).isDelivered("batch", "event 1"));
+        } finally {
+            Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingResponse;
+import com.mparticle.sdk.model.eventprocessing.Identity;
+import com.mparticle.sdk.model.eventprocessing.UserIdentity;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class IterableBackfillTest {
+
+    @Test
+    public void testBackfillResumesFromCheckpoint() throws Exception {
+        Path directory = Files.createTempDirectory("backfill");
+        try {
+            Path input = directory.resolve("batches.ndjson");
+            Path checkpoints = Files.createDirectory(directory.resolve("checkpoints"));
+            Files.write(input, "{\"user\":\"a\"}\n{\"user\":\"b\"}\nnot json\n{\"user\":\"fail\"}\n{\"user\":\"a\"}\n"
+                    .getBytes(StandardCharsets.UTF_8));
+
+            MessageSerializer serializer = Mockito.mock(MessageSerializer.class);
+            Mockito.when(serializer.deserialize(Mockito.anyString(), Mockito.eq(EventProcessingRequest.class))).thenAnswer(invocation -> {
+                String json = (String) invocation.getArguments()[0];
+                if (!json.startsWith("{")) {
+                    throw new IOException("not json");
+                }
+                return request(json.substring(9, json.length() - 2) + "@example.com");
+            });
+            List<String> processed = Collections.synchronizedList(new ArrayList<>());
+            IterableExtension extension = Mockito.mock(IterableExtension.class);
+            Mockito.when(extension.processMessage(Mockito.any(Message.class))).thenAnswer(invocation -> {
+                String email = ((EventProcessingRequest) invocation.getArguments()[0]).getUserIdentities().get(0).getValue();
+                if (email.startsWith("fail")) {
+                    throw new IOException("rejected");
+                }
+                processed.add(email);
+                return new EventProcessingResponse();
+            });
+            ByteArrayOutputStream progress = new ByteArrayOutputStream();
+
+            IterableBackfill.Summary summary = new IterableBackfill(extension, serializer, input, checkpoints, 4, 0, 50,
+                    new PrintStream(progress, true)).run();
+            assertEquals(3, summary.records);
+            assertEquals(2, summary.failed);
+            assertEquals(Files.size(input), summary.offset);
+            assertEquals(3, processed.size());
+            assertTrue(new String(progress.toByteArray(), StandardCharsets.UTF_8).contains("records=3"));
+            List<String> failed = Files.readAllLines(checkpoints.resolve(IterableBackfill.FAILED_FILE), StandardCharsets.UTF_8);
+            assertEquals(2, failed.size());
+            assertEquals("not json", failed.get(0));
+
+            processed.clear();
+            Files.write(input, "{\"user\":\"c\"}\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+            summary = new IterableBackfill(extension, serializer, input, checkpoints, 4, 1000, 50,
+                    new PrintStream(progress, true)).run();
+            assertEquals("Only the appended record should be processed", 1, summary.records);
+            assertEquals(Collections.singletonList("c@example.com"), processed);
+        } finally {
+            Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 11; i++) {
+            limiter.acquire();
+        }
+        assertTrue("11 permits at 100/s take at least 100ms", System.nanoTime() - start >= 95_000_000L);
+    }
+
+    private static EventProcessingRequest request(String email) {
+        EventProcessingRequest request = new EventProcessingRequest();
+        List<UserIdentity> identities = new ArrayList<>();
+        identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, email));
+        request.setUserIdentities(identities);
+        return request;
+    }
+}
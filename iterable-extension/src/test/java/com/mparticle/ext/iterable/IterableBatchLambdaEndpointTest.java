@@ -0,0 +1,106 @@
+package com.mparticle.ext.iterable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.mparticle.iterable.Deadline;
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingResponse;
+import com.mparticle.sdk.model.eventprocessing.Identity;
+import com.mparticle.sdk.model.eventprocessing.UserIdentity;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IterableBatchLambdaEndpointTest {
+
+    @Test
+    public void testReadRecords() throws Exception {
+        String kinesisData = Base64.getEncoder().encodeToString("{\"type\":\"c\"}".getBytes(StandardCharsets.UTF_8));
+        assertEquals(2, IterableBatchLambdaEndpoint.readRecords(stream("[{\"type\":\"a\"},{\"type\":\"b\"}]")).size());
+        assertEquals(3, IterableBatchLambdaEndpoint.readRecords(stream("{\"type\":\"a\"}\n{\"type\":\"b\"}\n{\"type\":\"c\"}\n")).size());
+
+        List<String> records = IterableBatchLambdaEndpoint.readRecords(stream("{\"Records\":[{\"body\":\"{\\\"type\\\":\\\"a\\\"}\"}," +
+                "{\"kinesis\":{\"data\":\"" + kinesisData + "\"}}]}"));
+        assertEquals(2, records.size());
+        assertEquals("{\"type\":\"a\"}", records.get(0));
+        assertEquals("{\"type\":\"c\"}", records.get(1));
+    }
+
+    @Test
+    public void testBoundedParallelismAndPerMessageResults() throws Exception {
+        IterableExtension extension = Mockito.mock(IterableExtension.class);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Mockito.when(extension.processMessage(Mockito.any(Message.class), Mockito.any())).thenAnswer(invocation -> {
+            int now = running.incrementAndGet();
+            maxRunning.accumulateAndGet(now, Math::max);
+            try {
+                Thread.sleep(20);
+                EventProcessingRequest request = (EventProcessingRequest) invocation.getArguments()[0];
+                if (request.getUserIdentities().get(0).getValue().equals("fail@example.com")) {
+                    throw new IOException("rejected");
+                }
+                return new EventProcessingResponse();
+            } finally {
+                running.decrementAndGet();
+            }
+        });
+        IterableBatchLambdaEndpoint endpoint = new IterableBatchLambdaEndpoint(extension, new MessageSerializer(), 3);
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            messages.add(request(i == 7 ? "fail@example.com" : "user" + i + "@example.com"));
+        }
+        List<IterableBatchLambdaEndpoint.Result> results = endpoint.processMessages(messages, Deadline.afterMillis(10000));
+
+        assertEquals(20, results.size());
+        assertTrue("At most 3 messages should run at once", maxRunning.get() <= 3);
+        assertTrue("Messages for different users should run in parallel", maxRunning.get() > 1);
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).index);
+            assertEquals(i != 7, results.get(i).isSuccess());
+        }
+        assertTrue(results.get(7).error.contains("rejected"));
+    }
+
+    @Test
+    public void testInvalidRecordOnlyFailsItself() throws Exception {
+        IterableExtension extension = Mockito.mock(IterableExtension.class);
+        IterableBatchLambdaEndpoint endpoint = new IterableBatchLambdaEndpoint(extension, new MessageSerializer(), 2);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        endpoint.handleRequest(stream("{\"Records\":[{\"body\":\"not a message\"}]}"), output, null);
+
+        JsonNode results = new ObjectMapper().readTree(output.toByteArray());
+        assertEquals(1, results.size());
+        assertEquals(0, results.get(0).get("index").asInt());
+        assertTrue(results.get(0).has("error"));
+        Mockito.verify(extension, Mockito.never()).processMessage(Mockito.any(Message.class), Mockito.any());
+        assertEquals(Collections.emptyList(), endpoint.process(Collections.emptyList(), null));
+    }
+
+    private static EventProcessingRequest request(String email) {
+        EventProcessingRequest request = new EventProcessingRequest();
+        List<UserIdentity> identities = new ArrayList<>();
+        identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, email));
+        request.setUserIdentities(identities);
+        return request;
+    }
+
+    private static ByteArrayInputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -19,8 +19,13 @@ import retrofit2.Response;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static com.mparticle.ext.iterable.IterableExtension.SETTING_API_KEY;
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_ATTRIBUTE_ALLOW_LIST;
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_EVENT_DENY_LIST;
 import static org.junit.Assert.*;
 
 public class IterableExtensionTest {
@@ -46,11 +51,7 @@ public class IterableExtensionTest {
         events.add(customEvent4);
 
         request.setEvents(events);
-        Account account = new Account();
-        HashMap<String, String> settings = new HashMap<String, String>();
-        settings.put(SETTING_API_KEY, "cool api key");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
+        request.setAccount(account("cool api key"));
         extension.processEventProcessingRequest(request);
         assertNotNull("IterableService should have been created", extension.iterableService);
 
@@ -64,19 +65,11 @@ public class IterableExtensionTest {
     public void testUpdateUser() throws Exception {
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        IterableApiResponse apiResponse = success();
+        Call callMock = answering(apiResponse);
         Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
-        EventProcessingRequest request = new EventProcessingRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo api key");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
+        EventProcessingRequest request = eventRequest("foo api key");
         //no user identities, no API call
         extension.updateUser(request);
         UserUpdateRequest userUpdateRequest = new UserUpdateRequest();
@@ -119,6 +112,39 @@ public class IterableExtensionTest {
 
     }
 
+    @Test
+    public void testEmailChangesCollapsedInTimestampOrder() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        Mockito.when(extension.iterableService.updateEmail(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        EventProcessingRequest request = eventRequest("foo", email("c@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        List<Event> events = new LinkedList<>();
+        events.add(emailChange(3, "b@mparticle.com", "c@mparticle.com"));
+        events.add(emailChange(2, "a@mparticle.com", "b@mparticle.com"));
+        events.add(emailChange(1, null, "a@mparticle.com"));
+        request.setEvents(events);
+
+        extension.updateUser(request);
+
+        ArgumentCaptor<UpdateEmailRequest> emailArgs = ArgumentCaptor.forClass(UpdateEmailRequest.class);
+        Mockito.verify(extension.iterableService).updateEmail(Mockito.eq("foo"), emailArgs.capture());
+        assertEquals("1234@placeholder.email", emailArgs.getValue().currentEmail);
+        assertEquals("c@mparticle.com", emailArgs.getValue().newEmail);
+    }
+
+    private static UserIdentityChangeEvent emailChange(long timestamp, String removed, String added) {
+        UserIdentityChangeEvent event = new UserIdentityChangeEvent();
+        event.setTimestamp(timestamp);
+        event.setAdded(Collections.singletonList(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, added)));
+        if (removed != null) {
+            event.setRemoved(Collections.singletonList(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, removed)));
+        }
+        return event;
+    }
+
     @org.junit.Test
     public void testProcessUserAttributeChangeEvent() throws Exception {
         //just verify that we're not processing anything - it's all done in processEventProcessingRequest
@@ -166,28 +192,16 @@ public class IterableExtensionTest {
     public void testProcessCustomEvent() throws Exception {
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        IterableApiResponse apiResponse = success();
+        Call callMock = answering(apiResponse);
         Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
 
         long timeStamp = System.currentTimeMillis();
         CustomEvent event = new CustomEvent();
         event.setTimestamp(timeStamp);
         event.setName("My Event Name");
-        EventProcessingRequest request = new EventProcessingRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
-        List<UserIdentity> userIdentities = new LinkedList<>();
-        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        userIdentities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
-        request.setUserIdentities(userIdentities);
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"), customerId("123456"));
         Event.Context context = new Event.Context(request);
         event.setContext(context);
         Map<String, String> attributes = new HashMap<>();
@@ -215,24 +229,55 @@ public class IterableExtensionTest {
         assertNotNull("Iterable extension should have thrown an IOException", exception);
     }
 
+    @org.junit.Test
+    public void testProcessCustomEventFiltered() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.getAccount().getAccountSettings().put(SETTING_EVENT_DENY_LIST, "debug_*");
+        request.getAccount().getAccountSettings().put(SETTING_ATTRIBUTE_ALLOW_LIST, "sku, /price|quantity/");
+        Event.Context context = new Event.Context(request);
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("sku", "1234");
+        attributes.put("price", "9.99");
+        attributes.put("session_trace", "abc");
+
+        IterableMetrics.getInstance().reset();
+        CustomEvent debugEvent = new CustomEvent();
+        debugEvent.setName("debug_render");
+        debugEvent.setAttributes(attributes);
+        debugEvent.setContext(context);
+        extension.processCustomEvent(debugEvent);
+        Mockito.verify(extension.iterableService, Mockito.never()).track(Mockito.any(), Mockito.any());
+        assertEquals(1, IterableMetrics.getInstance().get("filter.events.dropped"));
+        assertTrue(IterableMetrics.getInstance().get("filter.events.bytes") > 0);
+
+        CustomEvent event = new CustomEvent();
+        event.setName("purchase");
+        event.setAttributes(attributes);
+        event.setContext(context);
+        extension.processCustomEvent(event);
+        ArgumentCaptor<TrackRequest> argument = ArgumentCaptor.forClass(TrackRequest.class);
+        Mockito.verify(extension.iterableService).track(Mockito.any(), argument.capture());
+        assertEquals(2, argument.getValue().dataFields.size());
+        assertEquals(1234, argument.getValue().dataFields.get("sku"));
+        assertEquals(9.99, argument.getValue().dataFields.get("price"));
+        assertEquals(1, IterableMetrics.getInstance().get("filter.attributes.dropped"));
+    }
+
     @org.junit.Test
     public void testProcessAndroidPushMessageReceiptEvent() throws Exception {
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        IterableApiResponse apiResponse = success();
+        Call callMock = answering(apiResponse);
         Mockito.when(extension.iterableService.trackPushOpen(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
-        EventProcessingRequest eventProcessingRequest = new EventProcessingRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo");
-        account.setAccountSettings(settings);
-        eventProcessingRequest.setAccount(account);
-        eventProcessingRequest.setUserIdentities(new LinkedList<>());
+        EventProcessingRequest eventProcessingRequest = eventRequest("foo");
         PushMessageReceiptEvent event = new PushMessageReceiptEvent();
         event.setContext(new Event.Context(eventProcessingRequest));
         IOException exception = null;
@@ -244,10 +289,7 @@ public class IterableExtensionTest {
         }
         assertNotNull("Iterable should have thrown an exception due to missing email/customerid", exception);
 
-        List<UserIdentity> userIdentities = new LinkedList<>();
-        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        userIdentities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
-        eventProcessingRequest.setUserIdentities(userIdentities);
+        eventProcessingRequest.setUserIdentities(Arrays.asList(email("mptest@mparticle.com"), customerId("123456")));
         eventProcessingRequest.setRuntimeEnvironment(new AndroidRuntimeEnvironment());
         event.setContext(new Event.Context(eventProcessingRequest));
         event.setPayload("{\"google.sent_time\":1507657706679,\"body\":\"example\",\"from\":\"674988899928\",\"itbl\":\"{\\\"campaignId\\\":12345,\\\"isGhostPush\\\":false,\\\"messageId\\\":\\\"1dce4e505b11111ca1111d6fdd774fbd\\\",\\\"templateId\\\":54321}\",\"google.message_id\":\"0:1507657706689231%62399b94f9fd7ecd\"}");
@@ -278,25 +320,262 @@ public class IterableExtensionTest {
 
     }
 
+    @Test
+    public void testRedeliveryOnlyResendsFailedEvents() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.setCheckpointStore(new InMemoryCheckpointStore(10));
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        Set<String> failing = new HashSet<>(Arrays.asList("second", "third"));
+        List<String> sent = new LinkedList<>();
+        Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            TrackRequest trackRequest = (TrackRequest) invocation.getArguments()[1];
+            sent.add(trackRequest.getEventName());
+            IterableApiResponse trackResponse = success();
+            if (failing.contains(trackRequest.getEventName())) {
+                trackResponse.code = "GenericError";
+            }
+            return answering(trackResponse);
+        });
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        List<Event> events = new LinkedList<>();
+        for (String name : Arrays.asList("first", "second", "third", "fourth")) {
+            CustomEvent event = new CustomEvent();
+            event.setId(UUID.randomUUID());
+            event.setName(name);
+            event.setTimestamp(events.size());
+            events.add(event);
+        }
+        request.setEvents(events);
+
+        BatchFailedException exception = null;
+        try {
+            extension.processEventProcessingRequest(request);
+        } catch (BatchFailedException e) {
+            exception = e;
+        }
+        assertNotNull("Both failures should be reported once the whole batch was processed", exception);
+        assertEquals(2, exception.getFailures().size());
+        assertEquals(Arrays.asList("first", "second", "third", "fourth"), sent);
+
+        //mParticle redelivers the batch
+        failing.clear();
+        sent.clear();
+        extension.processEventProcessingRequest(request);
+        assertEquals(Arrays.asList("second", "third"), sent);
+    }
+
+    @Test
+    public void testShedEventNotMarkedDelivered() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        InMemoryCheckpointStore checkpointStore = new InMemoryCheckpointStore(10);
+        extension.setCheckpointStore(checkpointStore);
+        boolean[] shedding = {true};
+        PriorityScheduler scheduler = Mockito.mock(PriorityScheduler.class);
+        Mockito.when(scheduler.priorityOf(Mockito.any(), Mockito.any())).thenReturn(PriorityScheduler.Priority.NORMAL);
+        Mockito.when(scheduler.priorityOf(Mockito.eq(Event.Type.CUSTOM_EVENT), Mockito.any())).thenReturn(PriorityScheduler.Priority.LOW);
+        Mockito.when(scheduler.execute(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            if (invocation.getArguments()[0] == PriorityScheduler.Priority.LOW && shedding[0]) {
+                throw new PriorityScheduler.LoadShedException("Shed LOW priority call: queue full");
+            }
+            return ((java.util.concurrent.Callable) invocation.getArguments()[1]).call();
+        });
+        extension.setPriorityScheduler(scheduler);
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        Call trackCall = answering(success());
+        Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any())).thenReturn(trackCall);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setId(UUID.randomUUID());
+        request.setDeviceApplicationStamp("1234");
+        CustomEvent event = new CustomEvent();
+        event.setId(UUID.randomUUID());
+        event.setName("My Event Name");
+        List<Event> events = new LinkedList<>();
+        events.add(event);
+        request.setEvents(events);
+
+        PriorityScheduler.LoadShedException exception = null;
+        try {
+            extension.processEventProcessingRequest(request);
+        } catch (PriorityScheduler.LoadShedException e) {
+            exception = e;
+        }
+        assertNotNull("A shed call should fail the batch", exception);
+        assertFalse("A shed event must not be checkpointed", checkpointStore.isDelivered(request.getId().toString(), event.getId().toString()));
+        Mockito.verify(trackCall, Mockito.never()).execute();
+
+        //mParticle redelivers the batch once the pressure is gone
+        shedding[0] = false;
+        extension.processEventProcessingRequest(request);
+        Mockito.verify(trackCall).execute();
+    }
+
+    @Test
+    public void testUpFrontCallsCheckpointed() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        InMemoryCheckpointStore checkpointStore = new InMemoryCheckpointStore(10);
+        extension.setCheckpointStore(checkpointStore);
+        extension.iterableService = Mockito.mock(IterableService.class);
+        IterableApiResponse success = success();
+        IterableApiResponse failure = new IterableApiResponse();
+        failure.code = "anything but success";
+        Call userUpdateCall = Mockito.mock(Call.class);
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdateCall);
+        Mockito.when(userUpdateCall.execute()).thenReturn(Response.success(failure), Response.success(success));
+        Call pushOpenCall = Mockito.mock(Call.class);
+        Mockito.when(extension.iterableService.trackPushOpen(Mockito.any(), Mockito.any())).thenReturn(pushOpenCall);
+        Mockito.when(pushOpenCall.execute()).thenReturn(Response.success(failure), Response.success(success));
+        Call updateEmailCall = answering(success);
+        Mockito.when(extension.iterableService.updateEmail(Mockito.any(), Mockito.any())).thenReturn(updateEmailCall);
+        Call trackCall = answering(success);
+        Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any())).thenReturn(trackCall);
+
+        EventProcessingRequest request = eventRequest("foo", customerId("123456"));
+        request.setId(UUID.randomUUID());
+        request.setRuntimeEnvironment(new IosRuntimeEnvironment());
+        request.setDeviceApplicationStamp("1234");
+        PushMessageOpenEvent pushOpen = new PushMessageOpenEvent();
+        pushOpen.setId(UUID.randomUUID());
+        pushOpen.setTimestamp(1);
+        pushOpen.setPayload("{\"itbl\":{\"campaignId\":12345, \"messageId\":\"1dce4e505b11111ca1111d6fdd774fbd\", \"templateId\":54321}}");
+        UserIdentityChangeEvent emailChange = emailChange(2, null, "a@mparticle.com");
+        emailChange.setId(UUID.randomUUID());
+        CustomEvent event = new CustomEvent();
+        event.setId(UUID.randomUUID());
+        event.setTimestamp(3);
+        event.setName("My Event Name");
+        request.setEvents(new LinkedList<>(Arrays.asList(pushOpen, emailChange, event)));
+
+        BatchFailedException exception = null;
+        try {
+            extension.processEventProcessingRequest(request);
+        } catch (BatchFailedException e) {
+            exception = e;
+        }
+        assertNotNull("The failed push open and userUpdate should fail the batch", exception);
+        assertEquals(2, exception.getFailures().size());
+        String batchId = request.getId().toString();
+        assertFalse(checkpointStore.isDelivered(batchId, pushOpen.getId().toString()));
+        assertFalse(checkpointStore.isDelivered(batchId, IterableExtension.USER_UPDATE_CHECKPOINT));
+        assertTrue(checkpointStore.isDelivered(batchId, emailChange.getId().toString()));
+        assertTrue("Events after the failed calls should still be sent", checkpointStore.isDelivered(batchId, event.getId().toString()));
+
+        //mParticle redelivers the batch
+        extension.processEventProcessingRequest(request);
+        Mockito.verify(pushOpenCall, Mockito.times(2)).execute();
+        Mockito.verify(userUpdateCall, Mockito.times(2)).execute();
+        Mockito.verify(updateEmailCall, Mockito.times(1)).execute();
+        Mockito.verify(trackCall, Mockito.times(1)).execute();
+    }
+
+    @Test
+    public void testCoalescedUserUpdateCheckpointed() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        InMemoryCheckpointStore checkpointStore = new InMemoryCheckpointStore(10);
+        extension.setCheckpointStore(checkpointStore);
+        extension.iterableService = Mockito.mock(IterableService.class);
+        CoalescingDispatcher dispatcher = Mockito.mock(CoalescingDispatcher.class);
+        Mockito.when(dispatcher.userUpdate(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(success()));
+        CompletableFuture<IterableApiResponse> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("bulk track failed"));
+        Mockito.when(dispatcher.track(Mockito.any(), Mockito.any()))
+                .thenReturn(failed)
+                .thenReturn(CompletableFuture.completedFuture(success()));
+        extension.setCoalescingDispatcher(dispatcher);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setId(UUID.randomUUID());
+        request.setDeviceApplicationStamp("1234");
+        request.setUserAttributes(Collections.singletonMap("plan", "premium"));
+        List<Event> events = customEvents(1);
+        events.get(0).setId(UUID.randomUUID());
+        request.setEvents(events);
+
+        IOException exception = null;
+        try {
+            extension.processEventProcessingRequest(request);
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull("The failed track should fail the batch", exception);
+        assertTrue(checkpointStore.isDelivered(request.getId().toString(), IterableExtension.USER_UPDATE_CHECKPOINT));
+
+        //mParticle redelivers the batch
+        extension.processEventProcessingRequest(request);
+        Mockito.verify(dispatcher, Mockito.times(1)).userUpdate(Mockito.any(), Mockito.any());
+        Mockito.verify(dispatcher, Mockito.times(2)).track(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    public void testEuAccountRoutedToEuService() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        IterableService euService = Mockito.mock(IterableService.class);
+        RegionalIterableServices regionalServices = Mockito.mock(RegionalIterableServices.class);
+        Mockito.when(regionalServices.get(IterableRegion.EU)).thenReturn(euService);
+        extension.setRegionalServices(regionalServices);
+        Call callMock = answering(success());
+        Mockito.when(euService.track(Mockito.any(), Mockito.any())).thenReturn(callMock);
+
+        EventProcessingRequest request = eventRequest("foo");
+        request.getAccount().getAccountSettings().put(IterableExtension.SETTING_DATA_CENTER, "EU");
+        CustomEvent event = new CustomEvent();
+        event.setName("My Event Name");
+        event.setContext(new Event.Context(request));
+
+        extension.processCustomEvent(event);
+
+        Mockito.verify(euService).track(Mockito.eq("foo"), Mockito.any());
+        Mockito.verifyZeroInteractions(extension.iterableService);
+
+        request.getAccount().getAccountSettings().put(IterableExtension.SETTING_DATA_CENTER, "APAC");
+        IOException exception = null;
+        try {
+            extension.processCustomEvent(event);
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull("An unknown data center should fail rather than fall back to the US", exception);
+    }
+
+    @Test
+    public void testDuplicatePushReceiptSuppressed() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.setPushOpenDeduper(new PushOpenDeduper.Lru(100, 60000));
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.trackPushOpen(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        EventProcessingRequest eventProcessingRequest = eventRequest("foo", email("mptest@mparticle.com"));
+        eventProcessingRequest.setRuntimeEnvironment(new AndroidRuntimeEnvironment());
+        PushMessageReceiptEvent event = new PushMessageReceiptEvent();
+        event.setContext(new Event.Context(eventProcessingRequest));
+        event.setPayload("{\"itbl\":\"{\\\"campaignId\\\":12345,\\\"messageId\\\":\\\"1dce4e505b11111ca1111d6fdd774fbd\\\",\\\"templateId\\\":54321}\"}");
+
+        extension.processPushMessageReceiptEvent(event);
+        extension.processPushMessageReceiptEvent(event);
+
+        Mockito.verify(extension.iterableService, Mockito.times(1)).trackPushOpen(Mockito.any(), Mockito.any());
+        assertEquals(0.5, extension.pushOpenDeduper.getSuppressionRate(), 0.0001);
+    }
+
     @org.junit.Test
     public void testProcessiOSPushMessageReceiptEvent() throws Exception {
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        IterableApiResponse apiResponse = success();
+        Call callMock = answering(apiResponse);
         Mockito.when(extension.iterableService.trackPushOpen(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
-        EventProcessingRequest eventProcessingRequest = new EventProcessingRequest();
-        eventProcessingRequest.setUserIdentities(new LinkedList<>());
+        EventProcessingRequest eventProcessingRequest = eventRequest("foo");
         PushMessageReceiptEvent event = new PushMessageReceiptEvent();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo");
-        account.setAccountSettings(settings);
-        eventProcessingRequest.setAccount(account);
         event.setContext(new Event.Context(eventProcessingRequest));
         IOException exception = null;
         event.setPayload("anything to get past null check");
@@ -307,10 +586,7 @@ public class IterableExtensionTest {
         }
         assertNotNull("Iterable should have thrown an exception due to missing email/customerid", exception);
 
-        List<UserIdentity> userIdentities = new LinkedList<>();
-        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        userIdentities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
-        eventProcessingRequest.setUserIdentities(userIdentities);
+        eventProcessingRequest.setUserIdentities(Arrays.asList(email("mptest@mparticle.com"), customerId("123456")));
         eventProcessingRequest.setRuntimeEnvironment(new IosRuntimeEnvironment());
         event.setContext(new Event.Context(eventProcessingRequest));
 
@@ -355,13 +631,12 @@ public class IterableExtensionTest {
         IterableExtension extension = new IterableExtension();
         IterableService service = Mockito.mock(IterableService.class);
         extension.iterableService = service;
-        Call callMock = Mockito.mock(Call.class);
+        Call callMock = answering(success());
         Mockito.when(service.trackPushOpen(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
+        Call listCall = answering(new ListResponse());
+        Mockito.when(service.listSubscribe(Mockito.any(), Mockito.any())).thenReturn(listCall);
+        Mockito.when(service.listUnsubscribe(Mockito.any(), Mockito.any())).thenReturn(listCall);
 
         Audience audience = new Audience();
         Map<String, String> audienceSubscriptionSettings = new HashMap<>();
@@ -389,27 +664,17 @@ public class IterableExtensionTest {
         UserProfile profile1 = new UserProfile();
         profile1.setAddedAudiences(list1);
         profile1.setRemovedAudiences(list2);
-        List<UserIdentity> userIdentities1 = new LinkedList<>();
-        userIdentities1.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        userIdentities1.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
-        profile1.setUserIdentities(userIdentities1);
+        profile1.setUserIdentities(Arrays.asList(email("mptest@mparticle.com"), customerId("123456")));
         profiles.add(profile1);
 
         UserProfile profile2 = new UserProfile();
         profile2.setAddedAudiences(list2);
         profile2.setRemovedAudiences(list1);
-        List<UserIdentity> userIdentities2 = new LinkedList<>();
-        userIdentities2.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest-2@mparticle.com"));
-        userIdentities2.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "1234567"));
-        profile2.setUserIdentities(userIdentities2);
+        profile2.setUserIdentities(Arrays.asList(email("mptest-2@mparticle.com"), customerId("1234567")));
         profiles.add(profile2);
 
         AudienceMembershipChangeRequest request = new AudienceMembershipChangeRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "some api key");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
+        request.setAccount(account("some api key"));
         request.setUserProfiles(profiles);
 
         extension.processAudienceMembershipChangeRequest(request);
@@ -462,6 +727,124 @@ public class IterableExtensionTest {
         assertEquals(3, i);
     }
 
+    @Test
+    public void testOverloadedListChunkRetriedAtReducedSize() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        IterableService service = Mockito.mock(IterableService.class);
+        extension.iterableService = service;
+        AdaptiveBatchSizer.Config config = new AdaptiveBatchSizer.Config();
+        config.minSize = 1;
+        config.initialSize = 4;
+        extension.setBatchSizer(new AdaptiveBatchSizer(config));
+        List<List<String>> accepted = new ArrayList<>();
+        boolean[] overloaded = {true};
+        Mockito.when(service.listSubscribe(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            SubscribeRequest subscribeRequest = (SubscribeRequest) invocation.getArguments()[1];
+            Call listCall = Mockito.mock(Call.class);
+            if (overloaded[0]) {
+                overloaded[0] = false;
+                Mockito.when(listCall.execute()).thenReturn(Response.error(429, okhttp3.ResponseBody.create(null, "")));
+            } else {
+                List<String> emails = new ArrayList<>();
+                for (ApiUser user : subscribeRequest.subscribers) {
+                    emails.add(user.email);
+                }
+                accepted.add(emails);
+                Mockito.when(listCall.execute()).thenReturn(Response.success(new ListResponse()));
+            }
+            return listCall;
+        });
+
+        extension.processAudienceMembershipChangeRequest(listRequest(6));
+
+        assertEquals("The rejected chunk should be sent again at half the size", Arrays.asList(
+                Arrays.asList("user0@mparticle.com", "user1@mparticle.com"),
+                Arrays.asList("user2@mparticle.com", "user3@mparticle.com"),
+                Arrays.asList("user4@mparticle.com", "user5@mparticle.com")), accepted);
+    }
+
+    @Test
+    public void testFailedListChunkSurfaced() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        IterableService service = Mockito.mock(IterableService.class);
+        extension.iterableService = service;
+        ListResponse listResponse = new ListResponse();
+        listResponse.failCount = 1;
+        Call listCall = answering(listResponse);
+        Mockito.when(service.listSubscribe(Mockito.any(), Mockito.any())).thenReturn(listCall);
+
+        IOException exception = null;
+        try {
+            extension.processAudienceMembershipChangeRequest(listRequest(2));
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull("Members Iterable failed to add should fail the request", exception);
+    }
+
+    @Test
+    public void testListChunkSizedOnTheCallAlone() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        IterableService service = Mockito.mock(IterableService.class);
+        extension.iterableService = service;
+        AdaptiveBatchSizer sizer = Mockito.mock(AdaptiveBatchSizer.class);
+        Mockito.when(sizer.size(Mockito.any(), Mockito.any())).thenReturn(10);
+        extension.setBatchSizer(sizer);
+        TenantBulkheads bulkheads = new TenantBulkheads(1, 0, 10);
+        extension.setTenantBulkheads(bulkheads);
+        Call listCall = answering(new ListResponse());
+        Mockito.when(listCall.request()).thenReturn(new okhttp3.Request.Builder()
+                .url("https://api.iterable.com/api/lists/subscribe?api_key=some%20api%20key").build());
+        Mockito.when(service.listSubscribe(Mockito.any(), Mockito.any())).thenReturn(listCall);
+
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> holder = CompletableFuture.supplyAsync(() -> {
+            try {
+                return bulkheads.execute("some api key", () -> release.await(10, TimeUnit.SECONDS));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (bulkheads.getActive("some api key") == 0) {
+            assertTrue(System.currentTimeMillis() < giveUp);
+            Thread.sleep(5);
+        }
+        try {
+            extension.processAudienceMembershipChangeRequest(listRequest(2));
+            fail("A chunk the bulkhead rejected should fail the request");
+        } catch (IOException e) {
+            //expected
+        }
+        Mockito.verify(listCall, Mockito.never()).execute();
+        Mockito.verify(sizer, Mockito.never()).recordFailure(Mockito.any(), Mockito.any(), Mockito.anyLong(), Mockito.any());
+
+        release.countDown();
+        assertTrue(holder.get(10, TimeUnit.SECONDS));
+        extension.processAudienceMembershipChangeRequest(listRequest(2));
+        Mockito.verify(sizer).record(Mockito.eq("lists/subscribe"), Mockito.eq("some api key"), Mockito.anyLong(), Mockito.eq(200));
+    }
+
+    private static AudienceMembershipChangeRequest listRequest(int members) {
+        Audience audience = new Audience();
+        Map<String, String> audienceSettings = new HashMap<>();
+        audienceSettings.put(IterableExtension.SETTING_LIST_ID, "1");
+        audience.setAudienceSubscriptionSettings(audienceSettings);
+        List<UserProfile> profiles = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            UserProfile profile = new UserProfile();
+            profile.setAddedAudiences(Collections.singletonList(audience));
+            List<UserIdentity> identities = new ArrayList<>();
+            identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user" + i + "@mparticle.com"));
+            profile.setUserIdentities(identities);
+            profiles.add(profile);
+        }
+        AudienceMembershipChangeRequest request = new AudienceMembershipChangeRequest();
+        request.setAccount(account("some api key"));
+        request.setUserProfiles(profiles);
+        return request;
+    }
+
     @org.junit.Test
     public void testConvertToCommerceItem() throws Exception {
         Product product = new Product();
@@ -486,27 +869,14 @@ public class IterableExtensionTest {
         ProductActionEvent event = new ProductActionEvent();
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        Call callMock = answering(success());
         Mockito.when(extension.iterableService.trackPurchase(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
         long timeStamp = System.currentTimeMillis();
 
         event.setTimestamp(timeStamp);
 
-        EventProcessingRequest request = new EventProcessingRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
-        List<UserIdentity> userIdentities = new LinkedList<>();
-        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        userIdentities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
-        request.setUserIdentities(userIdentities);
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"), customerId("123456"));
         Event.Context context = new Event.Context(request);
         event.setContext(context);
         event.setTotalAmount(new BigDecimal(101d));
@@ -520,7 +890,9 @@ public class IterableExtensionTest {
         event.setProducts(products);
 
         for (ProductActionEvent.Action action : ProductActionEvent.Action.values()) {
-            if (action != ProductActionEvent.Action.PURCHASE) {
+            //cart actions are covered by testProcessCartActions
+            if (action != ProductActionEvent.Action.PURCHASE && action != ProductActionEvent.Action.ADD_TO_CART
+                    && action != ProductActionEvent.Action.REMOVE_FROM_CART) {
                 event.setAction(action);
                 extension.processProductActionEvent(event);
                 Mockito.verifyZeroInteractions(extension.iterableService);
@@ -538,6 +910,305 @@ public class IterableExtensionTest {
         assertEquals(trackPurchaseRequest.total, new BigDecimal(101d));
     }
 
+    @Test
+    public void testProcessCartActions() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        Mockito.when(extension.iterableService.updateCart(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        Call userCall = answering(new GetUserResponse());
+        Mockito.when(extension.iterableService.getUserByEmail(Mockito.any(), Mockito.any())).thenReturn(userCall);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        List<Event> events = new LinkedList<>();
+        events.add(cartAction(1, ProductActionEvent.Action.ADD_TO_CART, "product_id_1", 2));
+        events.add(cartAction(2, ProductActionEvent.Action.ADD_TO_CART, "product_id_2", 1));
+        events.add(cartAction(3, ProductActionEvent.Action.REMOVE_FROM_CART, "product_id_1", 1));
+        events.add(cartAction(4, ProductActionEvent.Action.ADD_TO_CART, "product_id_3", 1));
+        events.add(cartAction(5, ProductActionEvent.Action.REMOVE_FROM_CART, "product_id_3", 1));
+        request.setEvents(events);
+
+        extension.processEventProcessingRequest(request);
+
+        ArgumentCaptor<UpdateCartRequest> cartArgs = ArgumentCaptor.forClass(UpdateCartRequest.class);
+        Mockito.verify(extension.iterableService, Mockito.times(1)).updateCart(Mockito.eq("foo"), cartArgs.capture());
+        UpdateCartRequest updateCartRequest = cartArgs.getValue();
+        assertEquals("mptest@mparticle.com", updateCartRequest.user.email);
+        assertEquals(2, updateCartRequest.items.size());
+        assertEquals("product_id_1", updateCartRequest.items.get(0).id);
+        assertEquals(1, (int) updateCartRequest.items.get(0).quantity);
+        assertEquals("product_id_2", updateCartRequest.items.get(1).id);
+        assertEquals(1, (int) updateCartRequest.items.get(1).quantity);
+    }
+
+    /**
+     * Stub Iterable keeping the user's cart in iterableCart, by product ID.
+     *
+     * @return the carts sent to Iterable
+     */
+    private static List<UpdateCartRequest> stubIterableCart(IterableExtension extension, Map<String, Integer> iterableCart) throws Exception {
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any())).thenReturn(callMock);
+        List<UpdateCartRequest> sentCarts = new ArrayList<>();
+        Mockito.when(extension.iterableService.updateCart(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            UpdateCartRequest updateCartRequest = (UpdateCartRequest) invocation.getArguments()[1];
+            sentCarts.add(updateCartRequest);
+            iterableCart.clear();
+            for (CommerceItem item : updateCartRequest.items) {
+                iterableCart.put(item.id, item.quantity);
+            }
+            return callMock;
+        });
+        Mockito.when(extension.iterableService.getUserByEmail(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            GetUserResponse user = new GetUserResponse();
+            user.user = new GetUserResponse.User();
+            user.user.dataFields = new GetUserResponse.DataFields();
+            user.user.dataFields.shoppingCartItems = new ArrayList<>();
+            for (Map.Entry<String, Integer> entry : iterableCart.entrySet()) {
+                CommerceItem item = new CommerceItem();
+                item.id = item.sku = entry.getKey();
+                item.quantity = entry.getValue();
+                user.user.dataFields.shoppingCartItems.add(item);
+            }
+            return answering(user);
+        });
+        return sentCarts;
+    }
+
+    @Test
+    public void testCartActionsWithoutQuantity() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        Map<String, Integer> iterableCart = new LinkedHashMap<>();
+        iterableCart.put("product_id_1", 2);
+        List<UpdateCartRequest> sentCarts = stubIterableCart(extension, iterableCart);
+
+        extension.processEventProcessingRequest(cartRequest(
+                cartAction(1, ProductActionEvent.Action.ADD_TO_CART, "product_id_1", null),
+                cartAction(2, ProductActionEvent.Action.ADD_TO_CART, "product_id_2", null),
+                cartAction(3, ProductActionEvent.Action.REMOVE_FROM_CART, "product_id_1", null)));
+
+        assertEquals(1, sentCarts.size());
+        List<CommerceItem> items = sentCarts.get(0).items;
+        assertEquals(2, items.size());
+        assertEquals("product_id_1", items.get(0).id);
+        assertEquals(2, (int) items.get(0).quantity);
+        assertEquals("product_id_2", items.get(1).id);
+        assertEquals(1, (int) items.get(1).quantity);
+    }
+
+    @Test
+    public void testCartStartsFromIterableCart() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        List<UpdateCartRequest> sentCarts = stubIterableCart(extension, new LinkedHashMap<>());
+
+        extension.processEventProcessingRequest(cartRequest(
+                cartAction(1, ProductActionEvent.Action.ADD_TO_CART, "product_id_1", 2),
+                cartAction(2, ProductActionEvent.Action.ADD_TO_CART, "product_id_2", 1)));
+        extension.processEventProcessingRequest(cartRequest(
+                cartAction(3, ProductActionEvent.Action.REMOVE_FROM_CART, "product_id_1", 1),
+                cartAction(4, ProductActionEvent.Action.ADD_TO_CART, "product_id_3", 1)));
+
+        assertEquals(2, sentCarts.size());
+        List<CommerceItem> items = sentCarts.get(1).items;
+        assertEquals("The second batch should keep the items of the first", 3, items.size());
+        assertEquals("product_id_1", items.get(0).id);
+        assertEquals(1, (int) items.get(0).quantity);
+        assertEquals("product_id_2", items.get(1).id);
+        assertEquals(1, (int) items.get(1).quantity);
+        assertEquals("product_id_3", items.get(2).id);
+        assertEquals(1, (int) items.get(2).quantity);
+
+        //removing an item that isn't in the cart leaves the cart alone
+        extension.processEventProcessingRequest(cartRequest(
+                cartAction(5, ProductActionEvent.Action.REMOVE_FROM_CART, "product_id_4", 1)));
+        assertEquals(2, sentCarts.size());
+    }
+
+    private static EventProcessingRequest cartRequest(Event... events) {
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        request.setEvents(new LinkedList<>(Arrays.asList(events)));
+        return request;
+    }
+
+    /**
+     * A request from the account with the given API key, for a user with the given identities.
+     */
+    private static EventProcessingRequest eventRequest(String apiKey, UserIdentity... identities) {
+        EventProcessingRequest request = new EventProcessingRequest();
+        request.setAccount(account(apiKey));
+        request.setUserIdentities(new LinkedList<>(Arrays.asList(identities)));
+        return request;
+    }
+
+    private static Account account(String apiKey) {
+        Account account = new Account();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(SETTING_API_KEY, apiKey);
+        account.setAccountSettings(settings);
+        return account;
+    }
+
+    private static UserIdentity email(String email) {
+        return new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, email);
+    }
+
+    private static UserIdentity customerId(String customerId) {
+        return new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, customerId);
+    }
+
+    private static IterableApiResponse success() {
+        IterableApiResponse response = new IterableApiResponse();
+        response.code = IterableApiResponse.SUCCESS_MESSAGE;
+        return response;
+    }
+
+    /**
+     * A call answering with the given body, which the test can still change.
+     */
+    private static Call answering(Object body) throws IOException {
+        Call call = Mockito.mock(Call.class);
+        Mockito.when(call.execute()).thenReturn(Response.success(body));
+        return call;
+    }
+
+    private static List<Event> customEvents(int count) {
+        List<Event> events = new LinkedList<>();
+        for (int i = 0; i < count; i++) {
+            CustomEvent event = new CustomEvent();
+            event.setName("My Event Name");
+            event.setTimestamp(i);
+            events.add(event);
+        }
+        return events;
+    }
+
+    @Test
+    public void testEmbeddedUserAttributesKeepIterableState() throws Exception {
+        Map<String, String> fullProfile = purchaseProfile(null);
+        IterableMetrics.getInstance().reset();
+        Map<String, String> referenceProfile = purchaseProfile(Collections.singleton("plan"));
+
+        assertEquals(fullProfile, referenceProfile);
+        assertTrue(IterableMetrics.getInstance().get("payload.userAttributes.bytesSaved") > 0);
+    }
+
+    @Test
+    public void testUserAttributesEmbeddedUntilCoalescedUpdateSucceeds() throws Exception {
+        CompletableFuture<IterableApiResponse> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new IOException("bulk update failed"));
+        assertEquals("A failed userUpdate must not drop the attributes from the purchase",
+                3, coalescedPurchaseAttributes(failed).size());
+        assertEquals("Nor one that is still in flight",
+                3, coalescedPurchaseAttributes(new CompletableFuture<>()).size());
+        IterableApiResponse success = success();
+        assertEquals(Collections.singleton("plan"),
+                coalescedPurchaseAttributes(CompletableFuture.completedFuture(success)).keySet());
+    }
+
+    /**
+     * The user attributes of a purchase sent while the batch's coalesced userUpdate is in the given state.
+     */
+    private static Map<String, String> coalescedPurchaseAttributes(CompletableFuture<IterableApiResponse> userUpdate) throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.setEmbeddedUserAttributes(Collections.singleton("plan"));
+        extension.iterableService = Mockito.mock(IterableService.class);
+        CoalescingDispatcher dispatcher = Mockito.mock(CoalescingDispatcher.class);
+        Mockito.when(dispatcher.userUpdate(Mockito.any(), Mockito.any())).thenReturn(userUpdate);
+        extension.setCoalescingDispatcher(dispatcher);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.trackPurchase(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("plan", "premium");
+        userAttributes.put("favorite_color", "blue");
+        userAttributes.put("bio", "a rather long attribute");
+        request.setUserAttributes(userAttributes);
+        ProductActionEvent purchase = new ProductActionEvent();
+        purchase.setAction(ProductActionEvent.Action.PURCHASE);
+        purchase.setTotalAmount(new BigDecimal(10));
+        List<Event> events = new LinkedList<>();
+        events.add(purchase);
+        request.setEvents(events);
+
+        try {
+            Deadline deadline = userUpdate.isDone() ? null : Deadline.afterMillis(500);
+            extension.processMessage(request, deadline);
+        } catch (IOException ignored) {
+            //the userUpdate failed or never completed
+        }
+
+        ArgumentCaptor<TrackPurchaseRequest> purchaseArgs = ArgumentCaptor.forClass(TrackPurchaseRequest.class);
+        Mockito.verify(extension.iterableService).trackPurchase(Mockito.any(), purchaseArgs.capture());
+        return purchaseArgs.getValue().user.dataFields;
+    }
+
+    /**
+     * Process a batch with a purchase and apply its calls to a user profile, the way Iterable merges dataFields.
+     */
+    private static Map<String, String> purchaseProfile(Set<String> embeddedUserAttributes) throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.setEmbeddedUserAttributes(embeddedUserAttributes);
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = answering(success());
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        Mockito.when(extension.iterableService.trackPurchase(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        Map<String, String> userAttributes = new HashMap<>();
+        userAttributes.put("plan", "premium");
+        userAttributes.put("favorite_color", "blue");
+        userAttributes.put("bio", "a rather long attribute that has no business being in every purchase");
+        request.setUserAttributes(userAttributes);
+        ProductActionEvent purchase = new ProductActionEvent();
+        purchase.setAction(ProductActionEvent.Action.PURCHASE);
+        purchase.setTotalAmount(new BigDecimal(10));
+        List<Event> events = new LinkedList<>();
+        events.add(purchase);
+        request.setEvents(events);
+
+        extension.processEventProcessingRequest(request);
+
+        ArgumentCaptor<UserUpdateRequest> userArgs = ArgumentCaptor.forClass(UserUpdateRequest.class);
+        Mockito.verify(extension.iterableService).userUpdate(Mockito.any(), userArgs.capture());
+        ArgumentCaptor<TrackPurchaseRequest> purchaseArgs = ArgumentCaptor.forClass(TrackPurchaseRequest.class);
+        Mockito.verify(extension.iterableService).trackPurchase(Mockito.any(), purchaseArgs.capture());
+        if (embeddedUserAttributes != null) {
+            assertEquals(embeddedUserAttributes, purchaseArgs.getValue().user.dataFields.keySet());
+        }
+        Map<String, String> profile = new HashMap<>(userArgs.getValue().dataFields);
+        if (purchaseArgs.getValue().user.dataFields != null) {
+            profile.putAll(purchaseArgs.getValue().user.dataFields);
+        }
+        return profile;
+    }
+
+    private static ProductActionEvent cartAction(long timestamp, ProductActionEvent.Action action, String productId, Integer quantity) {
+        ProductActionEvent event = new ProductActionEvent();
+        event.setTimestamp(timestamp);
+        event.setAction(action);
+        Product product = new Product();
+        product.setId(productId);
+        if (quantity != null) {
+            product.setQuantity(new BigDecimal(quantity));
+        }
+        List<Product> products = new LinkedList<>();
+        products.add(product);
+        event.setProducts(products);
+        return event;
+    }
+
     @Test
     public void testGetPlaceholderEmailNoEnvironmentOrStamp() throws Exception {
         EventProcessingRequest request = new EventProcessingRequest();
@@ -644,29 +1315,18 @@ public class IterableExtensionTest {
     public void testUpdateSubscriptionsEvent() throws Exception {
         IterableExtension extension = new IterableExtension();
         extension.iterableService = Mockito.mock(IterableService.class);
-        Call callMock = Mockito.mock(Call.class);
+        IterableApiResponse apiResponse = success();
+        Call callMock = answering(apiResponse);
         Mockito.when(extension.iterableService.updateSubscriptions(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
         Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any()))
                 .thenReturn(callMock);
-        IterableApiResponse apiResponse = new IterableApiResponse();
-        apiResponse.code = IterableApiResponse.SUCCESS_MESSAGE;
-        Response<IterableApiResponse> response = Response.success(apiResponse);
-        Mockito.when(callMock.execute()).thenReturn(response);
 
         long timeStamp = System.currentTimeMillis();
         CustomEvent event = new CustomEvent();
         event.setTimestamp(timeStamp);
         event.setName(IterableExtension.UPDATE_SUBSCRIPTIONS_CUSTOM_EVENT_NAME);
-        EventProcessingRequest request = new EventProcessingRequest();
-        Account account = new Account();
-        Map<String, String> settings = new HashMap<>();
-        settings.put(SETTING_API_KEY, "foo api key 2");
-        account.setAccountSettings(settings);
-        request.setAccount(account);
-        List<UserIdentity> userIdentities = new LinkedList<>();
-        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
-        request.setUserIdentities(userIdentities);
+        EventProcessingRequest request = eventRequest("foo api key 2", email("mptest@mparticle.com"));
         Event.Context context = new Event.Context(request);
         event.setContext(context);
         Map<String, String> attributes = new HashMap<>();
@@ -706,4 +1366,220 @@ public class IterableExtensionTest {
         }
         assertNotNull("Iterable extension should have thrown an IOException", exception);
     }
+
+    @Test
+    public void testProcessCustomEventCoalesced() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        IterableService bulkService = Mockito.mock(IterableService.class);
+        BulkResponse bulkResponse = new BulkResponse();
+        bulkResponse.successCount = 1;
+        bulkResponse.failCount = 0;
+        Call callMock = answering(bulkResponse);
+        Mockito.when(bulkService.trackBulk(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        extension.setCoalescingDispatcher(new CoalescingDispatcher(bulkService, 10, 100, 1));
+
+        CustomEvent event = new CustomEvent();
+        event.setTimestamp(System.currentTimeMillis());
+        event.setName("My Event Name");
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        event.setContext(new Event.Context(request));
+
+        extension.processCustomEvent(event);
+
+        Mockito.verify(extension.iterableService, Mockito.never()).track(Mockito.any(), Mockito.any());
+        ArgumentCaptor<TrackBulkRequest> argument = ArgumentCaptor.forClass(TrackBulkRequest.class);
+        Mockito.verify(bulkService).trackBulk(Mockito.eq("foo"), argument.capture());
+        assertEquals("My Event Name", argument.getValue().events.get(0).getEventName());
+        assertEquals("mptest@mparticle.com", argument.getValue().events.get(0).email);
+
+        bulkResponse.failCount = 1;
+        bulkResponse.invalidEmails = Arrays.asList("mptest@mparticle.com");
+        IOException exception = null;
+        try {
+            extension.processCustomEvent(event);
+        } catch (IOException ioe) {
+            exception = ioe;
+        }
+        assertNotNull("Iterable extension should have thrown an IOException", exception);
+    }
+
+    @Test
+    public void testGetUserKey() throws Exception {
+        EventProcessingRequest request = new EventProcessingRequest();
+        request.setDeviceApplicationStamp("1234");
+        assertEquals("1234@placeholder.email", IterableExtension.getUserKey(request));
+
+        List<UserIdentity> userIdentities = new LinkedList<>();
+        userIdentities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "mptest@mparticle.com"));
+        request.setUserIdentities(userIdentities);
+        assertEquals("mptest@mparticle.com", IterableExtension.getUserKey(request));
+
+        userIdentities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "123456"));
+        assertEquals("Customer ID should win since it survives email changes", "123456", IterableExtension.getUserKey(request));
+    }
+
+    @Test
+    public void testDeadlineSpillsUnsentEvents() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        Call callMock = Mockito.mock(Call.class);
+        Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any()))
+                .thenReturn(callMock);
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        List<Event> events = customEvents(2);
+        request.setEvents(events);
+
+        //not enough time left for even a single call
+        IOException exception = null;
+        try {
+            extension.processMessage(request, com.mparticle.iterable.Deadline.afterMillis(10));
+        } catch (IOException ioe) {
+            exception = ioe;
+        }
+        assertNotNull("Running out of time without a spill sink should fail the batch", exception);
+
+        List<Event> spilled = new LinkedList<>();
+        extension.setSpillSink((spillRequest, unsentEvents) -> spilled.addAll(unsentEvents));
+        extension.processMessage(request, com.mparticle.iterable.Deadline.afterMillis(10));
+        assertEquals(2, spilled.size());
+        Mockito.verify(callMock, Mockito.never()).execute();
+    }
+
+    @Test
+    public void testDeadlineSpillsEventsWithPendingCalls() throws Exception {
+        IterableExtension extension = new IterableExtension();
+        extension.iterableService = Mockito.mock(IterableService.class);
+        CoalescingDispatcher dispatcher = Mockito.mock(CoalescingDispatcher.class);
+        IterableApiResponse success = success();
+        Mockito.when(dispatcher.userUpdate(Mockito.any(), Mockito.any())).thenReturn(CompletableFuture.completedFuture(success));
+        //the first event's call made it, the second one's never completes
+        Mockito.when(dispatcher.track(Mockito.any(), Mockito.any()))
+                .thenReturn(CompletableFuture.completedFuture(success))
+                .thenReturn(new CompletableFuture<>());
+        extension.setCoalescingDispatcher(dispatcher);
+        EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+        request.setDeviceApplicationStamp("1234");
+        List<Event> events = customEvents(2);
+        request.setEvents(events);
+
+        IOException exception = null;
+        try {
+            extension.processMessage(request, com.mparticle.iterable.Deadline.afterMillis(300));
+        } catch (IOException ioe) {
+            exception = ioe;
+        }
+        assertNotNull("An event whose call is still pending must not count as delivered", exception);
+        assertTrue(exception.getMessage(), exception.getMessage().contains("waiting on pending calls"));
+
+        Mockito.when(dispatcher.track(Mockito.any(), Mockito.any()))
+                .thenReturn(CompletableFuture.completedFuture(success))
+                .thenReturn(new CompletableFuture<>());
+        List<Event> spilled = new LinkedList<>();
+        extension.setSpillSink((spillRequest, unsentEvents) -> spilled.addAll(unsentEvents));
+        extension.processMessage(request, com.mparticle.iterable.Deadline.afterMillis(300));
+        assertEquals(Collections.singletonList(events.get(1)), spilled);
+    }
+
+    @Test
+    public void testProcessMessageTraced() throws Exception {
+        List<TestSpan> spans = Collections.synchronizedList(new ArrayList<>());
+        Tracing.setTracer((name, parent) -> {
+            TestSpan span = new TestSpan(name, (TestSpan) parent);
+            spans.add(span);
+            return span;
+        });
+        PriorityScheduler scheduler = new PriorityScheduler(2);
+        try {
+            IterableExtension extension = new IterableExtension();
+            extension.setPriorityScheduler(scheduler);
+            extension.iterableService = Mockito.mock(IterableService.class);
+            Call callMock = Mockito.mock(Call.class);
+            Mockito.when(extension.iterableService.userUpdate(Mockito.any(), Mockito.any())).thenReturn(callMock);
+            Mockito.when(extension.iterableService.track(Mockito.any(), Mockito.any())).thenReturn(callMock);
+            IterableApiResponse apiResponse = success();
+            List<Span> callSpans = Collections.synchronizedList(new ArrayList<>());
+            Mockito.when(callMock.execute()).thenAnswer(invocation -> {
+                //where TracingInterceptor would start the span of the call
+                callSpans.add(Tracing.current());
+                return Response.success(apiResponse);
+            });
+
+            EventProcessingRequest request = eventRequest("foo", email("mptest@mparticle.com"));
+            request.setDeviceApplicationStamp("1234");
+            request.setEvents(customEvents(2));
+
+            extension.processMessage(request);
+
+            assertNull("The current span should be restored", Tracing.current());
+            TestSpan root = spans.get(0);
+            assertEquals("mparticle EVENT_PROCESSING_REQUEST", root.name);
+            assertNull(root.parent);
+            assertEquals(2, root.attributes.get("message.events"));
+            TestSpan updateUser = null;
+            TestSpan dispatch = null;
+            for (TestSpan span : spans) {
+                assertTrue(span.name + " should have ended", span.ended);
+                if (span != root) {
+                    assertSame(span.name + " should be a phase of the message", root, span.parent);
+                }
+                if (span.name.equals("updateUser")) {
+                    updateUser = span;
+                } else if (span.name.equals("dispatch")) {
+                    dispatch = span;
+                }
+            }
+            assertNotNull(updateUser);
+            assertNotNull(dispatch);
+            assertEquals(3, callSpans.size());
+            assertSame("Calls run on the scheduler's workers should be part of their phase", updateUser, callSpans.get(0));
+            assertSame(dispatch, callSpans.get(1));
+            assertSame(dispatch, callSpans.get(2));
+        } finally {
+            scheduler.close();
+            Tracing.setTracer(null);
+        }
+    }
+
+    private static class TestSpan implements Span {
+        final String name;
+        final TestSpan parent;
+        final Map<String, Object> attributes = new HashMap<>();
+        volatile boolean ended;
+
+        TestSpan(String name, TestSpan parent) {
+            this.name = name;
+            this.parent = parent;
+        }
+
+        @Override
+        public Span setAttribute(String key, Object value) {
+            attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+            attributes.put("error", error);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+
+        @Override
+        public String getTraceId() {
+            return parent == null ? name : parent.getTraceId();
+        }
+
+        @Override
+        public String getSpanId() {
+            return name;
+        }
+    }
 }
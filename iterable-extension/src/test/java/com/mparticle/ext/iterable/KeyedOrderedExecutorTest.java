@@ -0,0 +1,57 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeyedOrderedExecutorTest {
+
+    @Test
+    public void testPerKeyOrdering() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor(4, 10000);
+        Map<String, List<Integer>> executed = new HashMap<>();
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String key = "user-" + (i % 10);
+            executed.put(key, Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int i = 0; i < 1000; i++) {
+            String key = "user-" + (i % 10);
+            int sequence = i;
+            futures.add(executor.submit(key, () -> {
+                executed.get(key).add(sequence);
+                return sequence;
+            }));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        for (List<Integer> sequences : executed.values()) {
+            assertEquals(100, sequences.size());
+            for (int i = 1; i < sequences.size(); i++) {
+                assertTrue("Tasks for the same key should run in submission order", sequences.get(i - 1) < sequences.get(i));
+            }
+        }
+        executor.close();
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        KeyedOrderedExecutor executor = new KeyedOrderedExecutor(1, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit("a", () -> release.await(10, TimeUnit.SECONDS));
+        CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            executor.submit("b", () -> true);
+            submitted.countDown();
+        });
+        producer.start();
+        assertFalse("Submitting past the queue depth limit should block", submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(5, TimeUnit.SECONDS));
+        executor.close();
+    }
+}
@@ -0,0 +1,312 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.RegionalIterableServices;
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.MessageSerializer;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drives synthetic traffic at a target rate through IterableLambdaEndpoint.handleRequest() against a local stand-in
+ * for the Iterable API, reporting latency percentiles, throughput, GC time and heap growth.
+ *
+ * Load is open-loop: invocations are started on a fixed schedule whether or not earlier ones have finished, and
+ * latency is measured from the scheduled start, so a stall shows up in the percentiles instead of just slowing the
+ * load down. When every worker is busy and the backlog is full, invocations are counted as dropped.
+ *
+ * Run with: gradle :iterable-extension:soakTest -Pseconds=600 -Prate=200 -Pconcurrency=16 -Pseed=1 -PstandInLatencyMillis=20
+ */
+public class LoadHarness {
+
+    /**
+     * Handles one generated message.
+     */
+    public interface Driver {
+        void invoke(Message message) throws Exception;
+    }
+
+    /**
+     * The full serialize, handleRequest, deserialize round trip of the Lambda endpoint.
+     */
+    public static Driver endpointDriver() {
+        IterableLambdaEndpoint endpoint = new IterableLambdaEndpoint();
+        MessageSerializer serializer = new MessageSerializer();
+        return message -> {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            serializer.serialize(request, message);
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            endpoint.handleRequest(new ByteArrayInputStream(request.toByteArray()), response, null);
+        };
+    }
+
+    /**
+     * Answers every API call with a success after a fixed delay.
+     */
+    public static class StandIn implements Closeable {
+        static {
+            //without it every response waits on the client's delayed ACK, which is all the stand-in would measure
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+
+        private final HttpServer server;
+        public final AtomicLong requests = new AtomicLong();
+
+        public StandIn(long latencyMillis) throws Exception {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            byte[] body = "{\"code\":\"Success\",\"msg\":\"\"}".getBytes(StandardCharsets.UTF_8);
+            server.createContext("/", exchange -> {
+                requests.incrementAndGet();
+                try (InputStream in = exchange.getRequestBody()) {
+                    byte[] discard = new byte[8192];
+                    while (in.read(discard) >= 0) {
+                        //drain the request
+                    }
+                }
+                if (latencyMillis > 0) {
+                    try {
+                        Thread.sleep(latencyMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "iterable-stand-in");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+        }
+
+        public HttpUrl url() {
+            return HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        }
+
+        /**
+         * Send all of the extension's calls, for every region, to this stand-in.
+         */
+        public void install(IterableExtension extension) {
+            extension.setIterableService(IterableService.newInstance(IterableService.newClientBuilder().build(), url()));
+            Map<IterableRegion, HttpUrl> baseUrls = new EnumMap<>(IterableRegion.class);
+            for (IterableRegion region : IterableRegion.values()) {
+                baseUrls.put(region, url());
+            }
+            extension.setRegionalServices(new RegionalIterableServices(baseUrls));
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Latencies in whole milliseconds up to a minute, in constant memory so long runs don't skew the heap numbers.
+     */
+    static class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(60001);
+
+        void record(long millis) {
+            counts.incrementAndGet((int) Math.max(0, Math.min(millis, counts.length() - 1)));
+        }
+
+        long count() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * @return the latency at the percentile (between 0 and 1), or -1 without samples
+         */
+        long percentile(double percentile) {
+            long total = count();
+            if (total == 0) {
+                return -1;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return i;
+                }
+            }
+            return counts.length() - 1;
+        }
+    }
+
+    public static class Report {
+        public long invocations;
+        public long errors;
+        public long dropped;
+        public long p50Millis;
+        public long p95Millis;
+        public long p99Millis;
+        public long maxMillis;
+        public double throughputPerSecond;
+        public long gcMillis;
+        public long heapGrowthBytes;
+
+        @Override
+        public String toString() {
+            return String.format("invocations=%d errors=%d dropped=%d throughput=%.1f/s p50=%dms p95=%dms p99=%dms " +
+                            "max=%dms gc=%dms heapGrowth=%dKB", invocations, errors, dropped, throughputPerSecond,
+                    p50Millis, p95Millis, p99Millis, maxMillis, gcMillis, heapGrowthBytes / 1024);
+        }
+    }
+
+    private final Driver driver;
+    private final SyntheticMessageGenerator generator;
+    private final int concurrency;
+
+    public LoadHarness(Driver driver, SyntheticMessageGenerator generator, int concurrency) {
+        this.driver = driver;
+        this.generator = generator;
+        this.concurrency = concurrency;
+    }
+
+    public Report run(double ratePerSecond, long durationMillis, long reportIntervalMillis, PrintStream progress)
+            throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency, r -> {
+            Thread thread = new Thread(r, "iterable-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Semaphore backlog = new Semaphore(concurrency * 4);
+        Histogram latencies = new Histogram();
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        long dropped = 0;
+        long gcStart = gcMillis();
+        long heapStart = heapAfterGc();
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        long nextReport = start + TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+        long scheduled = start;
+        while (scheduled < end) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            if (!backlog.tryAcquire()) {
+                dropped++;
+            } else {
+                final long scheduledAt = scheduled;
+                final Message message = generator.next();
+                workers.execute(() -> {
+                    try {
+                        driver.invoke(message);
+                    } catch (Exception e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        latencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scheduledAt));
+                        completed.incrementAndGet();
+                        backlog.release();
+                    }
+                });
+            }
+            scheduled += intervalNanos;
+            if (progress != null && System.nanoTime() >= nextReport) {
+                double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+                progress.printf("t=%.0fs completed=%d errors=%d dropped=%d throughput=%.1f/s p99=%dms gc=%dms heap=%dKB%n",
+                        elapsedSeconds, completed.get(), errors.get(), dropped, completed.get() / elapsedSeconds,
+                        latencies.percentile(0.99), gcMillis() - gcStart, heapAfterGc() / 1024);
+                nextReport += TimeUnit.MILLISECONDS.toNanos(reportIntervalMillis);
+            }
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+
+        Report report = new Report();
+        report.invocations = completed.get();
+        report.errors = errors.get();
+        report.dropped = dropped;
+        report.p50Millis = latencies.percentile(0.5);
+        report.p95Millis = latencies.percentile(0.95);
+        report.p99Millis = latencies.percentile(0.99);
+        report.maxMillis = latencies.percentile(1);
+        report.throughputPerSecond = completed.get() / ((System.nanoTime() - start) / 1e9);
+        report.gcMillis = gcMillis() - gcStart;
+        report.heapGrowthBytes = heapAfterGc() - heapStart;
+        return report;
+    }
+
+    static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Heap in use right after the most recent collection of each pool, which unlike the current usage doesn't
+     * include garbage that simply hasn't been collected yet.
+     */
+    static long heapAfterGc() {
+        long total = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage usage = pool.getCollectionUsage();
+            total += usage != null ? usage.getUsed() : pool.getUsage().getUsed();
+        }
+        return total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        long seconds = Long.parseLong(options.getOrDefault("seconds", "60"));
+        double rate = Double.parseDouble(options.getOrDefault("rate", "100"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "8"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        long standInLatency = Long.parseLong(options.getOrDefault("standInLatencyMillis", "20"));
+
+        try (StandIn standIn = new StandIn(standInLatency)) {
+            standIn.install(IterableLambdaEndpoint.processor);
+            LoadHarness harness = new LoadHarness(endpointDriver(),
+                    new SyntheticMessageGenerator(seed, new SyntheticMessageGenerator.Profile()), concurrency);
+            Report report = harness.run(rate, TimeUnit.SECONDS.toMillis(seconds), 10000, System.out);
+            System.out.println(report);
+            System.out.println("stand-in requests=" + standIn.requests.get());
+        }
+    }
+}
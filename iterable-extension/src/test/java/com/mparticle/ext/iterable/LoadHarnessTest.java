@@ -0,0 +1,54 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.eventprocessing.EventProcessingRequest;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoadHarnessTest {
+
+    @Test
+    public void testGeneratorIsDeterministic() {
+        SyntheticMessageGenerator.Profile profile = new SyntheticMessageGenerator.Profile();
+        profile.audienceFraction = 0;
+        profile.minBatchSize = 5;
+        profile.maxBatchSize = 5;
+        SyntheticMessageGenerator first = new SyntheticMessageGenerator(42, profile);
+        SyntheticMessageGenerator second = new SyntheticMessageGenerator(42, profile);
+        for (int i = 0; i < 100; i++) {
+            Message message = first.next();
+            assertEquals(message.getId(), second.next().getId());
+            assertEquals(5, ((EventProcessingRequest) message).getEvents().size());
+        }
+    }
+
+    @Test
+    public void testShortRunAgainstStandIn() throws Exception {
+        try (LoadHarness.StandIn standIn = new LoadHarness.StandIn(1)) {
+            IterableExtension extension = new IterableExtension();
+            standIn.install(extension);
+            LoadHarness harness = new LoadHarness(extension::processMessage,
+                    new SyntheticMessageGenerator(7, new SyntheticMessageGenerator.Profile()), 4);
+
+            LoadHarness.Report report = harness.run(20, 1000, 500, null);
+
+            assertEquals(report.toString(), 20, report.invocations + report.dropped);
+            assertEquals(report.toString(), 0, report.errors);
+            assertTrue(report.p50Millis >= 0 && report.p50Millis <= report.p99Millis);
+            assertTrue(standIn.requests.get() > 0);
+        }
+    }
+
+    @Test
+    public void testHistogram() {
+        LoadHarness.Histogram histogram = new LoadHarness.Histogram();
+        assertEquals(-1, histogram.percentile(0.5));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(50, histogram.percentile(0.5));
+        assertEquals(99, histogram.percentile(0.99));
+        assertEquals(100, histogram.percentile(1));
+    }
+}
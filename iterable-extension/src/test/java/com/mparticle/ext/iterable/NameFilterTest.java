@@ -0,0 +1,78 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.IterableMetrics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NameFilterTest {
+
+    @Test
+    public void testRules() throws Exception {
+        NameFilter filter = NameFilter.compile("checkout, cart_*, /^level_\\d+$/", "cart_debug?");
+        assertTrue(filter.allows("checkout"));
+        assertFalse("Exact names shouldn't match as prefixes", filter.allows("checkout_started"));
+        assertTrue(filter.allows("cart_viewed"));
+        assertTrue(filter.allows("level_12"));
+        assertFalse(filter.allows("level_twelve"));
+        assertFalse("Deny rules take precedence", filter.allows("cart_debug1"));
+        assertTrue(filter.allows("cart_debug"));
+        assertFalse(filter.allows(null));
+
+        NameFilter denyOnly = NameFilter.compile(null, "internal.*");
+        assertTrue(denyOnly.allows("purchase"));
+        assertTrue("Glob characters other than * and ? are literal", denyOnly.allows("internalXping"));
+        assertFalse(denyOnly.allows("internal.ping"));
+        assertTrue(denyOnly.allows(null));
+
+        assertSame(NameFilter.ALLOW_ALL, NameFilter.compile(" ", ", "));
+    }
+
+    @Test
+    public void testRegexWithCommas() throws Exception {
+        NameFilter filter = NameFilter.compile("/^a{1,3}$/, checkout, /^x,y$/", null);
+        assertTrue(filter.allows("aa"));
+        assertFalse(filter.allows("aaaa"));
+        assertTrue(filter.allows("checkout"));
+        assertTrue(filter.allows("x,y"));
+        assertFalse(filter.allows("x"));
+
+        NameFilter slashes = NameFilter.compile("/^a/b$/ ,c, /d", null);
+        assertTrue("A regex ends at the last slash before the next comma", slashes.allows("a/b"));
+        assertTrue(slashes.allows("c"));
+        assertTrue("An unclosed regex is a name", slashes.allows("/d"));
+    }
+
+    @Test
+    public void testInvalidRegex() {
+        IOException exception = null;
+        try {
+            NameFilter.compile("/[unclosed/", null);
+        } catch (IOException e) {
+            exception = e;
+        }
+        assertNotNull(exception);
+    }
+
+    @Test
+    public void testProject() throws Exception {
+        IterableMetrics.getInstance().reset();
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("sku", "1234");
+        attributes.put("debug_trace", "abc");
+
+        NameFilter keep = NameFilter.compile(null, "tmp_*");
+        assertSame("Nothing dropped, nothing copied", attributes, keep.project(attributes));
+
+        Map<String, String> projected = NameFilter.compile(null, "debug_*").project(attributes);
+        assertEquals(1, projected.size());
+        assertEquals("1234", projected.get("sku"));
+        assertEquals(2, attributes.size());
+        assertEquals(1, IterableMetrics.getInstance().get("filter.attributes.dropped"));
+        assertEquals(NameFilter.approximateSize("debug_trace", "abc"), IterableMetrics.getInstance().get("filter.attributes.bytes"));
+    }
+}
@@ -0,0 +1,69 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class NdjsonReaderTest {
+
+    private static final String CONTENT = "{\"a\":1}\n\n{\"b\":\"a longer record than the window\"}\r\n{\"c\":3}";
+
+    @Test
+    public void testRecordsAcrossWindows() throws Exception {
+        Path file = Files.createTempFile("records", ".ndjson");
+        try {
+            Files.write(file, CONTENT.getBytes(StandardCharsets.UTF_8));
+            List<NdjsonReader.Record> records = readAll(file, 0);
+            assertEquals(3, records.size());
+            assertEquals("{\"b\":\"a longer record than the window\"}", records.get(1).json);
+            assertEquals(Files.size(file), records.get(2).endOffset);
+
+            List<NdjsonReader.Record> resumed = readAll(file, records.get(0).endOffset);
+            assertEquals(2, resumed.size());
+            assertEquals(records.get(1).json, resumed.get(0).json);
+            assertEquals(records.get(2).endOffset, resumed.get(1).endOffset);
+
+            assertTrue(readAll(file, Files.size(file)).isEmpty());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        Path file = Files.createTempFile("records", ".ndjson.gz");
+        try {
+            try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file))) {
+                out.write(CONTENT.getBytes(StandardCharsets.UTF_8));
+            }
+            List<NdjsonReader.Record> records = readAll(file, 0);
+            assertEquals(3, records.size());
+            assertEquals("{\"c\":3}", records.get(2).json);
+
+            List<NdjsonReader.Record> resumed = readAll(file, records.get(1).endOffset);
+            assertEquals(1, resumed.size());
+            assertEquals("{\"c\":3}", resumed.get(0).json);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static List<NdjsonReader.Record> readAll(Path file, long offset) throws Exception {
+        List<NdjsonReader.Record> records = new ArrayList<>();
+        try (NdjsonReader reader = new NdjsonReader(file, offset, 8)) {
+            NdjsonReader.Record record;
+            while ((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,122 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.eventprocessing.Event;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PrioritySchedulerTest {
+
+    @Test
+    public void testPriorityOf() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(1);
+        assertEquals(PriorityScheduler.Priority.HIGH, scheduler.priorityOf(Event.Type.USER_IDENTITY_CHANGE, null));
+        assertEquals(PriorityScheduler.Priority.HIGH, scheduler.priorityOf(Event.Type.PRODUCT_ACTION, "commerce/trackPurchase"));
+        assertEquals(PriorityScheduler.Priority.LOW, scheduler.priorityOf(Event.Type.PUSH_MESSAGE_RECEIPT, "events/trackPushOpen"));
+        assertEquals(PriorityScheduler.Priority.NORMAL, scheduler.priorityOf(Event.Type.CUSTOM_EVENT, "events/track"));
+
+        scheduler.setPriority("events/track", PriorityScheduler.Priority.LOW);
+        assertEquals(PriorityScheduler.Priority.LOW, scheduler.priorityOf(Event.Type.CUSTOM_EVENT, "events/track"));
+        scheduler.close();
+    }
+
+    @Test
+    public void testLowPriorityShedWhenQueueFull() throws Exception {
+        Map<PriorityScheduler.Priority, PriorityScheduler.Lane> lanes = PriorityScheduler.defaultLanes();
+        lanes.get(PriorityScheduler.Priority.LOW).maxQueueDepth = 1;
+        PriorityScheduler scheduler = new PriorityScheduler(1, lanes);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocking = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.execute(PriorityScheduler.Priority.HIGH, () -> {
+                    started.countDown();
+                    return release.await(10, TimeUnit.SECONDS);
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<String> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.execute(PriorityScheduler.Priority.LOW, () -> "queued");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueueDepth(PriorityScheduler.Priority.LOW) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        PriorityScheduler.LoadShedException shed = null;
+        try {
+            scheduler.execute(PriorityScheduler.Priority.LOW, () -> "shed");
+        } catch (PriorityScheduler.LoadShedException e) {
+            shed = e;
+        }
+        assertNotNull("LOW priority work should be shed once its queue is full", shed);
+        assertEquals(1, scheduler.getShedCount(PriorityScheduler.Priority.LOW));
+
+        release.countDown();
+        assertTrue(blocking.get(5, TimeUnit.SECONDS));
+        assertEquals("queued", queued.get(5, TimeUnit.SECONDS));
+        scheduler.close();
+    }
+
+    @Test
+    public void testCloseFailsQueuedTasks() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CompletableFuture<Boolean> running = CompletableFuture.supplyAsync(() -> {
+            try {
+                return scheduler.execute(PriorityScheduler.Priority.HIGH, () -> {
+                    started.countDown();
+                    return new CountDownLatch(1).await(10, TimeUnit.SECONDS);
+                });
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        CompletableFuture<IOException> queued = CompletableFuture.supplyAsync(() -> {
+            try {
+                scheduler.execute(PriorityScheduler.Priority.NORMAL, () -> "queued");
+                return null;
+            } catch (IOException e) {
+                return e;
+            }
+        });
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.getQueueDepth(PriorityScheduler.Priority.NORMAL) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        scheduler.close();
+        assertTrue("A task still queued at close should fail rather than hang",
+                queued.get(5, TimeUnit.SECONDS) instanceof PriorityScheduler.LoadShedException);
+        try {
+            running.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            //the running task was interrupted
+        }
+        PriorityScheduler.LoadShedException rejected = null;
+        try {
+            scheduler.execute(PriorityScheduler.Priority.HIGH, () -> "too late");
+        } catch (PriorityScheduler.LoadShedException e) {
+            rejected = e;
+        }
+        assertNotNull(rejected);
+    }
+}
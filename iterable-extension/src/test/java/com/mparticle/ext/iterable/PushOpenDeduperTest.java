@@ -0,0 +1,52 @@
+package com.mparticle.ext.iterable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PushOpenDeduperTest {
+
+    @Test
+    public void testBloomFalsePositiveBound() throws Exception {
+        PushOpenDeduper.Bloom deduper = new PushOpenDeduper.Bloom(1000, 0.01, 60000);
+        for (int i = 0; i < 1000; i++) {
+            deduper.record(PushOpenDeduper.key("key", "user" + i, "message"));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(deduper.isDuplicate(PushOpenDeduper.key("key", "user" + i, "message")));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (deduper.isDuplicate(PushOpenDeduper.key("key", "other" + i, "message"))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positive rate too high: " + falsePositives + "/10000", falsePositives < 200);
+        assertTrue(deduper.getExpectedFalsePositiveRate() < 0.02);
+        assertEquals((1000.0 + falsePositives) / 11000, deduper.getSuppressionRate(), 0.0001);
+    }
+
+    @Test
+    public void testBloomWindow() throws Exception {
+        PushOpenDeduper.Bloom deduper = new PushOpenDeduper.Bloom(100, 0.01, 1000);
+        long now = System.currentTimeMillis();
+        deduper.add("open", now);
+        assertTrue(deduper.contains("open", now + 999));
+        //moved to the previous generation, still remembered
+        assertTrue(deduper.contains("open", now + 1000));
+        assertFalse(deduper.contains("open", now + 2500));
+    }
+
+    @Test
+    public void testLru() throws Exception {
+        PushOpenDeduper.Lru deduper = new PushOpenDeduper.Lru(2, 1000);
+        long now = System.currentTimeMillis();
+        deduper.add("a", now);
+        deduper.add("b", now);
+        assertTrue(deduper.contains("a", now));
+        deduper.add("c", now);
+        assertFalse("The eldest key should be evicted", deduper.contains("a", now));
+        assertTrue(deduper.contains("c", now + 999));
+        assertFalse(deduper.contains("c", now + 1000));
+    }
+}
@@ -0,0 +1,220 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.sdk.model.Message;
+import com.mparticle.sdk.model.audienceprocessing.Audience;
+import com.mparticle.sdk.model.audienceprocessing.AudienceMembershipChangeRequest;
+import com.mparticle.sdk.model.audienceprocessing.UserProfile;
+import com.mparticle.sdk.model.eventprocessing.*;
+import com.mparticle.sdk.model.registration.Account;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_API_KEY;
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_GCM_NAME_KEY;
+import static com.mparticle.ext.iterable.IterableExtension.SETTING_LIST_ID;
+
+/**
+ * Generates mParticle Messages shaped like production traffic, the same sequence for the same seed.
+ */
+public class SyntheticMessageGenerator {
+
+    /**
+     * What to generate. Weights are relative to each other, fractions between 0 and 1.
+     */
+    public static class Profile {
+        public int customEventWeight = 60;
+        public int productActionWeight = 10;
+        public int pushSubscriptionWeight = 5;
+        public int pushReceiptWeight = 10;
+        public int pushOpenWeight = 5;
+        public int identityChangeWeight = 2;
+        /**
+         * Fraction of messages that are audience membership changes rather than event batches.
+         */
+        public double audienceFraction = 0.05;
+        public int minBatchSize = 1;
+        public int maxBatchSize = 20;
+        public int maxAttributes = 10;
+        public int maxUserAttributes = 5;
+        public double emailFraction = 0.7;
+        public double customerIdFraction = 0.5;
+        public int userCount = 10000;
+        public int audienceSize = 50;
+        public int accountCount = 3;
+    }
+
+    private final Profile profile;
+    private final Random random;
+    private final int totalWeight;
+
+    public SyntheticMessageGenerator(long seed, Profile profile) {
+        this.profile = profile;
+        this.random = new Random(seed);
+        this.totalWeight = profile.customEventWeight + profile.productActionWeight + profile.pushSubscriptionWeight +
+                profile.pushReceiptWeight + profile.pushOpenWeight + profile.identityChangeWeight;
+    }
+
+    public synchronized Message next() {
+        if (random.nextDouble() < profile.audienceFraction) {
+            return nextAudienceChange();
+        }
+        return nextBatch();
+    }
+
+    private EventProcessingRequest nextBatch() {
+        EventProcessingRequest request = new EventProcessingRequest();
+        request.setId(new UUID(random.nextLong(), random.nextLong()));
+        request.setAccount(account());
+        int user = random.nextInt(profile.userCount);
+        request.setUserIdentities(identities(user));
+        request.setDeviceApplicationStamp("device-" + user);
+        request.setUserAttributes(attributes("user_attribute_", random.nextInt(profile.maxUserAttributes + 1)));
+        boolean ios = random.nextBoolean();
+        if (ios) {
+            IosRuntimeEnvironment environment = new IosRuntimeEnvironment();
+            environment.setIsSandboxed(false);
+            request.setRuntimeEnvironment(environment);
+        } else {
+            request.setRuntimeEnvironment(new AndroidRuntimeEnvironment());
+        }
+        int size = profile.minBatchSize + random.nextInt(profile.maxBatchSize - profile.minBatchSize + 1);
+        List<Event> events = new ArrayList<>(size);
+        long timestamp = 1500000000000L + random.nextInt(1000000000);
+        for (int i = 0; i < size; i++) {
+            Event event = event(user, ios);
+            event.setId(new UUID(random.nextLong(), random.nextLong()));
+            event.setTimestamp(timestamp + i * 1000);
+            events.add(event);
+        }
+        request.setEvents(events);
+        return request;
+    }
+
+    private Event event(int user, boolean ios) {
+        int pick = random.nextInt(Math.max(1, totalWeight));
+        if ((pick -= profile.customEventWeight) < 0) {
+            CustomEvent event = new CustomEvent();
+            event.setName("event_" + random.nextInt(50));
+            event.setCustomType(CustomEvent.CustomType.OTHER);
+            event.setAttributes(attributes("attribute_", random.nextInt(profile.maxAttributes + 1)));
+            return event;
+        }
+        if ((pick -= profile.productActionWeight) < 0) {
+            ProductActionEvent event = new ProductActionEvent();
+            event.setAction(ProductActionEvent.Action.PURCHASE);
+            List<Product> products = new ArrayList<>();
+            for (int i = 0, count = 1 + random.nextInt(3); i < count; i++) {
+                Product product = new Product();
+                product.setId("sku-" + random.nextInt(1000));
+                product.setQuantity(new BigDecimal(1 + random.nextInt(3)));
+                products.add(product);
+            }
+            event.setProducts(products);
+            event.setTotalAmount(new BigDecimal(random.nextInt(10000)).movePointLeft(2));
+            return event;
+        }
+        if ((pick -= profile.pushSubscriptionWeight) < 0) {
+            PushSubscriptionEvent event = new PushSubscriptionEvent();
+            event.setAction(PushSubscriptionEvent.Action.SUBSCRIBE);
+            event.setToken(Long.toHexString(user * 31L) + "-token");
+            return event;
+        }
+        if ((pick -= profile.pushReceiptWeight) < 0) {
+            PushMessageReceiptEvent event = new PushMessageReceiptEvent();
+            event.setPayload(pushPayload(ios));
+            return event;
+        }
+        if ((pick -= profile.pushOpenWeight) < 0) {
+            PushMessageOpenEvent event = new PushMessageOpenEvent();
+            event.setPayload(pushPayload(ios));
+            return event;
+        }
+        UserIdentityChangeEvent event = new UserIdentityChangeEvent();
+        event.setAdded(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "changed-" + user + "@example.com")));
+        event.setRemoved(Collections.singletonList(
+                new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user-" + user + "@example.com")));
+        return event;
+    }
+
+    /**
+     * Android sends the Iterable payload as a JSON string, iOS as an object.
+     */
+    private String pushPayload(boolean ios) {
+        String itbl = "{\"campaignId\":" + random.nextInt(1000) + ",\"templateId\":" + random.nextInt(1000) +
+                ",\"messageId\":\"" + Long.toHexString(random.nextLong()) + "\"}";
+        if (ios) {
+            return "{\"aps\":{\"alert\":\"Hello\"},\"itbl\":" + itbl + "}";
+        }
+        return "{\"itbl\":\"" + itbl.replace("\"", "\\\"") + "\"}";
+    }
+
+    private AudienceMembershipChangeRequest nextAudienceChange() {
+        AudienceMembershipChangeRequest request = new AudienceMembershipChangeRequest();
+        request.setAccount(account());
+        Audience audience = new Audience();
+        Map<String, String> subscriptionSettings = new HashMap<>();
+        subscriptionSettings.put(SETTING_LIST_ID, String.valueOf(1 + random.nextInt(10)));
+        audience.setAudienceSubscriptionSettings(subscriptionSettings);
+        List<UserProfile> profiles = new ArrayList<>(profile.audienceSize);
+        for (int i = 0; i < profile.audienceSize; i++) {
+            UserProfile userProfile = new UserProfile();
+            int user = random.nextInt(profile.userCount);
+            List<UserIdentity> identities = identities(user);
+            if (identities.isEmpty()) {
+                identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user-" + user + "@example.com"));
+            }
+            userProfile.setUserIdentities(identities);
+            if (random.nextBoolean()) {
+                userProfile.setAddedAudiences(Collections.singletonList(audience));
+            } else {
+                userProfile.setRemovedAudiences(Collections.singletonList(audience));
+            }
+            profiles.add(userProfile);
+        }
+        request.setUserProfiles(profiles);
+        return request;
+    }
+
+    private Account account() {
+        Account account = new Account();
+        Map<String, String> settings = new HashMap<>();
+        settings.put(SETTING_API_KEY, "synthetic-key-" + random.nextInt(profile.accountCount));
+        settings.put(SETTING_GCM_NAME_KEY, "synthetic-gcm");
+        settings.put(IterableExtension.SETTING_APNS_KEY, "synthetic-apns");
+        account.setAccountSettings(settings);
+        return account;
+    }
+
+    private List<UserIdentity> identities(int user) {
+        List<UserIdentity> identities = new ArrayList<>();
+        if (random.nextDouble() < profile.emailFraction) {
+            identities.add(new UserIdentity(UserIdentity.Type.EMAIL, Identity.Encoding.RAW, "user-" + user + "@example.com"));
+        }
+        if (random.nextDouble() < profile.customerIdFraction) {
+            identities.add(new UserIdentity(UserIdentity.Type.CUSTOMER, Identity.Encoding.RAW, "customer-" + user));
+        }
+        return identities;
+    }
+
+    private Map<String, String> attributes(String prefix, int count) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    attributes.put(prefix + i, String.valueOf(random.nextInt(1000)));
+                    break;
+                case 1:
+                    attributes.put(prefix + i, String.valueOf(random.nextBoolean()));
+                    break;
+                case 2:
+                    attributes.put(prefix + i, String.valueOf(random.nextDouble()));
+                    break;
+                default:
+                    attributes.put(prefix + i, "value-" + Long.toHexString(random.nextLong()));
+            }
+        }
+        return attributes;
+    }
+}
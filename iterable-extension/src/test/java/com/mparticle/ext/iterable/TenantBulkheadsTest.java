@@ -0,0 +1,237 @@
+package com.mparticle.ext.iterable;
+
+import com.mparticle.iterable.BulkResponse;
+import com.mparticle.iterable.Deadline;
+import com.mparticle.iterable.FlightRecorderEvents;
+import com.mparticle.iterable.IterableApiResponse;
+import com.mparticle.iterable.IterableMetrics;
+import com.mparticle.iterable.IterableRegion;
+import com.mparticle.iterable.IterableService;
+import com.mparticle.iterable.TrackRequest;
+import okhttp3.OkHttpClient;
+import org.junit.Test;
+import org.mockito.Mockito;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TenantBulkheadsTest {
+
+    private static final ExecutorService callers = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "bulkhead-test-caller");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Test
+    public void testKeysAreIsolated() throws Exception {
+        IterableMetrics.getInstance().reset();
+        TenantBulkheads bulkheads = new TenantBulkheads(2, 1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Boolean>> blocked = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            blocked.add(submit(bulkheads, "noisy", release));
+        }
+        waitFor(() -> bulkheads.getActive("noisy") == 2);
+        CompletableFuture<Boolean> queued = submit(bulkheads, "noisy", release);
+        waitFor(() -> bulkheads.getQueued("noisy") == 1);
+
+        assertEquals("quiet", bulkheads.execute("quiet", () -> "quiet"));
+
+        TenantBulkheads.BulkheadFullException exception = null;
+        try {
+            bulkheads.execute("noisy", () -> "rejected");
+        } catch (TenantBulkheads.BulkheadFullException e) {
+            exception = e;
+        }
+        assertNotNull("Callers over the queue limit should be rejected", exception);
+        assertEquals(1, bulkheads.getRejected("noisy"));
+        String prefix = "bulkhead." + FlightRecorderEvents.hash("noisy") + ".";
+        assertEquals(1, IterableMetrics.getInstance().get(prefix + "rejected"));
+        assertEquals(1, IterableMetrics.getInstance().get(prefix + "saturated"));
+        assertEquals(2, IterableMetrics.getInstance().get(prefix + "active"));
+
+        release.countDown();
+        for (CompletableFuture<Boolean> future : blocked) {
+            assertTrue(future.get(10, TimeUnit.SECONDS));
+        }
+        assertTrue(queued.get(10, TimeUnit.SECONDS));
+        assertEquals(0, bulkheads.getActive("noisy"));
+        assertEquals(0, IterableMetrics.getInstance().get(prefix + "queued"));
+    }
+
+    @Test
+    public void testFreeSlotsAreSharedRoundRobin() throws Exception {
+        TenantBulkheads bulkheads = new TenantBulkheads(10, 10, 1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocker = submit(bulkheads, "other", release);
+        waitFor(() -> bulkheads.getActive("other") == 1);
+
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<CompletableFuture<String>> waiting = new ArrayList<>();
+        String[] keys = {"big", "big", "big", "small"};
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            int queuedBefore = bulkheads.getQueued(key);
+            waiting.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return bulkheads.execute(key, () -> {
+                        order.add(key);
+                        return key;
+                    });
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, callers));
+            waitFor(() -> bulkheads.getQueued(key) == queuedBefore + 1);
+        }
+        release.countDown();
+        assertTrue(blocker.get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<String> future : waiting) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals("A key with many queued calls shouldn't hold back the others",
+                Arrays.asList("big", "small", "big", "big"), order);
+    }
+
+    @Test
+    public void testWaitBoundedByDeadline() throws Exception {
+        TenantBulkheads bulkheads = new TenantBulkheads(1, 10, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Boolean> blocker = submit(bulkheads, "key", release);
+        waitFor(() -> bulkheads.getActive("key") == 1);
+        Deadline previous = Deadline.setCurrent(Deadline.afterMillis(50));
+        DeadlineExceededException exception = null;
+        try {
+            bulkheads.execute("key", () -> "late");
+        } catch (DeadlineExceededException e) {
+            exception = e;
+        } finally {
+            Deadline.setCurrent(previous);
+        }
+        assertNotNull(exception);
+        assertEquals(0, bulkheads.getQueued("key"));
+        release.countDown();
+        assertTrue(blocker.get(10, TimeUnit.SECONDS));
+        assertEquals(0, bulkheads.getActive("key"));
+    }
+
+    @Test
+    public void testCoalescedBulkCallsWaitForTheirKey() throws Exception {
+        TenantBulkheads bulkheads = new TenantBulkheads(1, 10, 10);
+        IterableService service = Mockito.mock(IterableService.class);
+        Mockito.when(service.trackBulk(Mockito.any(), Mockito.any())).thenAnswer(invocation -> {
+            Call<BulkResponse> bulkCall = Mockito.mock(Call.class);
+            Mockito.when(bulkCall.execute()).thenReturn(Response.success(new BulkResponse()));
+            return bulkCall;
+        });
+        //a single flush thread, which a saturated key mustn't hold
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 10, 100, 1);
+        dispatcher.setTenantBulkheads(bulkheads);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Boolean> blocker = submit(bulkheads, "noisy", release);
+            waitFor(() -> bulkheads.getActive("noisy") == 1);
+
+            CompletableFuture<IterableApiResponse> noisy = dispatcher.track("noisy", trackRequest());
+            CompletableFuture<IterableApiResponse> quiet = dispatcher.track("quiet", trackRequest());
+            assertTrue("Other keys' bulk calls should go out meanwhile", quiet.get(10, TimeUnit.SECONDS).isSuccess());
+            assertFalse(noisy.isDone());
+
+            release.countDown();
+            assertTrue(blocker.get(10, TimeUnit.SECONDS));
+            assertTrue(noisy.get(10, TimeUnit.SECONDS).isSuccess());
+            assertEquals(0, bulkheads.getActive("noisy"));
+        } finally {
+            dispatcher.close();
+        }
+    }
+
+    @Test
+    public void testCoalescedBulkCallFailsAtDeadline() throws Exception {
+        TenantBulkheads bulkheads = new TenantBulkheads(1, 10, 10);
+        IterableService service = Mockito.mock(IterableService.class);
+        Call<BulkResponse> bulkCall = Mockito.mock(Call.class);
+        Mockito.when(service.trackBulk(Mockito.any(), Mockito.any())).thenReturn(bulkCall);
+        CoalescingDispatcher dispatcher = new CoalescingDispatcher(service, 10, 100, 1);
+        dispatcher.setTenantBulkheads(bulkheads);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            CompletableFuture<Boolean> blocker = submit(bulkheads, "key", release);
+            waitFor(() -> bulkheads.getActive("key") == 1);
+
+            CompletableFuture<IterableApiResponse> future;
+            Deadline previous = Deadline.setCurrent(Deadline.afterMillis(100));
+            try {
+                future = dispatcher.track("key", trackRequest());
+            } finally {
+                Deadline.setCurrent(previous);
+            }
+            ExecutionException exception = null;
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                exception = e;
+            }
+            assertNotNull(exception);
+            assertTrue(exception.getCause() instanceof DeadlineExceededException);
+            Mockito.verify(bulkCall, Mockito.never()).execute();
+            release.countDown();
+            assertTrue(blocker.get(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            dispatcher.close();
+        }
+    }
+
+    private static TrackRequest trackRequest() {
+        TrackRequest request = new TrackRequest("event");
+        request.email = "a@mparticle.com";
+        return request;
+    }
+
+    @Test
+    public void testIsolatedConnections() {
+        TenantBulkheads bulkheads = new TenantBulkheads();
+        assertFalse(bulkheads.isolatesConnections());
+        bulkheads.isolateConnections(new OkHttpClient(), null);
+        IterableService service = bulkheads.service("a", IterableRegion.US);
+        assertSame(service, bulkheads.service("a", IterableRegion.US));
+        assertNotSame(service, bulkheads.service("a", IterableRegion.EU));
+        assertNotSame(service, bulkheads.service("b", IterableRegion.US));
+    }
+
+    private static CompletableFuture<Boolean> submit(TenantBulkheads bulkheads, String key, CountDownLatch release) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return bulkheads.execute(key, () -> release.await(10, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, callers);
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < giveUp);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.mparticle.iterable;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sets the timeouts of each call from the latency recently observed for its route: the configured percentile
+ * multiplied by a factor, clamped between a minimum and a maximum. Until a route has enough samples, its initial
+ * timeout is used instead.
+ *
+ * Relies on MetricsInterceptor to record latencies, and must be added before DeadlineInterceptor so that the
+ * deadline can still shorten the result.
+ */
+public class AdaptiveTimeoutInterceptor implements Interceptor {
+
+    public static final double DEFAULT_PERCENTILE = 0.99;
+    public static final double DEFAULT_FACTOR = 1.5;
+    public static final long DEFAULT_MIN_MILLIS = 150;
+    public static final long DEFAULT_MAX_MILLIS = 10000;
+    public static final int DEFAULT_MIN_SAMPLES = 20;
+
+    private final IterableMetrics metrics;
+    private final double percentile;
+    private final double factor;
+    private final long minMillis;
+    private final long maxMillis;
+    private final int minSamples;
+    private final Map<String, Long> initialTimeouts = new ConcurrentHashMap<>();
+
+    public AdaptiveTimeoutInterceptor() {
+        this(IterableMetrics.getInstance(), DEFAULT_PERCENTILE, DEFAULT_FACTOR, DEFAULT_MIN_MILLIS, DEFAULT_MAX_MILLIS, DEFAULT_MIN_SAMPLES);
+    }
+
+    public AdaptiveTimeoutInterceptor(IterableMetrics metrics, double percentile, double factor, long minMillis, long maxMillis, int minSamples) {
+        this.metrics = metrics;
+        this.percentile = percentile;
+        this.factor = factor;
+        this.minMillis = minMillis;
+        this.maxMillis = maxMillis;
+        this.minSamples = minSamples;
+        //list and bulk calls carry many users per request
+        setInitialTimeout("lists/subscribe", 2000);
+        setInitialTimeout("lists/unsubscribe", 2000);
+        setInitialTimeout("events/trackBulk", 2000);
+        setInitialTimeout("users/bulkUpdate", 2000);
+        setInitialTimeout("users/bulkUpdateSubscriptions", 2000);
+    }
+
+    public AdaptiveTimeoutInterceptor setInitialTimeout(String route, long millis) {
+        initialTimeouts.put(route, millis);
+        return this;
+    }
+
+    public long timeoutFor(String route) {
+        long timeout;
+        if (metrics.latencySampleCount(route) < minSamples) {
+            timeout = initialTimeouts.getOrDefault(route, IterableService.SERVICE_TIMEOUT_MILLIS);
+        } else {
+            timeout = (long) (metrics.latencyPercentile(route, percentile) * factor);
+        }
+        return Math.max(minMillis, Math.min(maxMillis, timeout));
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        String route = IterableService.route(chain.request());
+        int timeout = (int) timeoutFor(route);
+        metrics.set("timeout." + route + ".millis", timeout);
+        return chain
+                .withConnectTimeout(Math.min(chain.connectTimeoutMillis(), timeout), TimeUnit.MILLISECONDS)
+                .withReadTimeout(timeout, TimeUnit.MILLISECONDS)
+                .withWriteTimeout(timeout, TimeUnit.MILLISECONDS)
+                .proceed(chain.request());
+    }
+}
@@ -0,0 +1,18 @@
+package com.mparticle.iterable;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response shared by Iterable's bulk endpoints (events/trackBulk, users/bulkUpdate, users/bulkUpdateSubscriptions).
+ *
+ * Iterable doesn't return a per-item status - items that failed are only identifiable by the emails and userIds
+ * listed in the invalid/failed collections.
+ */
+public class BulkResponse {
+    public int successCount = -1;
+    public int failCount = -1;
+    public List<String> invalidEmails;
+    public List<String> invalidUserIds;
+    public Map<String, List<String>> failedUpdates;
+}
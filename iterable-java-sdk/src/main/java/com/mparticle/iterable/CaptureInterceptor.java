@@ -0,0 +1,177 @@
+package com.mparticle.iterable;
+
+import com.google.gson.Gson;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records every exchange with the Iterable API to a local file, one JSON Exchange per line, for CaptureReplay.
+ *
+ * The API key is never recorded, since it's only sent as a query parameter and only the path is kept. Emails in
+ * request and response bodies are replaced with pseudonyms that are stable for the lifetime of the interceptor, so
+ * that the captured traffic keeps its per-user shape. Once the file reaches maxFileBytes it's rotated to file.1,
+ * file.1 to file.2 and so on, keeping at most maxFiles files. Failing to capture never fails the call.
+ */
+public class CaptureInterceptor implements Interceptor {
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 10 * 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 5;
+    /**
+     * Bodies are cut off after this many bytes.
+     */
+    static final long MAX_BODY_BYTES = 64 * 1024;
+
+    private static final Pattern EMAIL = Pattern.compile("[A-Za-z0-9._%+-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}");
+
+    public static class Exchange {
+        public long startMillis;
+        public String method;
+        public String path;
+        public String request;
+        public int code;
+        public String response;
+        public long durationMillis;
+        /**
+         * Set instead of code and response when the call failed.
+         */
+        public String error;
+    }
+
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final Gson gson = new Gson();
+    private final byte[] salt = new byte[16];
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private Writer writer;
+    private long fileBytes;
+
+    public CaptureInterceptor(Path file) {
+        this(file, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    public CaptureInterceptor(Path file, long maxFileBytes, int maxFiles) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Exchange exchange = new Exchange();
+        exchange.startMillis = System.currentTimeMillis();
+        exchange.method = request.method();
+        exchange.path = request.url().encodedPath();
+        if (request.body() != null) {
+            Buffer body = new Buffer();
+            request.body().writeTo(body);
+            exchange.request = redact(body.readUtf8(Math.min(body.size(), MAX_BODY_BYTES)));
+        }
+        long start = System.nanoTime();
+        try {
+            Response response = chain.proceed(request);
+            exchange.durationMillis = (System.nanoTime() - start) / 1000000;
+            exchange.code = response.code();
+            exchange.response = redact(response.peekBody(MAX_BODY_BYTES).string());
+            write(exchange);
+            return response;
+        } catch (IOException e) {
+            exchange.durationMillis = (System.nanoTime() - start) / 1000000;
+            exchange.error = e.getClass().getSimpleName();
+            write(exchange);
+            throw e;
+        }
+    }
+
+    String redact(String body) {
+        Matcher matcher = EMAIL.matcher(body);
+        if (!matcher.find()) {
+            return body;
+        }
+        StringBuffer redacted = new StringBuffer();
+        do {
+            matcher.appendReplacement(redacted, pseudonym(matcher.group()));
+        } while (matcher.find());
+        matcher.appendTail(redacted);
+        return redacted.toString();
+    }
+
+    private String pseudonym(String email) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(salt);
+            byte[] hash = digest.digest(email.toLowerCase().getBytes(StandardCharsets.UTF_8));
+            StringBuilder pseudonym = new StringBuilder("user-");
+            for (int i = 0; i < 6; i++) {
+                pseudonym.append(String.format("%02x", hash[i]));
+            }
+            return pseudonym.append("@redacted.invalid").toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private synchronized void write(Exchange exchange) {
+        try {
+            if (writer == null) {
+                fileBytes = Files.exists(file) ? Files.size(file) : 0;
+                writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            String line = gson.toJson(exchange) + "\n";
+            writer.write(line);
+            writer.flush();
+            fileBytes += line.length();
+            metrics.increment("capture.exchanges");
+            if (fileBytes >= maxFileBytes) {
+                rotate();
+            }
+        } catch (IOException e) {
+            metrics.increment("capture.errors");
+        }
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        writer = null;
+        Files.deleteIfExists(rotated(maxFiles - 1));
+        for (int i = maxFiles - 2; i >= 1; i--) {
+            if (Files.exists(rotated(i))) {
+                Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (maxFiles > 1) {
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
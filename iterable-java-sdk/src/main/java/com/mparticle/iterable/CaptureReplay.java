@@ -0,0 +1,183 @@
+package com.mparticle.iterable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-drives traffic recorded by CaptureInterceptor against a base URL, i.e. a local stub, to benchmark client changes
+ * against real traffic shapes.
+ *
+ * Exchanges are sent in capture order, either at their captured inter-arrival times or as fast as the given
+ * concurrency allows. Calls go through the client passed in, normally one from IterableService.newClientBuilder()
+ * so that its interceptors are part of what's measured.
+ *
+ * Usage: CaptureReplay --base-url URL [--fast] [--concurrency N] CAPTURE_FILE...
+ */
+public class CaptureReplay {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final OkHttpClient client;
+    private final HttpUrl baseUrl;
+
+    public static class Result {
+        public long exchanges;
+        public long failures;
+        /**
+         * Exchanges answered with a different status code than was captured.
+         */
+        public long mismatches;
+        public long p50Millis;
+        public long p99Millis;
+        public long elapsedMillis;
+
+        @Override
+        public String toString() {
+            return String.format("exchanges=%d failures=%d mismatches=%d p50=%dms p99=%dms elapsed=%dms throughput=%.1f/s",
+                    exchanges, failures, mismatches, p50Millis, p99Millis, elapsedMillis,
+                    exchanges * 1000.0 / Math.max(1, elapsedMillis));
+        }
+    }
+
+    public CaptureReplay(OkHttpClient client, HttpUrl baseUrl) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * Read the exchanges of the given files, in the order given, skipping lines that can't be parsed.
+     */
+    public static List<CaptureInterceptor.Exchange> read(List<Path> files) throws IOException {
+        Gson gson = new Gson();
+        List<CaptureInterceptor.Exchange> exchanges = new ArrayList<>();
+        for (Path file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    try {
+                        CaptureInterceptor.Exchange exchange = gson.fromJson(line, CaptureInterceptor.Exchange.class);
+                        if (exchange != null && exchange.path != null) {
+                            exchanges.add(exchange);
+                        }
+                    } catch (JsonParseException ignored) {
+                        //a line cut short when the process died
+                    }
+                }
+            }
+        }
+        return exchanges;
+    }
+
+    /**
+     * The files of a capture oldest first: file.N, ..., file.1, file.
+     */
+    public static List<Path> rotatedFiles(Path file) {
+        List<Path> files = new ArrayList<>();
+        for (int i = 1; Files.exists(file.resolveSibling(file.getFileName() + "." + i)); i++) {
+            files.add(0, file.resolveSibling(file.getFileName() + "." + i));
+        }
+        if (Files.exists(file)) {
+            files.add(file);
+        }
+        return files;
+    }
+
+    public Result replay(List<CaptureInterceptor.Exchange> exchanges, boolean preserveTiming, int concurrency)
+            throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        LatencyWindow latencies = new LatencyWindow(Math.max(1, exchanges.size()));
+        AtomicLong failures = new AtomicLong();
+        AtomicLong mismatches = new AtomicLong();
+        long start = System.currentTimeMillis();
+        long firstCapturedMillis = exchanges.isEmpty() ? 0 : exchanges.get(0).startMillis;
+        try {
+            for (CaptureInterceptor.Exchange exchange : exchanges) {
+                if (preserveTiming) {
+                    long wait = start + (exchange.startMillis - firstCapturedMillis) - System.currentTimeMillis();
+                    if (wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                }
+                workers.execute(() -> {
+                    long callStart = System.nanoTime();
+                    try (Response response = client.newCall(toRequest(exchange)).execute()) {
+                        if (exchange.error == null && response.code() != exchange.code) {
+                            mismatches.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        latencies.record((System.nanoTime() - callStart) / 1000000);
+                    }
+                });
+            }
+        } finally {
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.HOURS);
+        }
+        Result result = new Result();
+        result.exchanges = exchanges.size();
+        result.failures = failures.get();
+        result.mismatches = mismatches.get();
+        result.p50Millis = latencies.percentile(0.5);
+        result.p99Millis = latencies.percentile(0.99);
+        result.elapsedMillis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    Request toRequest(CaptureInterceptor.Exchange exchange) {
+        HttpUrl url = baseUrl.newBuilder()
+                .encodedPath(exchange.path)
+                .addQueryParameter(IterableService.PARAM_API_KEY, "replay")
+                .build();
+        RequestBody body = exchange.request == null ? null : RequestBody.create(JSON, exchange.request);
+        if (body == null && !"GET".equals(exchange.method) && !"HEAD".equals(exchange.method)) {
+            body = RequestBody.create(JSON, "");
+        }
+        return new Request.Builder().url(url).method(exchange.method, body).build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = null;
+        boolean fast = false;
+        int concurrency = 8;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--base-url") && i + 1 < args.length) {
+                baseUrl = args[++i];
+            } else if (args[i].equals("--fast")) {
+                fast = true;
+            } else if (args[i].equals("--concurrency") && i + 1 < args.length) {
+                concurrency = Integer.parseInt(args[++i]);
+            } else {
+                files.addAll(rotatedFiles(Paths.get(args[i])));
+            }
+        }
+        HttpUrl url = baseUrl == null ? null : HttpUrl.parse(baseUrl);
+        if (url == null || files.isEmpty()) {
+            System.err.println("Usage: CaptureReplay --base-url URL [--fast] [--concurrency N] CAPTURE_FILE...");
+            System.exit(2);
+        }
+        CaptureReplay replay = new CaptureReplay(IterableService.newClientBuilder().build(), url);
+        System.out.println(replay.replay(read(files), !fast, concurrency));
+    }
+}
@@ -0,0 +1,50 @@
+package com.mparticle.iterable;
+
+/**
+ * A point in time by which work has to be finished, i.e. the end of a Lambda invocation.
+ *
+ * The deadline of the work running on the current thread is available through current(), which is how
+ * DeadlineInterceptor sizes the timeouts of each call.
+ */
+public class Deadline {
+
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long expiresAtMillis;
+
+    private Deadline(long expiresAtMillis) {
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public static Deadline afterMillis(long millis) {
+        return new Deadline(System.currentTimeMillis() + millis);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, expiresAtMillis - System.currentTimeMillis());
+    }
+
+    public boolean isExpired() {
+        return remainingMillis() <= 0;
+    }
+
+    /**
+     * @return the deadline of the current thread, or null if there isn't one
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Set (or clear, when null) the deadline of the current thread, returning the previous one so it can be restored.
+     */
+    public static Deadline setCurrent(Deadline deadline) {
+        Deadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+}
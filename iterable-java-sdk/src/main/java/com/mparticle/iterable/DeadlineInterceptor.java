@@ -0,0 +1,33 @@
+package com.mparticle.iterable;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shrinks the connect, read and write timeouts of a call so that it can't outlive the Deadline of the calling
+ * thread, and fails fast once that deadline has passed.
+ */
+public class DeadlineInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Deadline deadline = Deadline.current();
+        if (deadline == null) {
+            return chain.proceed(chain.request());
+        }
+        long remaining = deadline.remainingMillis();
+        if (remaining <= 0) {
+            throw new InterruptedIOException("Deadline exceeded before calling " + IterableService.route(chain.request()));
+        }
+        int budget = (int) Math.min(Integer.MAX_VALUE, remaining);
+        return chain
+                .withConnectTimeout(Math.min(chain.connectTimeoutMillis(), budget), TimeUnit.MILLISECONDS)
+                .withReadTimeout(Math.min(chain.readTimeoutMillis(), budget), TimeUnit.MILLISECONDS)
+                .withWriteTimeout(Math.min(chain.writeTimeoutMillis(), budget), TimeUnit.MILLISECONDS)
+                .proceed(chain.request());
+    }
+}
@@ -0,0 +1,225 @@
+package com.mparticle.iterable;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Custom Java Flight Recorder events, so that recordings show what the extension was doing around the OkHttp and
+ * Jackson frames.
+ *
+ * The client is built for Java 8, which has no jdk.jfr API to compile against, so event types are defined at
+ * runtime through jdk.jfr.EventFactory. On JVMs without JFR every type is inert. While no recording is running,
+ * begin() only reads a volatile flag that a FlightRecorderListener keeps up to date, and returns a shared no-op span.
+ */
+public final class FlightRecorderEvents {
+
+    private static final Span NOOP = new Span(null, null);
+    private static final Jfr JFR = Jfr.load();
+    private static volatile boolean recording;
+
+    /**
+     * Calls to the Iterable API, see FlightRecorderInterceptor.
+     */
+    public static final Type ITERABLE_CALL = define("com.mparticle.iterable.IterableCall", "Iterable API Call",
+            "route", String.class, "eventCount", int.class, "status", int.class, "requestBytes", long.class,
+            "responseBytes", long.class, "apiKeyHash", String.class);
+
+    private FlightRecorderEvents() {
+    }
+
+    public static boolean isAvailable() {
+        return JFR != null;
+    }
+
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Define an event type with the given fields, as alternating names and types (String, int, long or boolean).
+     */
+    public static Type define(String name, String label, Object... fields) {
+        if (JFR == null) {
+            return new Type(null);
+        }
+        try {
+            return new Type(JFR.create(name, label, fields));
+        } catch (Throwable t) {
+            return new Type(null);
+        }
+    }
+
+    /**
+     * Short, stable hash of an API key, to tell accounts apart in a recording without exposing their keys.
+     */
+    public static String hash(String apiKey) {
+        if (apiKey == null) {
+            return null;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(apiKey.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static final class Type {
+        private final Object factory;
+
+        private Type(Object factory) {
+            this.factory = factory;
+        }
+
+        /**
+         * Start timing an event, to be committed when the work is done.
+         */
+        public Span begin() {
+            if (!recording || factory == null) {
+                return NOOP;
+            }
+            try {
+                Object event = JFR.newEvent.invoke(factory);
+                JFR.begin.invoke(event);
+                return new Span(JFR, event);
+            } catch (Throwable t) {
+                return NOOP;
+            }
+        }
+    }
+
+    public static final class Span {
+        private final Jfr jfr;
+        private final Object event;
+
+        private Span(Jfr jfr, Object event) {
+            this.jfr = jfr;
+            this.event = event;
+        }
+
+        /**
+         * Whether commit() records anything, so that callers can skip computing its values.
+         */
+        public boolean isRecording() {
+            return event != null;
+        }
+
+        /**
+         * End and record the event with the values of its fields, in the order they were defined.
+         */
+        public void commit(Object... values) {
+            if (event == null) {
+                return;
+            }
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    jfr.set.invoke(event, i, values[i]);
+                }
+                jfr.commit.invoke(event);
+            } catch (Throwable ignored) {
+                //a recording is never worth failing a call for
+            }
+        }
+    }
+
+    /**
+     * Method handles into jdk.jfr, null when the JVM doesn't have it.
+     */
+    private static class Jfr {
+        final MethodHandle create;
+        final MethodHandle newEvent;
+        final MethodHandle begin;
+        final MethodHandle set;
+        final MethodHandle commit;
+        final Constructor<?> annotationElement;
+        final Constructor<?> valueDescriptor;
+        final Class<?> nameAnnotation;
+        final Class<?> labelAnnotation;
+        final Class<?> categoryAnnotation;
+
+        private Jfr() throws ReflectiveOperationException {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+            Class<?> event = Class.forName("jdk.jfr.Event");
+            create = lookup.findStatic(eventFactory, "create", MethodType.methodType(eventFactory, List.class, List.class));
+            newEvent = lookup.findVirtual(eventFactory, "newEvent", MethodType.methodType(event));
+            begin = lookup.findVirtual(event, "begin", MethodType.methodType(void.class));
+            set = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class));
+            commit = lookup.findVirtual(event, "commit", MethodType.methodType(void.class));
+            annotationElement = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+            valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class);
+            nameAnnotation = Class.forName("jdk.jfr.Name");
+            labelAnnotation = Class.forName("jdk.jfr.Label");
+            categoryAnnotation = Class.forName("jdk.jfr.Category");
+        }
+
+        static Jfr load() {
+            try {
+                Jfr jfr = new Jfr();
+                jfr.listen();
+                return jfr;
+            } catch (Throwable t) {
+                return null;
+            }
+        }
+
+        /**
+         * Track whether any recording is running, starting with recordings that were started before this class
+         * was loaded, i.e. by -XX:StartFlightRecording.
+         */
+        private void listen() throws ReflectiveOperationException {
+            Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+            Class<?> listener = Class.forName("jdk.jfr.FlightRecorderListener");
+            Object proxy = Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[]{listener}, (self, method, args) -> {
+                if (method.getDeclaringClass() == Object.class) {
+                    return method.getName().equals("equals") ? self == args[0] :
+                            method.getName().equals("hashCode") ? System.identityHashCode(self) : "FlightRecorderEvents";
+                }
+                updateRecording(flightRecorder);
+                return null;
+            });
+            flightRecorder.getMethod("addListener", listener).invoke(null, proxy);
+            if ((Boolean) flightRecorder.getMethod("isInitialized").invoke(null)) {
+                updateRecording(flightRecorder);
+            }
+        }
+
+        private static void updateRecording(Class<?> flightRecorder) throws ReflectiveOperationException {
+            Object recorder = flightRecorder.getMethod("getFlightRecorder").invoke(null);
+            boolean running = false;
+            for (Object recording : (List<?>) flightRecorder.getMethod("getRecordings").invoke(recorder)) {
+                Object state = recording.getClass().getMethod("getState").invoke(recording);
+                running |= "RUNNING".equals(String.valueOf(state));
+            }
+            recording = running;
+        }
+
+        @SuppressWarnings("unchecked")
+        Object create(String name, String label, Object[] fields) throws Throwable {
+            List<Object> annotations = new ArrayList<>();
+            annotations.add(annotationElement.newInstance((Class<? extends Annotation>) nameAnnotation, name));
+            annotations.add(annotationElement.newInstance((Class<? extends Annotation>) labelAnnotation, label));
+            annotations.add(annotationElement.newInstance((Class<? extends Annotation>) categoryAnnotation,
+                    new String[]{"mParticle", "Iterable"}));
+            List<Object> descriptors = new ArrayList<>();
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                descriptors.add(valueDescriptor.newInstance(fields[i + 1], fields[i]));
+            }
+            return this.create.invoke(annotations, descriptors);
+        }
+    }
+}
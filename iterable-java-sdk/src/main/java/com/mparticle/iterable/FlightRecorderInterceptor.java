@@ -0,0 +1,74 @@
+package com.mparticle.iterable;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records a FlightRecorderEvents.ITERABLE_CALL event for every call while a flight recording is running. Failed
+ * calls are recorded with status 0. The event count is the number of items of a bulk or list call, 1 otherwise.
+ */
+public class FlightRecorderInterceptor implements Interceptor {
+
+    /**
+     * The field holding the items of each bulk and list route.
+     */
+    private static final Map<String, String> BULK_ITEMS = new HashMap<>();
+
+    static {
+        BULK_ITEMS.put("events/trackBulk", "events");
+        BULK_ITEMS.put("users/bulkUpdate", "users");
+        BULK_ITEMS.put("users/bulkUpdateSubscriptions", "updateSubscriptionsRequests");
+        BULK_ITEMS.put("lists/subscribe", "subscribers");
+        BULK_ITEMS.put("lists/unsubscribe", "subscribers");
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        FlightRecorderEvents.Span span = FlightRecorderEvents.ITERABLE_CALL.begin();
+        if (!span.isRecording()) {
+            return chain.proceed(chain.request());
+        }
+        Request request = chain.request();
+        String route = IterableService.route(request);
+        int eventCount = eventCount(route, request);
+        int status = 0;
+        long responseBytes = -1;
+        try {
+            Response response = chain.proceed(request);
+            status = response.code();
+            responseBytes = response.body() == null ? -1 : response.body().contentLength();
+            return response;
+        } finally {
+            span.commit(route, eventCount, status,
+                    request.body() == null ? 0 : request.body().contentLength(), responseBytes,
+                    FlightRecorderEvents.hash(request.url().queryParameter(IterableService.PARAM_API_KEY)));
+        }
+    }
+
+    static int eventCount(String route, Request request) {
+        String field = BULK_ITEMS.get(route);
+        if (field == null || request.body() == null) {
+            return 1;
+        }
+        try {
+            Buffer body = new Buffer();
+            request.body().writeTo(body);
+            JsonElement json = new JsonParser().parse(body.readUtf8());
+            if (json.isJsonObject() && json.getAsJsonObject().has(field) && json.getAsJsonObject().get(field).isJsonArray()) {
+                return json.getAsJsonObject().getAsJsonArray(field).size();
+            }
+        } catch (IOException | JsonParseException | IllegalStateException e) {
+            //the count is only for the recording, the call goes ahead regardless
+        }
+        return 1;
+    }
+}
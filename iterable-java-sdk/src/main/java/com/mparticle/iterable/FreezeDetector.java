@@ -0,0 +1,82 @@
+package com.mparticle.iterable;
+
+import okhttp3.ConnectionPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Notices when the process has been frozen, i.e. a Lambda container between invocations, and drops the pooled
+ * connections that may have gone stale in the meantime.
+ *
+ * A frozen process can't see its connections being dropped by NATs and load balancers, so the first call after
+ * a long pause could otherwise hang on a dead connection until its read timeout. Any gap in activity longer than
+ * gapMillis of wall-clock time is treated as a freeze: idle connections of every registered pool are evicted, so
+ * that the next call opens a new connection, looking the host up again on the way.
+ */
+public class FreezeDetector {
+
+    public static final long DEFAULT_GAP_MILLIS = 10000;
+
+    private static final FreezeDetector INSTANCE = new FreezeDetector(DEFAULT_GAP_MILLIS, IterableMetrics.getInstance());
+
+    private final Set<ConnectionPool> pools = Collections.newSetFromMap(new WeakHashMap<>());
+    private final AtomicLong lastActivity = new AtomicLong();
+    private final IterableMetrics metrics;
+    private volatile long gapMillis;
+
+    FreezeDetector(long gapMillis, IterableMetrics metrics) {
+        this.gapMillis = gapMillis;
+        this.metrics = metrics;
+    }
+
+    public static FreezeDetector getInstance() {
+        return INSTANCE;
+    }
+
+    public void setGapMillis(long gapMillis) {
+        this.gapMillis = gapMillis;
+    }
+
+    /**
+     * Evict the idle connections of the pool after a freeze. Pools are held weakly.
+     */
+    public synchronized void register(ConnectionPool pool) {
+        pools.add(pool);
+    }
+
+    /**
+     * Record activity, evicting idle connections if it's the first activity after a gap.
+     *
+     * @return whether there was a gap, for only one of the callers that notice it
+     */
+    public boolean checkThaw() {
+        long now = System.currentTimeMillis();
+        long last = lastActivity.getAndSet(now);
+        if (last == 0 || now - last < gapMillis) {
+            return false;
+        }
+        metrics.increment("freeze.thaws");
+        metrics.set("freeze.lastGapMillis", now - last);
+        List<ConnectionPool> registered;
+        synchronized (this) {
+            registered = new ArrayList<>(pools);
+        }
+        for (ConnectionPool pool : registered) {
+            metrics.add("freeze.evictedConnections", pool.idleConnectionCount());
+            pool.evictAll();
+        }
+        return true;
+    }
+
+    /**
+     * Record activity, i.e. the end of a call.
+     */
+    public void touch() {
+        lastActivity.set(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,24 @@
+package com.mparticle.iterable;
+
+import java.util.List;
+
+/**
+ * A user as returned by users/getByEmail and users/byUserId, with only the fields the extension reads. The user
+ * is null for unknown users.
+ */
+public class GetUserResponse {
+    public User user;
+
+    public static class User {
+        public String email;
+        public String userId;
+        public DataFields dataFields;
+    }
+
+    public static class DataFields {
+        /**
+         * The user's cart, as last replaced by updateCart.
+         */
+        public List<CommerceItem> shoppingCartItems;
+    }
+}
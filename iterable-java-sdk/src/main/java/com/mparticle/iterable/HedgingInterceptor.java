@@ -0,0 +1,212 @@
+package com.mparticle.iterable;
+
+import okhttp3.Call;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in request hedging for idempotent routes.
+ *
+ * Hedgeable requests are sent through the hedge client, with the timeouts of the intercepted chain. When the call
+ * hasn't returned within the route's recent latency at the configured percentile, the same request is sent again
+ * (over another connection, since the first one is busy). Whichever response arrives first is returned and the
+ * other call is cancelled. Hedges are capped at a fraction of all hedgeable requests.
+ *
+ * The hedge client must not itself include this interceptor. Cancelling the intercepted call would fail it even when
+ * the hedge won, which is why the first attempt doesn't go through the chain either. Otherwise the hedge client can
+ * be built with IterableService.newClientBuilder(): both attempts are tagged, so that the SingleFlightInterceptor
+ * doesn't coalesce the hedge onto the attempt it's meant to race, and the MetricsInterceptor leaves them to the
+ * intercepted chain, which counts the call once.
+ */
+public class HedgingInterceptor implements Interceptor {
+
+    public static final Set<String> IDEMPOTENT_ROUTES = new HashSet<>(Arrays.asList("users/update", "users/registerDeviceToken"));
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_MAX_HEDGE_RATE = 0.05;
+    public static final long DEFAULT_MIN_DELAY_MILLIS = 20;
+
+    /**
+     * Tag of the requests this interceptor sends through the hedge client.
+     */
+    private static final class HedgeTag {
+        final boolean hedge;
+
+        HedgeTag(boolean hedge) {
+            this.hedge = hedge;
+        }
+    }
+
+    private final OkHttpClient hedgeClient;
+    private final IterableMetrics metrics;
+    private final double percentile;
+    private final double maxHedgeRate;
+    private final long minDelayMillis;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "iterable-hedging");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HedgingInterceptor(OkHttpClient hedgeClient) {
+        this(hedgeClient, IterableMetrics.getInstance(), DEFAULT_PERCENTILE, DEFAULT_MAX_HEDGE_RATE, DEFAULT_MIN_DELAY_MILLIS);
+    }
+
+    public HedgingInterceptor(OkHttpClient hedgeClient, IterableMetrics metrics, double percentile, double maxHedgeRate, long minDelayMillis) {
+        this.hedgeClient = hedgeClient;
+        this.metrics = metrics;
+        this.percentile = percentile;
+        this.maxHedgeRate = maxHedgeRate;
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * Share of hedgeable requests that were hedged so far.
+     */
+    public double getHedgeRate() {
+        long total = requests.get();
+        return total == 0 ? 0 : (double) hedges.get() / total;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String route = IterableService.route(request);
+        if (!IDEMPOTENT_ROUTES.contains(route)) {
+            return chain.proceed(request);
+        }
+        requests.incrementAndGet();
+        metrics.increment("hedge." + route + ".requests");
+        long delay = metrics.latencyPercentile(route, percentile);
+        if (delay < 0) {
+            //no idea yet what slow looks like for this route
+            return chain.proceed(request);
+        }
+        delay = Math.max(delay, minDelayMillis);
+
+        OkHttpClient client = hedgeClient.newBuilder()
+                .connectTimeout(chain.connectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(chain.readTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .writeTimeout(chain.writeTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .build();
+        Race race = new Race();
+        Deadline deadline = Deadline.current();
+        Span span = Tracing.current();
+        Call primary = client.newCall(request.newBuilder().tag(HedgeTag.class, new HedgeTag(false)).build());
+        race.start(executor, () -> execute(primary, deadline, span), false);
+        Response response = race.await(delay);
+        if (response != null) {
+            return response;
+        }
+        if (hedges.get() + 1 > maxHedgeRate * requests.get()) {
+            return race.await(-1);
+        }
+        hedges.incrementAndGet();
+        metrics.increment("hedge." + route + ".hedged");
+        Call hedge = client.newCall(request.newBuilder().tag(HedgeTag.class, new HedgeTag(true)).build());
+        race.start(executor, () -> execute(hedge, deadline, span), true);
+        response = race.await(-1);
+        if (race.hedgeWon) {
+            metrics.increment("hedge." + route + ".wins");
+            primary.cancel();
+        } else {
+            hedge.cancel();
+        }
+        return response;
+    }
+
+    /**
+     * Whether the request is one of the attempts of a hedged call.
+     */
+    static boolean isAttempt(Request request) {
+        return request.tag(HedgeTag.class) != null;
+    }
+
+    /**
+     * Whether the request is the second attempt of a hedged call.
+     */
+    static boolean isHedge(Request request) {
+        HedgeTag tag = request.tag(HedgeTag.class);
+        return tag != null && tag.hedge;
+    }
+
+    private static Response execute(Call call, Deadline deadline, Span span) throws IOException {
+        Deadline previous = Deadline.setCurrent(deadline);
+        Span previousSpan = Tracing.setCurrent(span);
+        try {
+            return call.execute();
+        } finally {
+            Deadline.setCurrent(previous);
+            Tracing.setCurrent(previousSpan);
+        }
+    }
+
+    private interface Attempt {
+        Response execute() throws IOException;
+    }
+
+    /**
+     * The first successful response wins. Later responses are closed to release their connection, and the race
+     * only fails once every attempt has.
+     */
+    private static class Race {
+        private final CompletableFuture<Response> winner = new CompletableFuture<>();
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private volatile boolean hedgeWon;
+
+        void start(Executor executor, Attempt attempt, boolean isHedge) {
+            //counted before it runs, so that an earlier attempt failing can't end the race too soon
+            attempts.incrementAndGet();
+            executor.execute(() -> finish(attempt, isHedge));
+        }
+
+        private void finish(Attempt attempt, boolean isHedge) {
+            try {
+                Response response = attempt.execute();
+                synchronized (this) {
+                    if (winner.isDone()) {
+                        response.close();
+                        return;
+                    }
+                    hedgeWon = isHedge;
+                    winner.complete(response);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failures.incrementAndGet() >= attempts.get()) {
+                    winner.completeExceptionally(e);
+                }
+            }
+        }
+
+        /**
+         * @return the winning response, or null if there isn't one within the timeout
+         */
+        Response await(long timeoutMillis) throws IOException {
+            try {
+                return timeoutMillis < 0 ? winner.get() : winner.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                return null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+}
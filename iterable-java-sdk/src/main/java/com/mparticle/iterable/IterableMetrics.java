@@ -0,0 +1,79 @@
+package com.mparticle.iterable;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters describing how the client and the extension talk to Iterable.
+ *
+ * Everything is keyed by a dotted name (i.e. "bulk.events/trackBulk.flushes") so that a snapshot can be
+ * logged or pushed to whatever metrics backend the host process uses.
+ */
+public class IterableMetrics {
+
+    private static final IterableMetrics INSTANCE = new IterableMetrics();
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+
+    public static IterableMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public long increment(String name) {
+        return add(name, 1);
+    }
+
+    public long add(String name, long delta) {
+        return counters.computeIfAbsent(name, k -> new AtomicLong()).addAndGet(delta);
+    }
+
+    /**
+     * Record the current value of a gauge, i.e. a timeout.
+     */
+    public void set(String name, long value) {
+        counters.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    public long get(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public void recordLatency(String route, long millis) {
+        latencies.computeIfAbsent(route, k -> new LatencyWindow()).record(millis);
+    }
+
+    /**
+     * @return the latency of the route at the given percentile (0-1), or -1 if the route hasn't been called yet
+     */
+    public long latencyPercentile(String route, double percentile) {
+        LatencyWindow window = latencies.get(route);
+        return window == null ? -1 : window.percentile(percentile);
+    }
+
+    public int latencySampleCount(String route) {
+        LatencyWindow window = latencies.get(route);
+        return window == null ? 0 : window.getCount();
+    }
+
+    public Map<String, Number> snapshot() {
+        Map<String, Number> snapshot = new TreeMap<>();
+        counters.forEach((name, value) -> snapshot.put(name, value.get()));
+        latencies.forEach((route, window) -> {
+            snapshot.put("route." + route + ".p50", window.percentile(0.5));
+            snapshot.put("route." + route + ".p99", window.percentile(0.99));
+        });
+        return snapshot;
+    }
+
+    /**
+     * Only intended for tests.
+     */
+    public void reset() {
+        counters.clear();
+        latencies.clear();
+    }
+}
@@ -0,0 +1,28 @@
+package com.mparticle.iterable;
+
+import java.util.Locale;
+
+/**
+ * The Iterable data center a project is hosted in.
+ */
+public enum IterableRegion {
+    US(IterableService.HOST),
+    EU(IterableService.EU_HOST);
+
+    public final String host;
+
+    IterableRegion(String host) {
+        this.host = host;
+    }
+
+    /**
+     * @param setting the configured region, i.e. "EU", blank for the default (US)
+     * @throws IllegalArgumentException for an unknown region
+     */
+    public static IterableRegion fromSetting(String setting) {
+        if (setting == null || setting.trim().isEmpty()) {
+            return US;
+        }
+        return valueOf(setting.trim().toUpperCase(Locale.US));
+    }
+}
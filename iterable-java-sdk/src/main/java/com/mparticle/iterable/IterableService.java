@@ -2,13 +2,16 @@ package com.mparticle.iterable;
 
 
 
+import okhttp3.ConnectionPool;
 import okhttp3.HttpUrl;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import retrofit2.Call;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 import retrofit2.http.Body;
 import retrofit2.http.GET;
+import retrofit2.http.HEAD;
 import retrofit2.http.POST;
 import retrofit2.http.Query;
 
@@ -23,18 +26,25 @@ import java.util.concurrent.TimeUnit;
 public interface IterableService {
 
     String HOST = "api.iterable.com";
+    String EU_HOST = "api.eu.iterable.com";
     String PARAM_API_KEY = "api_key";
     long SERVICE_TIMEOUT_MILLIS = 500;
 
     @POST("api/events/track")
     Call<IterableApiResponse> track(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackRequest trackRequest);
 
+    @POST("api/events/trackBulk")
+    Call<BulkResponse> trackBulk(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackBulkRequest trackBulkRequest);
+
     @POST("api/events/trackPushOpen")
     Call<IterableApiResponse> trackPushOpen(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackPushOpenRequest registerRequest);
 
     @POST("api/users/update")
     Call<IterableApiResponse> userUpdate(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UserUpdateRequest trackRequest);
 
+    @POST("api/users/bulkUpdate")
+    Call<BulkResponse> userBulkUpdate(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body BulkUserUpdateRequest bulkUserUpdateRequest);
+
     @POST("api/users/updateEmail")
     Call<IterableApiResponse> updateEmail(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UpdateEmailRequest updateEmailRequest);
 
@@ -50,26 +60,84 @@ public interface IterableService {
     @POST("api/commerce/trackPurchase")
     Call<IterableApiResponse> trackPurchase(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body TrackPurchaseRequest purchaseRequest);
 
+    @POST("api/commerce/updateCart")
+    Call<IterableApiResponse> updateCart(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UpdateCartRequest updateCartRequest);
+
     @POST("api/users/updateSubscriptions")
     Call<IterableApiResponse> updateSubscriptions(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body UpdateSubscriptionsRequest userUpdateRequest);
 
+    @POST("api/users/bulkUpdateSubscriptions")
+    Call<BulkResponse> bulkUpdateSubscriptions(@Query(IterableService.PARAM_API_KEY) String apiKey, @Body BulkUpdateSubscriptionsRequest bulkUpdateSubscriptionsRequest);
+
+    @GET("api/users/getByEmail")
+    Call<GetUserResponse> getUserByEmail(@Query(IterableService.PARAM_API_KEY) String apiKey, @Query("email") String email);
+
+    @GET("api/users/byUserId")
+    Call<GetUserResponse> getUserByUserId(@Query(IterableService.PARAM_API_KEY) String apiKey, @Query("userId") String userId);
+
+    /**
+     * Opens a connection ahead of the first real call, i.e. after a freeze. The response doesn't matter.
+     */
+    @HEAD("api/")
+    Call<Void> warmUp();
+
     /**
      * At the moment this is only used for unit testing the list subscribe/unsubscribe API calls
      */
     @GET("api/lists")
     Call<GetListResponse> lists();
 
+    /**
+     * Short name of the API route a request was made for, i.e. "events/track".
+     */
+    static String route(Request request) {
+        String path = request.url().encodedPath();
+        return path.startsWith("/api/") ? path.substring("/api/".length()) : path.substring(1);
+    }
+
     static IterableService newInstance() {
-        final OkHttpClient client = new OkHttpClient.Builder()
+        return newInstance(newClientBuilder().build());
+    }
+
+    /**
+     * Builder for a client with the default timeouts and interceptors, for callers that need to add their own.
+     */
+    static OkHttpClient.Builder newClientBuilder() {
+        ConnectionPool connectionPool = new ConnectionPool();
+        return new OkHttpClient.Builder()
                 .connectTimeout(SERVICE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
                 .readTimeout(SERVICE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
-                .build();
-        final HttpUrl url = new HttpUrl.Builder()
+                .connectionPool(connectionPool)
+                .addInterceptor(new ThawInterceptor(connectionPool))
+                .addInterceptor(new SingleFlightInterceptor())
+                .addInterceptor(new MetricsInterceptor())
+                .addInterceptor(new AdaptiveTimeoutInterceptor())
+                .addInterceptor(new DeadlineInterceptor())
+                .addInterceptor(new FlightRecorderInterceptor())
+                .addInterceptor(new TracingInterceptor());
+    }
+
+    static IterableService newInstance(OkHttpClient client) {
+        return newInstance(client, baseUrl(IterableRegion.US));
+    }
+
+    /**
+     * A service for the given data center, with its own client.
+     */
+    static IterableService newInstance(IterableRegion region) {
+        return newInstance(newClientBuilder().build(), baseUrl(region));
+    }
+
+    static HttpUrl baseUrl(IterableRegion region) {
+        return new HttpUrl.Builder()
                 .scheme("https")
-                .host(IterableService.HOST)
+                .host(region.host)
                 .build();
+    }
+
+    static IterableService newInstance(OkHttpClient client, HttpUrl baseUrl) {
         final Retrofit retrofit = new Retrofit.Builder()
-                .baseUrl(url)
+                .baseUrl(baseUrl)
                 .client(client)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build();
@@ -0,0 +1,52 @@
+package com.mparticle.iterable;
+
+import java.util.Arrays;
+
+/**
+ * The most recent latency samples of a route, used to estimate percentiles over a rolling window.
+ */
+public class LatencyWindow {
+
+    public static final int DEFAULT_SIZE = 256;
+
+    private final long[] samples;
+    private int next;
+    private int count;
+
+    public LatencyWindow() {
+        this(DEFAULT_SIZE);
+    }
+
+    public LatencyWindow(int size) {
+        this.samples = new long[size];
+    }
+
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile between 0 and 1, i.e. 0.99
+     * @return the latency at that percentile, or -1 if nothing has been recorded yet
+     */
+    public long percentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            sorted = Arrays.copyOf(samples, count);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
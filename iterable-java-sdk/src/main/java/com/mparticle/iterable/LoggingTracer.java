@@ -0,0 +1,135 @@
+package com.mparticle.iterable;
+
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A Tracer that writes every finished span as a line of JSON, to a file or to standard error, so that traces can be
+ * looked at without a tracing backend.
+ *
+ * Trace and span ids have the W3C trace context format (32 and 16 hex characters), so that lines can be joined with
+ * traces from other systems. Failing to write never fails the traced work.
+ */
+public class LoggingTracer implements Tracer {
+
+    public static class SpanData {
+        public String traceId;
+        public String spanId;
+        public String parentId;
+        public String name;
+        public long startMillis;
+        public long durationMicros;
+        public Map<String, Object> attributes;
+        public String error;
+    }
+
+    private final Path file;
+    private final Gson gson = new Gson();
+    private final IterableMetrics metrics = IterableMetrics.getInstance();
+    private Writer writer;
+
+    /**
+     * @param file the file to append to, or null for standard error
+     */
+    public LoggingTracer(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public Span startSpan(String name, Span parent) {
+        SpanData data = new SpanData();
+        data.traceId = parent == null || parent.getTraceId() == null ? randomHex(16) : parent.getTraceId();
+        data.spanId = randomHex(8);
+        data.parentId = parent == null ? null : parent.getSpanId();
+        data.name = name;
+        data.startMillis = System.currentTimeMillis();
+        return new LoggedSpan(data, System.nanoTime());
+    }
+
+    private static String randomHex(int bytes) {
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+
+    protected synchronized void export(SpanData span) {
+        try {
+            if (writer == null) {
+                writer = file == null ? new OutputStreamWriter(System.err, StandardCharsets.UTF_8) :
+                        Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+            writer.write(gson.toJson(span));
+            writer.write("\n");
+            writer.flush();
+        } catch (IOException e) {
+            metrics.increment("tracing.errors");
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        if (writer != null && file != null) {
+            writer.close();
+        }
+        writer = null;
+    }
+
+    private class LoggedSpan implements Span {
+        private final SpanData data;
+        private final long startNanos;
+        private boolean ended;
+
+        LoggedSpan(SpanData data, long startNanos) {
+            this.data = data;
+            this.startNanos = startNanos;
+        }
+
+        @Override
+        public synchronized Span setAttribute(String key, Object value) {
+            if (data.attributes == null) {
+                data.attributes = new LinkedHashMap<>();
+            }
+            data.attributes.put(key, value);
+            return this;
+        }
+
+        @Override
+        public synchronized void recordError(Throwable error) {
+            data.error = error.getClass().getSimpleName() + (error.getMessage() == null ? "" : ": " + error.getMessage());
+        }
+
+        @Override
+        public void end() {
+            synchronized (this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                data.durationMicros = (System.nanoTime() - startNanos) / 1000;
+            }
+            export(data);
+        }
+
+        @Override
+        public String getTraceId() {
+            return data.traceId;
+        }
+
+        @Override
+        public String getSpanId() {
+            return data.spanId;
+        }
+    }
+}
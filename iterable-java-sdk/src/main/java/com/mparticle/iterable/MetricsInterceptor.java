@@ -0,0 +1,49 @@
+package com.mparticle.iterable;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Records the latency and outcome of every call in IterableMetrics, per route.
+ */
+public class MetricsInterceptor implements Interceptor {
+
+    private final IterableMetrics metrics;
+
+    public MetricsInterceptor() {
+        this(IterableMetrics.getInstance());
+    }
+
+    public MetricsInterceptor(IterableMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        if (HedgingInterceptor.isAttempt(chain.request())) {
+            //the intercepted chain records the hedged call as a whole
+            return chain.proceed(chain.request());
+        }
+        String route = IterableService.route(chain.request());
+        long start = System.nanoTime();
+        try {
+            Response response = chain.proceed(chain.request());
+            metrics.increment("route." + route + ".calls");
+            if (!response.isSuccessful()) {
+                metrics.increment("route." + route + ".http" + response.code());
+            }
+            return response;
+        } catch (SocketTimeoutException e) {
+            metrics.increment("route." + route + ".timeouts");
+            throw e;
+        } catch (IOException e) {
+            metrics.increment("route." + route + ".failures");
+            throw e;
+        } finally {
+            metrics.recordLatency(route, (System.nanoTime() - start) / 1000000);
+        }
+    }
+}
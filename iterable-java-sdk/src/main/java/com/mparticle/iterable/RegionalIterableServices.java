@@ -0,0 +1,41 @@
+package com.mparticle.iterable;
+
+import okhttp3.HttpUrl;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * One IterableService per data center, each with its own client and so its own connection pool: connections to
+ * one region are never handed to calls for another, and a slow region can't exhaust the other's pool.
+ */
+public class RegionalIterableServices {
+
+    private final Map<IterableRegion, HttpUrl> baseUrls;
+    private final Map<IterableRegion, IterableService> services = new EnumMap<>(IterableRegion.class);
+
+    public RegionalIterableServices() {
+        this(new EnumMap<>(IterableRegion.class));
+    }
+
+    /**
+     * @param baseUrls overrides of the regions' base URLs, i.e. for stub servers
+     */
+    public RegionalIterableServices(Map<IterableRegion, HttpUrl> baseUrls) {
+        this.baseUrls = baseUrls;
+    }
+
+    /**
+     * The service for the region, created on first use.
+     */
+    public synchronized IterableService get(IterableRegion region) {
+        IterableService service = services.get(region);
+        if (service == null) {
+            HttpUrl baseUrl = baseUrls.get(region);
+            service = IterableService.newInstance(IterableService.newClientBuilder().build(),
+                    baseUrl == null ? IterableService.baseUrl(region) : baseUrl);
+            services.put(region, service);
+        }
+        return service;
+    }
+}
@@ -0,0 +1,184 @@
+package com.mparticle.iterable;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent identical calls to idempotent routes share a single request.
+ *
+ * Calls are identical when they have the same route, API key and body, comparing bodies as JSON with sorted keys
+ * so that the order of i.e. dataFields doesn't matter. The first call is sent and every identical call arriving
+ * while it's in flight waits for it (no longer than its own Deadline), then gets a copy of its response or its
+ * failure. Responses are buffered in memory to be shared, which is fine for the small bodies of these routes.
+ */
+public class SingleFlightInterceptor implements Interceptor {
+
+    private final Set<String> routes;
+    private final IterableMetrics metrics;
+    private final ConcurrentHashMap<String, CompletableFuture<Shared>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public SingleFlightInterceptor() {
+        this(HedgingInterceptor.IDEMPOTENT_ROUTES, IterableMetrics.getInstance());
+    }
+
+    public SingleFlightInterceptor(Set<String> routes, IterableMetrics metrics) {
+        this.routes = routes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Share of calls to the routes that were served by another call's request so far.
+     */
+    public double getCoalesceRate() {
+        long total = calls.get();
+        return total == 0 ? 0 : (double) coalesced.get() / total;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        String route = IterableService.route(request);
+        //a hedge would only wait for the very call it's meant to race
+        if (!routes.contains(route) || HedgingInterceptor.isHedge(request)) {
+            return chain.proceed(request);
+        }
+        calls.incrementAndGet();
+        metrics.increment("singleflight." + route + ".calls");
+        String key = key(request, route);
+        CompletableFuture<Shared> flight = new CompletableFuture<>();
+        CompletableFuture<Shared> leader = inFlight.putIfAbsent(key, flight);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            metrics.increment("singleflight." + route + ".coalesced");
+            return await(leader, route).toResponse(request);
+        }
+        try {
+            Response response = chain.proceed(request);
+            Shared shared = new Shared(response);
+            flight.complete(shared);
+            return shared.toResponse(request);
+        } catch (IOException | RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private static Shared await(CompletableFuture<Shared> leader, String route) throws IOException {
+        Deadline deadline = Deadline.current();
+        try {
+            return deadline == null ? leader.get() : leader.get(Math.max(0, deadline.remainingMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new InterruptedIOException("Deadline exceeded while waiting for identical call to " + route);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for identical call to " + route);
+        } catch (ExecutionException e) {
+            throw new IOException("Identical call to " + route + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * The route followed by a hash of the method, API key and canonical body.
+     */
+    static String key(Request request, String route) throws IOException {
+        byte[] body = new byte[0];
+        if (request.body() != null) {
+            Buffer buffer = new Buffer();
+            request.body().writeTo(buffer);
+            body = buffer.readByteArray();
+            try {
+                JsonElement json = new JsonParser().parse(new String(body, StandardCharsets.UTF_8));
+                body = canonical(json).toString().getBytes(StandardCharsets.UTF_8);
+            } catch (JsonParseException e) {
+                //compare the raw bytes
+            }
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((request.method() + " " + request.url().queryParameter(IterableService.PARAM_API_KEY) + " ")
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(route).append(' ');
+            for (byte b : digest.digest(body)) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            //every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static JsonElement canonical(JsonElement json) {
+        if (json.isJsonObject()) {
+            Map<String, JsonElement> sorted = new TreeMap<>();
+            for (Map.Entry<String, JsonElement> member : json.getAsJsonObject().entrySet()) {
+                sorted.put(member.getKey(), canonical(member.getValue()));
+            }
+            JsonObject object = new JsonObject();
+            for (Map.Entry<String, JsonElement> member : sorted.entrySet()) {
+                object.add(member.getKey(), member.getValue());
+            }
+            return object;
+        }
+        if (json.isJsonArray()) {
+            JsonArray array = new JsonArray();
+            for (JsonElement element : json.getAsJsonArray()) {
+                array.add(canonical(element));
+            }
+            return array;
+        }
+        return json;
+    }
+
+    /**
+     * A response with its body read, so that every waiting call can get a copy.
+     */
+    private static class Shared {
+        final Response response;
+        final MediaType contentType;
+        final byte[] body;
+
+        Shared(Response response) throws IOException {
+            try (ResponseBody responseBody = response.body()) {
+                this.contentType = responseBody == null ? null : responseBody.contentType();
+                this.body = responseBody == null ? null : responseBody.bytes();
+            }
+            this.response = response;
+        }
+
+        Response toResponse(Request request) {
+            return response.newBuilder()
+                    .request(request)
+                    .body(body == null ? null : ResponseBody.create(contentType, body))
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.mparticle.iterable;
+
+/**
+ * A timed unit of work in a trace, i.e. the processing of a Message, one of its phases or a call to Iterable.
+ *
+ * Mirrors the subset of the OpenTelemetry span API the extension needs, so that a Tracer can be backed by a
+ * standard tracing library.
+ */
+public interface Span {
+
+    Span NOOP = new Span() {
+        @Override
+        public Span setAttribute(String key, Object value) {
+            return this;
+        }
+
+        @Override
+        public void recordError(Throwable error) {
+        }
+
+        @Override
+        public void end() {
+        }
+
+        @Override
+        public String getTraceId() {
+            return null;
+        }
+
+        @Override
+        public String getSpanId() {
+            return null;
+        }
+    };
+
+    /**
+     * @param value a String, Number or Boolean
+     */
+    Span setAttribute(String key, Object value);
+
+    void recordError(Throwable error);
+
+    void end();
+
+    String getTraceId();
+
+    String getSpanId();
+}
@@ -0,0 +1,38 @@
+package com.mparticle.iterable;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * Checks for a freeze (see FreezeDetector) before every call, so that a call made right after one doesn't pick a
+ * stale connection from the client's pool.
+ */
+public class ThawInterceptor implements Interceptor {
+
+    private final FreezeDetector detector;
+
+    /**
+     * @param connectionPool the pool of the client this interceptor is added to
+     */
+    public ThawInterceptor(ConnectionPool connectionPool) {
+        this(FreezeDetector.getInstance(), connectionPool);
+    }
+
+    ThawInterceptor(FreezeDetector detector, ConnectionPool connectionPool) {
+        this.detector = detector;
+        detector.register(connectionPool);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        detector.checkThaw();
+        try {
+            return chain.proceed(chain.request());
+        } finally {
+            detector.touch();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.mparticle.iterable;
+
+/**
+ * Creates spans, see Tracing for how the current span is tracked and LoggingTracer for the built-in exporter.
+ */
+public interface Tracer {
+
+    Tracer NOOP = (name, parent) -> Span.NOOP;
+
+    /**
+     * @param parent the span this one is part of, null to start a new trace
+     */
+    Span startSpan(String name, Span parent);
+}
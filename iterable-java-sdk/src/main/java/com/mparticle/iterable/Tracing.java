@@ -0,0 +1,53 @@
+package com.mparticle.iterable;
+
+/**
+ * The process-wide Tracer and the span of the work running on the current thread.
+ *
+ * Like Deadline, the current span is thread-local: code that hands work to another thread captures current() and
+ * makes it current on the other thread for the duration of the work, so that spans started there have the right
+ * parent.
+ */
+public final class Tracing {
+
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+    private static volatile Tracer tracer = Tracer.NOOP;
+
+    private Tracing() {
+    }
+
+    public static void setTracer(Tracer tracer) {
+        Tracing.tracer = tracer == null ? Tracer.NOOP : tracer;
+    }
+
+    public static Tracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * @return the span of the current thread, or null if there isn't one
+     */
+    public static Span current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Start a span as a child of the current one, or as a new trace when there's no current span.
+     */
+    public static Span startSpan(String name) {
+        Tracer tracer = Tracing.tracer;
+        return tracer == Tracer.NOOP ? Span.NOOP : tracer.startSpan(name, CURRENT.get());
+    }
+
+    /**
+     * Set (or clear, when null) the span of the current thread, returning the previous one so it can be restored.
+     */
+    public static Span setCurrent(Span span) {
+        Span previous = CURRENT.get();
+        if (span == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(span);
+        }
+        return previous;
+    }
+}
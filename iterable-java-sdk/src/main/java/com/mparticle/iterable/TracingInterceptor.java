@@ -0,0 +1,35 @@
+package com.mparticle.iterable;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * Traces every call as a child of the span current on the calling thread, with the route and response code as
+ * attributes.
+ */
+public class TracingInterceptor implements Interceptor {
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        Span span = Tracing.startSpan("iterable " + IterableService.route(request));
+        if (span == Span.NOOP) {
+            return chain.proceed(request);
+        }
+        span.setAttribute("http.method", request.method());
+        span.setAttribute("iterable.route", IterableService.route(request));
+        try {
+            Response response = chain.proceed(request);
+            span.setAttribute("http.status_code", response.code());
+            return response;
+        } catch (IOException | RuntimeException e) {
+            span.recordError(e);
+            throw e;
+        } finally {
+            span.end();
+        }
+    }
+}
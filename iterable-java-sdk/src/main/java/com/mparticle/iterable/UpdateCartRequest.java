@@ -0,0 +1,11 @@
+package com.mparticle.iterable;
+
+import java.util.List;
+
+/**
+ * Replaces the user's shopping cart with the given items.
+ */
+public class UpdateCartRequest {
+    public ApiUser user;
+    public List<CommerceItem> items;
+}
@@ -0,0 +1,30 @@
+package com.mparticle.iterable;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveTimeoutInterceptorTest {
+
+    @Test
+    public void testTimeoutFor() throws Exception {
+        IterableMetrics metrics = new IterableMetrics();
+        AdaptiveTimeoutInterceptor interceptor = new AdaptiveTimeoutInterceptor(metrics, 0.99, 2, 100, 3000, 10);
+
+        //not enough samples yet, use the initial timeouts
+        assertEquals(IterableService.SERVICE_TIMEOUT_MILLIS, interceptor.timeoutFor("events/track"));
+        assertEquals(2000, interceptor.timeoutFor("lists/subscribe"));
+
+        for (int i = 0; i < 100; i++) {
+            metrics.recordLatency("events/track", 40);
+            metrics.recordLatency("lists/subscribe", 1200);
+        }
+        assertEquals(100, interceptor.timeoutFor("events/track"));
+        assertEquals(2400, interceptor.timeoutFor("lists/subscribe"));
+
+        for (int i = 0; i < 10; i++) {
+            metrics.recordLatency("lists/subscribe", 5000);
+        }
+        assertEquals("Timeouts should be clamped to the maximum", 3000, interceptor.timeoutFor("lists/subscribe"));
+    }
+}
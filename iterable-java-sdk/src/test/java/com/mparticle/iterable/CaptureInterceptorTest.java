@@ -0,0 +1,99 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CaptureInterceptorTest {
+
+    @Test
+    public void testCaptureAndReplay() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/", exchange -> {
+            received.incrementAndGet();
+            byte[] body = "{\"code\":\"Success\",\"msg\":\"updated mptest@mparticle.com\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("iterable.capture");
+            CaptureInterceptor capture = new CaptureInterceptor(file);
+            HttpUrl baseUrl = HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            IterableService service = IterableService.newInstance(
+                    IterableService.newClientBuilder().addInterceptor(capture).build(), baseUrl);
+            TrackRequest track = new TrackRequest("purchase");
+            track.email = "mptest@mparticle.com";
+            service.track("secret api key", track).execute();
+            UserUpdateRequest update = new UserUpdateRequest();
+            update.email = "MPTEST@mparticle.com";
+            service.userUpdate("secret api key", update).execute();
+            capture.close();
+
+            String captured = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            assertFalse("API keys must not be captured", captured.contains("secret"));
+            assertFalse("Emails must not be captured", captured.contains("mptest"));
+            List<CaptureInterceptor.Exchange> exchanges = CaptureReplay.read(CaptureReplay.rotatedFiles(file));
+            assertEquals(2, exchanges.size());
+            assertEquals("/api/events/track", exchanges.get(0).path);
+            assertEquals(200, exchanges.get(0).code);
+            String pseudonym = exchanges.get(0).request.replaceAll(".*(user-[0-9a-f]+@redacted.invalid).*", "$1");
+            assertTrue("The same email should get the same pseudonym", exchanges.get(1).request.contains(pseudonym));
+            assertTrue(exchanges.get(0).response.contains(pseudonym));
+
+            CaptureReplay.Result result = new CaptureReplay(new OkHttpClient(), baseUrl).replay(exchanges, false, 2);
+            assertEquals(2, result.exchanges);
+            assertEquals(0, result.failures);
+            assertEquals(0, result.mismatches);
+            assertEquals(4, received.get());
+        } finally {
+            server.stop(0);
+            Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        Path directory = Files.createTempDirectory("capture");
+        try {
+            Path file = directory.resolve("iterable.capture");
+            CaptureInterceptor capture = new CaptureInterceptor(file, 1, 3);
+            HttpUrl baseUrl = HttpUrl.parse("http://127.0.0.1:1/");
+            IterableService service = IterableService.newInstance(new OkHttpClient.Builder().addInterceptor(capture).build(), baseUrl);
+            for (int i = 0; i < 5; i++) {
+                try {
+                    service.track("key", new TrackRequest("event " + i)).execute();
+                } catch (IOException expected) {
+                    //nothing listens on port 1, failures are captured too
+                }
+            }
+            capture.close();
+
+            List<Path> files = CaptureReplay.rotatedFiles(file);
+            assertEquals("Each exchange fills a file, only 3 files are kept", 2, files.size());
+            List<CaptureInterceptor.Exchange> exchanges = CaptureReplay.read(files);
+            assertEquals(2, exchanges.size());
+            assertTrue(exchanges.get(0).request.contains("event 3"));
+            assertTrue(exchanges.get(1).request.contains("event 4"));
+            assertNotNull(exchanges.get(1).error);
+        } finally {
+            Files.walk(directory).sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+}
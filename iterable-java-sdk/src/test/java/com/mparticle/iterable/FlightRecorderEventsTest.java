@@ -0,0 +1,101 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * jdk.jfr is used through reflection, like in FlightRecorderEvents, since this code is built for Java 8.
+ */
+public class FlightRecorderEventsTest {
+
+    @Test
+    public void testNoopWithoutRecording() {
+        Assume.assumeFalse(FlightRecorderEvents.isRecording());
+        FlightRecorderEvents.Span span = FlightRecorderEvents.ITERABLE_CALL.begin();
+        assertFalse(span.isRecording());
+        assertSame(span, FlightRecorderEvents.ITERABLE_CALL.begin());
+        span.commit("ignored");
+    }
+
+    @Test
+    public void testRecordingReadBack() throws Exception {
+        Assume.assumeTrue("This JVM has no flight recorder", FlightRecorderEvents.isAvailable());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/events/track", exchange -> {
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Path file = Files.createTempFile("iterable", ".jfr");
+        Class<?> recordingClass = Class.forName("jdk.jfr.Recording");
+        Object recording = recordingClass.getConstructor().newInstance();
+        try {
+            recordingClass.getMethod("enable", String.class).invoke(recording, "com.mparticle.iterable.IterableCall");
+            recordingClass.getMethod("enable", String.class).invoke(recording, "com.mparticle.iterable.Test");
+            recordingClass.getMethod("start").invoke(recording);
+            assertTrue(FlightRecorderEvents.isRecording());
+
+            IterableService service = IterableService.newInstance(IterableService.newClientBuilder().build(),
+                    HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/"));
+            service.track("some api key", new TrackRequest("purchase")).execute();
+            TrackBulkRequest bulkRequest = new TrackBulkRequest();
+            bulkRequest.events = Arrays.asList(new TrackRequest("a"), new TrackRequest("b"), new TrackRequest("c"));
+            service.trackBulk("some api key", bulkRequest).execute();
+            FlightRecorderEvents.Type type = FlightRecorderEvents.define("com.mparticle.iterable.Test", "Test",
+                    "phase", String.class, "eventCount", int.class);
+            FlightRecorderEvents.Span span = type.begin();
+            assertTrue(span.isRecording());
+            span.commit("dispatch", 42);
+
+            recordingClass.getMethod("stop").invoke(recording);
+            recordingClass.getMethod("dump", Path.class).invoke(recording, file);
+        } finally {
+            recordingClass.getMethod("close").invoke(recording);
+            server.stop(0);
+        }
+        try {
+            assertFalse(FlightRecorderEvents.isRecording());
+            List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile")
+                    .getMethod("readAllEvents", Path.class).invoke(null, file);
+            List<String> calls = new ArrayList<>();
+            List<String> phases = new ArrayList<>();
+            for (Object event : events) {
+                Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+                String name = (String) eventType.getClass().getMethod("getName").invoke(eventType);
+                if (name.equals("com.mparticle.iterable.IterableCall")) {
+                    calls.add(value(event, "route") + " " + value(event, "eventCount") + " " + value(event, "status") + " " + value(event, "apiKeyHash"));
+                    assertTrue((Long) value(event, "requestBytes") > 0);
+                } else if (name.equals("com.mparticle.iterable.Test")) {
+                    phases.add(value(event, "phase") + " " + value(event, "eventCount"));
+                }
+            }
+            assertEquals(2, calls.size());
+            assertEquals("events/track 1 200 " + FlightRecorderEvents.hash("some api key"), calls.get(0));
+            assertEquals("events/trackBulk 3 200 " + FlightRecorderEvents.hash("some api key"), calls.get(1));
+            assertEquals(1, phases.size());
+            assertEquals("dispatch 42", phases.get(0));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static Object value(Object event, String field) throws Exception {
+        return event.getClass().getMethod("getValue", String.class).invoke(event, field);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FreezeDetectorTest {
+
+    @Test
+    public void testGapEvictsIdleConnections() throws Exception {
+        List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            IterableMetrics metrics = new IterableMetrics();
+            FreezeDetector detector = new FreezeDetector(200, metrics);
+            ConnectionPool connectionPool = new ConnectionPool();
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .connectionPool(connectionPool)
+                    .addInterceptor(new ThawInterceptor(detector, connectionPool))
+                    .build();
+            Request request = new Request.Builder()
+                    .url("http://127.0.0.1:" + server.getAddress().getPort() + "/api/users/update")
+                    .build();
+
+            for (int i = 0; i < 2; i++) {
+                try (Response response = client.newCall(request).execute()) {
+                    response.body().string();
+                }
+            }
+            assertEquals("Calls close together should reuse the connection", clientPorts.get(0), clientPorts.get(1));
+            assertEquals(1, connectionPool.idleConnectionCount());
+            assertEquals(0, metrics.get("freeze.thaws"));
+
+            Thread.sleep(300);
+            try (Response response = client.newCall(request).execute()) {
+                response.body().string();
+            }
+            assertNotEquals("The first call after a gap should open a new connection", clientPorts.get(1), clientPorts.get(2));
+            assertEquals(1, metrics.get("freeze.thaws"));
+            assertEquals(1, metrics.get("freeze.evictedConnections"));
+            assertTrue(metrics.get("freeze.lastGapMillis") >= 300);
+
+            Thread.sleep(300);
+            assertTrue(detector.checkThaw());
+            assertEquals(0, connectionPool.idleConnectionCount());
+            assertFalse("Only the first caller after a gap should see it", detector.checkThaw());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
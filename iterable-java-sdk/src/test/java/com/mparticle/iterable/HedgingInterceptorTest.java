@@ -0,0 +1,158 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HedgingInterceptorTest {
+
+    @Test
+    public void testSlowCallIsHedged() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/users/update", exchange -> {
+            if (received.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (Exception ignored) {
+                //the primary was cancelled
+            }
+        });
+        server.start();
+        try {
+            IterableMetrics metrics = new IterableMetrics();
+            //long enough for the first attempt to reach the server before the hedge does
+            for (int i = 0; i < 100; i++) {
+                metrics.recordLatency("users/update", 300);
+            }
+            OkHttpClient hedgeClient = new OkHttpClient.Builder().readTimeout(5, TimeUnit.SECONDS).build();
+            HedgingInterceptor interceptor = new HedgingInterceptor(hedgeClient, metrics, 0.95, 1.0, 20);
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .readTimeout(5, TimeUnit.SECONDS)
+                    .addInterceptor(interceptor)
+                    .build();
+            Request request = new Request.Builder()
+                    .url("http://127.0.0.1:" + server.getAddress().getPort() + "/api/users/update")
+                    .post(RequestBody.create(MediaType.parse("application/json"), "{}"))
+                    .build();
+
+            long start = System.currentTimeMillis();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals(200, response.code());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("Hedge should have answered before the slow primary, took " + elapsed + "ms", elapsed < 1500);
+            assertEquals(1, metrics.get("hedge.users/update.hedged"));
+            assertEquals(1, metrics.get("hedge.users/update.wins"));
+            assertEquals(1.0, interceptor.getHedgeRate(), 0.0001);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHedgeSentThroughDefaultClient() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/users/update", exchange -> {
+            if (received.incrementAndGet() == 1) {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            } catch (Exception ignored) {
+                //the primary was cancelled
+            }
+        });
+        server.start();
+        try {
+            IterableMetrics metrics = new IterableMetrics();
+            for (int i = 0; i < 100; i++) {
+                metrics.recordLatency("users/update", 300);
+            }
+            //single-flight must not coalesce the hedge onto the primary it races
+            OkHttpClient hedgeClient = IterableService.newClientBuilder().readTimeout(5, TimeUnit.SECONDS).build();
+            HedgingInterceptor interceptor = new HedgingInterceptor(hedgeClient, metrics, 0.95, 1.0, 20);
+            OkHttpClient client = IterableService.newClientBuilder()
+                    .readTimeout(5, TimeUnit.SECONDS)
+                    .addInterceptor(interceptor)
+                    .build();
+            Request request = new Request.Builder()
+                    .url("http://127.0.0.1:" + server.getAddress().getPort() + "/api/users/update?api_key=hedge-test")
+                    .post(RequestBody.create(MediaType.parse("application/json"), "{}"))
+                    .build();
+            long calls = IterableMetrics.getInstance().get("route.users/update.calls");
+
+            long start = System.currentTimeMillis();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals(200, response.code());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            assertEquals("The hedge should have reached the server", 2, received.get());
+            assertTrue("Hedge should have answered before the slow primary, took " + elapsed + "ms", elapsed < 1500);
+            assertEquals(1, metrics.get("hedge.users/update.wins"));
+            assertEquals("The hedged call should be counted once", calls + 1, IterableMetrics.getInstance().get("route.users/update.calls"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testHedgeRateIsCapped() throws Exception {
+        IterableMetrics metrics = new IterableMetrics();
+        metrics.recordLatency("users/update", 1);
+        //a 0% budget means the slow call is just waited for
+        HedgingInterceptor interceptor = new HedgingInterceptor(new OkHttpClient(), metrics, 0.95, 0, 1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/users/update", exchange -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+        try {
+            OkHttpClient client = new OkHttpClient.Builder().addInterceptor(interceptor).build();
+            Request request = new Request.Builder()
+                    .url("http://127.0.0.1:" + server.getAddress().getPort() + "/api/users/update")
+                    .post(RequestBody.create(MediaType.parse("application/json"), "{}"))
+                    .build();
+            try (Response response = client.newCall(request).execute()) {
+                assertEquals(200, response.code());
+            }
+            assertEquals(0, metrics.get("hedge.users/update.hedged"));
+            assertEquals(1, metrics.get("hedge.users/update.requests"));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs each region's service against a local stub of its data center.
+ */
+public class RegionalIterableServicesTest {
+
+    private static final int CALLS_PER_REGION = 200;
+
+    @Test
+    public void testRoutingAndPooling() throws Exception {
+        Map<IterableRegion, HttpServer> servers = new EnumMap<>(IterableRegion.class);
+        Map<IterableRegion, AtomicInteger> requests = new EnumMap<>(IterableRegion.class);
+        Map<IterableRegion, Set<Integer>> connections = new EnumMap<>(IterableRegion.class);
+        Map<IterableRegion, HttpUrl> baseUrls = new EnumMap<>(IterableRegion.class);
+        for (IterableRegion region : IterableRegion.values()) {
+            AtomicInteger count = new AtomicInteger();
+            Set<Integer> ports = ConcurrentHashMap.newKeySet();
+            HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/api/events/track", exchange -> {
+                count.incrementAndGet();
+                ports.add(exchange.getRemoteAddress().getPort());
+                byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            servers.put(region, server);
+            requests.put(region, count);
+            connections.put(region, ports);
+            baseUrls.put(region, HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/"));
+        }
+        try {
+            RegionalIterableServices services = new RegionalIterableServices(baseUrls);
+            assertSame(services.get(IterableRegion.EU), services.get(IterableRegion.EU));
+            assertNotSame(services.get(IterableRegion.US), services.get(IterableRegion.EU));
+
+            for (IterableRegion region : IterableRegion.values()) {
+                IterableService service = services.get(region);
+                for (int i = 0; i < CALLS_PER_REGION; i++) {
+                    assertTrue(service.track("key", new TrackRequest("event " + i)).execute().body().isSuccess());
+                }
+            }
+
+            for (IterableRegion region : IterableRegion.values()) {
+                assertEquals("Every call should reach its own region's stub", CALLS_PER_REGION, requests.get(region).get());
+                assertEquals("Sequential calls should reuse a pooled connection", 1, connections.get(region).size());
+            }
+        } finally {
+            for (HttpServer server : servers.values()) {
+                server.stop(0);
+            }
+        }
+    }
+
+    @Test
+    public void testFromSetting() throws Exception {
+        assertEquals(IterableRegion.US, IterableRegion.fromSetting(null));
+        assertEquals(IterableRegion.US, IterableRegion.fromSetting(""));
+        assertEquals(IterableRegion.EU, IterableRegion.fromSetting(" eu "));
+    }
+}
@@ -0,0 +1,118 @@
+package com.mparticle.iterable;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightInterceptorTest {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    @Test
+    public void testIdenticalCallsShareOneRequest() throws Exception {
+        AtomicInteger received = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/api/", exchange -> {
+            received.incrementAndGet();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        ExecutorService callers = Executors.newCachedThreadPool();
+        try {
+            IterableMetrics metrics = new IterableMetrics();
+            SingleFlightInterceptor interceptor = new SingleFlightInterceptor(HedgingInterceptor.IDEMPOTENT_ROUTES, metrics);
+            OkHttpClient client = new OkHttpClient.Builder()
+                    .readTimeout(10, TimeUnit.SECONDS)
+                    .addInterceptor(interceptor)
+                    .build();
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/api/";
+            List<Future<Response>> responses = new ArrayList<>();
+            String[] bodies = {
+                    "{\"email\":\"mptest@mparticle.com\",\"dataFields\":{\"a\":1,\"b\":2}}",
+                    "{\"dataFields\":{\"b\":2,\"a\":1},\"email\":\"mptest@mparticle.com\"}",
+                    "{\"email\":\"mptest@mparticle.com\",\"dataFields\":{\"a\":1,\"b\":2}}"
+            };
+            for (String body : bodies) {
+                Request request = new Request.Builder().url(url + "users/update?api_key=key").post(RequestBody.create(JSON, body)).build();
+                responses.add(callers.submit(() -> client.newCall(request).execute()));
+                //the first call has to be in flight before the others arrive
+                waitFor(() -> received.get() == 1);
+            }
+            waitFor(() -> metrics.get("singleflight.users/update.coalesced") == 2);
+            //a different API key, and a route that isn't idempotent, are never shared
+            Request otherKey = new Request.Builder().url(url + "users/update?api_key=other").post(RequestBody.create(JSON, bodies[0])).build();
+            responses.add(callers.submit(() -> client.newCall(otherKey).execute()));
+            Request track = new Request.Builder().url(url + "events/track?api_key=key").post(RequestBody.create(JSON, bodies[0])).build();
+            responses.add(callers.submit(() -> client.newCall(track).execute()));
+            waitFor(() -> received.get() == 3);
+            release.countDown();
+
+            for (Future<Response> future : responses) {
+                try (Response response = future.get(10, TimeUnit.SECONDS)) {
+                    assertEquals(200, response.code());
+                    assertEquals("{\"code\":\"Success\"}", response.body().string());
+                }
+            }
+            assertEquals(3, received.get());
+            assertEquals(4, metrics.get("singleflight.users/update.calls"));
+            assertEquals(0.5, interceptor.getCoalesceRate(), 0.001);
+        } finally {
+            callers.shutdownNow();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        String url = "http://127.0.0.1/api/users/update?api_key=";
+        Request request = new Request.Builder().url(url + "key").post(RequestBody.create(JSON, "{\"a\":[{\"c\":1,\"b\":2}],\"d\":null}")).build();
+        Request reordered = new Request.Builder().url(url + "key").post(RequestBody.create(JSON, "{\"d\":null,\"a\":[{\"b\":2,\"c\":1}]}")).build();
+        Request otherKey = new Request.Builder().url(url + "other").post(RequestBody.create(JSON, "{\"a\":[{\"c\":1,\"b\":2}],\"d\":null}")).build();
+        Request otherOrder = new Request.Builder().url(url + "key").post(RequestBody.create(JSON, "{\"a\":[{\"b\":2},{\"c\":1}],\"d\":null}")).build();
+        String key = SingleFlightInterceptor.key(request, "users/update");
+        assertEquals(key, SingleFlightInterceptor.key(reordered, "users/update"));
+        assertNotEquals(key, SingleFlightInterceptor.key(otherKey, "users/update"));
+        assertNotEquals("Array order matters", key, SingleFlightInterceptor.key(otherOrder, "users/update"));
+        assertFalse("API keys must not be kept in clear", key.contains("key "));
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 10000;
+        while (!condition.holds()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < giveUp);
+            Thread.sleep(5);
+        }
+    }
+}
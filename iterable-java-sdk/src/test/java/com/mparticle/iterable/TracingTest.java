@@ -0,0 +1,82 @@
+package com.mparticle.iterable;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.HttpUrl;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TracingTest {
+
+    @Test
+    public void testNoopByDefault() {
+        assertSame(Span.NOOP, Tracing.startSpan("anything"));
+        assertNull(Tracing.current());
+    }
+
+    @Test
+    public void testCallSpansExported() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/events/track", exchange -> {
+            byte[] body = "{\"code\":\"Success\"}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        Path file = Files.createTempFile("iterable", ".trace");
+        LoggingTracer tracer = new LoggingTracer(file);
+        Tracing.setTracer(tracer);
+        try {
+            IterableService service = IterableService.newInstance(IterableService.newClientBuilder().build(),
+                    HttpUrl.parse("http://127.0.0.1:" + server.getAddress().getPort() + "/"));
+            Span root = Tracing.startSpan("batch");
+            root.setAttribute("events", 1);
+            Span previous = Tracing.setCurrent(root);
+            try {
+                service.track("key", new TrackRequest("purchase")).execute();
+            } finally {
+                Tracing.setCurrent(previous);
+                root.end();
+            }
+            root.end();
+            Tracing.startSpan("another batch").end();
+        } finally {
+            Tracing.setTracer(null);
+            tracer.close();
+            server.stop(0);
+        }
+        try {
+            Gson gson = new Gson();
+            List<LoggingTracer.SpanData> spans = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                spans.add(gson.fromJson(line, LoggingTracer.SpanData.class));
+            }
+            assertEquals("Spans are exported once, when they end", 3, spans.size());
+            LoggingTracer.SpanData call = spans.get(0);
+            LoggingTracer.SpanData batch = spans.get(1);
+            assertEquals("iterable events/track", call.name);
+            assertEquals(200.0, call.attributes.get("http.status_code"));
+            assertEquals("batch", batch.name);
+            assertNull(batch.parentId);
+            assertEquals(32, batch.traceId.length());
+            assertEquals(16, batch.spanId.length());
+            assertEquals(batch.traceId, call.traceId);
+            assertEquals(batch.spanId, call.parentId);
+            assertTrue(batch.durationMicros >= call.durationMicros);
+            assertNotEquals("Spans without a parent start a new trace", batch.traceId, spans.get(2).traceId);
+        } finally {
+            Files.delete(file);
+        }
+    }
+}